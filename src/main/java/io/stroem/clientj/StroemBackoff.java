@@ -0,0 +1,65 @@
+package io.stroem.clientj;
+
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Exponential backoff with jitter, used between reconnect attempts.</p>
+ *
+ * <p>The delay doubles for each failed attempt (up to a max), and a random delay of up to half the delay is removed,
+ * so that many clients that lost their connections at the same time (e.g. at an issuer restart) will not reconnect
+ * at the same time.</p>
+ */
+public class StroemBackoff {
+
+  private final long initialDelayMillis;
+  private final long maxDelayMillis;
+  private final Random random;
+
+  private long nextDelayMillis;
+  private int attempts;
+
+  /**
+   * @param initialDelayMillis The delay before the first attempt
+   * @param maxDelayMillis The longest delay between two attempts
+   */
+  public StroemBackoff(long initialDelayMillis, long maxDelayMillis) {
+    this(initialDelayMillis, maxDelayMillis, new Random());
+  }
+
+  StroemBackoff(long initialDelayMillis, long maxDelayMillis, Random random) {
+    checkArgument(initialDelayMillis > 0, "Initial delay must be positive");
+    checkArgument(maxDelayMillis >= initialDelayMillis, "Max delay cannot be less than the initial delay");
+    this.initialDelayMillis = initialDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.random = random;
+    reset();
+  }
+
+  /**
+   * @return The delay to wait before the next attempt, a value between half and all of the current delay.
+   */
+  public synchronized long nextDelayMillis() {
+    long delay = nextDelayMillis;
+    nextDelayMillis = Math.min(maxDelayMillis, nextDelayMillis * 2);
+    attempts++;
+    long half = delay / 2;
+    return delay - half + (long) (random.nextDouble() * half);
+  }
+
+  /**
+   * Call this when an attempt succeeded, the next delay will be the initial delay.
+   */
+  public synchronized void reset() {
+    nextDelayMillis = initialDelayMillis;
+    attempts = 0;
+  }
+
+  /**
+   * @return The number of attempts since the last reset
+   */
+  public synchronized int getAttempts() {
+    return attempts;
+  }
+}
@@ -0,0 +1,206 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.ProtobufParser;
+import org.bitcoinj.net.StreamParser;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>TCP transport using blocking socket channels, one thread per connection.</p>
+ *
+ * <p>The thread connects, then reads until the connection is closed. Writes are done on the writing thread. The
+ * threads are created by the given {@link ThreadFactory}, so on a JDK with virtual threads this transport runs every
+ * connection on a virtual thread of its own:</p>
+ *
+ * <pre>
+ * StroemTransport transport = new StroemBlockingTransport(Thread.ofVirtual().name("stroem-", 0).factory());
+ * </pre>
+ *
+ * <p>Nothing on the I/O path holds a monitor while it blocks (the locks are {@link ReentrantLock}s, which park a
+ * waiting virtual thread instead of pinning it to its carrier), so a virtual thread blocked on the socket, or in
+ * {@link StroemClientTcpConnection#incrementPayment}, parks and leaves its carrier thread free. Each connection keeps
+ * a read buffer of its own, see {@link #StroemBlockingTransport(ThreadFactory, int)} when there are many
+ * connections.</p>
+ */
+public class StroemBlockingTransport implements StroemTransport {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemBlockingTransport.class);
+
+  public static final int DEFAULT_READ_BUFFER_SIZE = 8192;
+
+  private final ThreadFactory threadFactory;
+  private final int readBufferSize;
+  private final StroemHostResolver resolver;
+
+  /**
+   * Uses a platform (daemon) thread per connection.
+   */
+  public StroemBlockingTransport() {
+    this(new ThreadFactoryBuilder().setNameFormat("Stroem blocking reader %d").setDaemon(true).build());
+  }
+
+  /**
+   * @param threadFactory Creates the thread of each connection
+   */
+  public StroemBlockingTransport(ThreadFactory threadFactory) {
+    this(threadFactory, DEFAULT_READ_BUFFER_SIZE);
+  }
+
+  /**
+   * @param threadFactory Creates the thread of each connection
+   * @param readBufferSize The size of the read buffer of each connection. The Stroem parser reads larger messages in
+   *                       parts, other parsers (e.g. TLS) get a buffer large enough for their largest message.
+   */
+  public StroemBlockingTransport(ThreadFactory threadFactory, int readBufferSize) {
+    this(threadFactory, readBufferSize, StroemHostResolver.getDefault());
+  }
+
+  /**
+   * @param threadFactory Creates the thread of each connection
+   * @param readBufferSize The size of the read buffer of each connection
+   * @param resolver Resolves the issuer hosts
+   */
+  public StroemBlockingTransport(ThreadFactory threadFactory, int readBufferSize, StroemHostResolver resolver) {
+    checkArgument(readBufferSize > 0, "The read buffer size must be positive");
+    this.threadFactory = threadFactory;
+    this.readBufferSize = readBufferSize;
+    this.resolver = resolver;
+  }
+
+  @Override
+  public ListenableFuture<?> openConnection(String issuerHost, int port, StreamParser parser, int connectTimeoutMillis) {
+    SettableFuture<Void> openFuture = SettableFuture.create();
+    Connection connection = new Connection(issuerHost, port, parser, connectTimeoutMillis, openFuture);
+    threadFactory.newThread(connection).start();
+    return openFuture;
+  }
+
+  @Override
+  public String toString() {
+    return "StroemBlockingTransport{" + threadFactory + '}';
+  }
+
+  private class Connection implements MessageWriteTarget, Runnable {
+    private final String issuerHost;
+    private final int port;
+    private final StreamParser parser;
+    private final int connectTimeoutMillis;
+    private final SettableFuture<Void> openFuture;
+    private final ReentrantLock writeLock = Threading.lock("StroemBlockingTransport");
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile SocketChannel channel;
+
+    private Connection(String issuerHost, int port, StreamParser parser, int connectTimeoutMillis,
+                       SettableFuture<Void> openFuture) {
+      this.issuerHost = issuerHost;
+      this.port = port;
+      this.parser = parser;
+      this.connectTimeoutMillis = connectTimeoutMillis;
+      this.openFuture = openFuture;
+    }
+
+    @Override
+    public void writeBytes(byte[] message) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(message);
+      writeLock.lock();
+      try {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      } finally {
+        writeLock.unlock();
+      }
+    }
+
+    @Override
+    public void closeConnection() {
+      if (!closed.compareAndSet(false, true)) {
+        return;
+      }
+      if (channel == null) {
+        return; // Not connected
+      }
+      // The reading thread wakes up and tells the parser
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.debug("Unable to close the socket: {}", e.getMessage());
+      }
+    }
+
+    private InetAddress resolve() throws IOException {
+      ListenableFuture<InetAddress> address = resolver.resolve(issuerHost);
+      try {
+        return connectTimeoutMillis > 0 ? address.get(connectTimeoutMillis, TimeUnit.MILLISECONDS) : address.get();
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+      } catch (TimeoutException e) {
+        throw new IOException("Timed out resolving " + issuerHost);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+
+    /*
+     * Connects, then reads until the connection is closed.
+     */
+    @Override
+    public void run() {
+      try {
+        // On this thread, not on the caller's, and usually from the resolver's cache
+        InetAddress address = resolve();
+        channel = SocketChannel.open();
+        channel.socket().connect(new InetSocketAddress(address, port), connectTimeoutMillis);
+        channel.socket().setTcpNoDelay(true);
+      } catch (IOException e) {
+        log.info("Unable to connect to {}:{}: {}", issuerHost, port, e.getMessage());
+        closeConnection();
+        openFuture.setException(e);
+        return;
+      }
+
+      openFuture.set(null);
+      parser.setWriteTarget(this);
+      parser.connectionOpened();
+
+      // Like bitcoinj's ConnectionHandler, but the Stroem parser can read a message in parts
+      int bufferSize = parser instanceof ProtobufParser ? readBufferSize : Math.max(readBufferSize, parser.getMaxMessageSize());
+      ByteBuffer readBuffer = ByteBuffer.allocate(bufferSize);
+      try {
+        while (channel.read(readBuffer) != -1) {
+          readBuffer.flip();
+          int consumed = parser.receiveBytes(readBuffer);
+          checkState(readBuffer.position() == consumed, "The parser did not consume what it said");
+          readBuffer.compact();
+          checkState(readBuffer.hasRemaining(), "The parser did not consume a full read buffer");
+        }
+      } catch (ClosedChannelException e) {
+        // Closed by closeConnection()
+      } catch (Exception e) {
+        log.warn("Error when reading from the socket, closing it", e);
+      } finally {
+        closeConnection();
+        parser.connectionClosed();
+      }
+    }
+  }
+}
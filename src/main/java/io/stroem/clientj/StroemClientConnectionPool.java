@@ -0,0 +1,256 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import io.stroem.clientj.domain.StroemId;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.protocols.channels.ValueOutOfRangeException;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Keeps open {@link StroemClientTcpConnection}s, one per payment channel, so that the TCP connect, the Stroem version
+ * handshake and the payment channel resume are done once per channel instead of once per payment.</p>
+ *
+ * <p>Connections are keyed by {@link StroemId#getRealPaymentChannelServerId()}, i.e. the id bitcoinj uses to find the
+ * stored channel. A connection is removed from the pool when it reaches {@link StroemStep#CONNECTION_CLOSED} or fails
+ * to open the payment channel.</p>
+ *
+ * <p>Note: There will never be two connections for the same id in the pool, since bitcoinj would then create a new
+ * payment channel for the second one (the first channel is in use).</p>
+ */
+public class StroemClientConnectionPool {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemClientConnectionPool.class);
+
+  private final StroemConnectionFactory connectionFactory;
+  @Nullable private final StroemKeepalive keepalive;
+
+  // Guarded by "this"
+  private final Map<Sha256Hash, Entry> connections = new HashMap<Sha256Hash, Entry>();
+
+  // Statistics
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * @param connectionFactory Used to create a connection when there is no live connection for the channel in the pool.
+   */
+  public StroemClientConnectionPool(StroemConnectionFactory connectionFactory) {
+    this(connectionFactory, null);
+  }
+
+  /**
+   * @param connectionFactory Used to create a connection when there is no live connection for the channel in the pool.
+   * @param keepalive Watches the connections of the pool, to close idle and dead connections (must be started).
+   */
+  public StroemClientConnectionPool(StroemConnectionFactory connectionFactory, @Nullable StroemKeepalive keepalive) {
+    this.connectionFactory = connectionFactory;
+    this.keepalive = keepalive;
+  }
+
+  /**
+   * <p>Gets a connection to the payment channel with the given id.</p>
+   *
+   * <p>If there is a live connection for the channel in the pool it will be used, otherwise a new connection is created
+   * and added to the pool. A connection that is still opening (or still being created by another caller) is shared, so
+   * the returned future will complete when the channel is open. The factory is called without holding the pool's lock,
+   * so a slow factory does not hold up the other channels.</p>
+   *
+   * @param stroemId The id of the payment channel
+   * @return A future that returns the connection when the payment channel is open.
+   * @throws java.io.IOException if there's an issue using the network.
+   * @throws ValueOutOfRangeException if the balance of wallet is lower than maxValue.
+   */
+  public ListenableFuture<StroemClientTcpConnection> getConnection(StroemId stroemId)
+      throws IOException, ValueOutOfRangeException {
+    Sha256Hash key = stroemId.getRealPaymentChannelServerId();
+
+    Entry entry;
+    synchronized (this) {
+      Entry existing = connections.get(key);
+      if (existing != null) {
+        StroemClientTcpConnection connection = existing.connection;
+        if (connection == null) {
+          log.debug("Connection for {} is being created, will share it", stroemId);
+          hitCount.incrementAndGet();
+          return existing.openFuture;
+        }
+        if (connection.isOpen()) {
+          hitCount.incrementAndGet();
+          return Futures.immediateFuture(connection);
+        }
+        if (connection.getStroemStep() != StroemStep.CONNECTION_CLOSED) {
+          log.debug("Connection for {} is still opening, will share it", stroemId);
+          hitCount.incrementAndGet();
+          return existing.openFuture;
+        }
+        evictLocked(key, existing);
+      }
+
+      missCount.incrementAndGet();
+      // Holds the place of the connection while it is created, without the lock (the factory may block)
+      entry = new Entry();
+      connections.put(key, entry);
+    }
+
+    log.debug("No live connection for {} in the pool, will create one", stroemId);
+    StroemClientTcpConnection connection;
+    try {
+      connection = connectionFactory.create(stroemId);
+    } catch (IOException | ValueOutOfRangeException | RuntimeException e) {
+      // The callers that share the entry fail too
+      evict(key, entry);
+      entry.openFuture.setException(e);
+      throw e;
+    }
+    boolean pooled;
+    synchronized (this) {
+      entry.connection = connection;
+      pooled = connections.get(key) == entry;
+    }
+    watch(key, entry);
+    if (!pooled) {
+      // Removed from the pool while it was created
+      connection.disconnectWithoutSettlement();
+    } else if (keepalive != null) {
+      keepalive.watch(connection);
+    }
+    return entry.openFuture;
+  }
+
+  /**
+   * Removes the connection of the given channel from the pool, and disconnects it without settlement.
+   *
+   * @param stroemId The id of the payment channel
+   */
+  public void remove(StroemId stroemId) {
+    StroemClientTcpConnection connection = null;
+    synchronized (this) {
+      Entry entry = connections.remove(stroemId.getRealPaymentChannelServerId());
+      if (entry != null) {
+        // Null while it is created, getConnection() then disconnects it
+        connection = entry.connection;
+      }
+    }
+    if (connection != null) {
+      connection.disconnectWithoutSettlement();
+    }
+  }
+
+  /**
+   * Removes all connections from the pool, and disconnects them without settlement.
+   */
+  public void closeAll() {
+    List<StroemClientTcpConnection> toClose;
+    synchronized (this) {
+      toClose = new ArrayList<StroemClientTcpConnection>();
+      for (Entry entry : connections.values()) {
+        if (entry.connection != null) {
+          toClose.add(entry.connection);
+        }
+      }
+      connections.clear();
+    }
+    for (StroemClientTcpConnection connection : toClose) {
+      connection.disconnectWithoutSettlement();
+    }
+  }
+
+  /**
+   * @return The number of connections in the pool (open or opening).
+   */
+  public synchronized int size() {
+    return connections.size();
+  }
+
+  /**
+   * @return The number of times a pooled connection could be used.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return The number of times a new connection had to be created.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return The number of connections that have been removed from the pool because they were closed or failed to open.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /*
+   * Completes the future of the entry when the channel is open, and removes the connection from the pool as soon as
+   * it is closed or fails to open the channel.
+   */
+  private void watch(final Sha256Hash key, final Entry entry) {
+    final StroemClientTcpConnection connection = entry.connection;
+    Futures.addCallback(connection.getChannelOpenFuture(), new FutureCallback<StroemClientTcpConnection>() {
+      @Override
+      public void onSuccess(StroemClientTcpConnection result) {
+        // Stay in the pool
+        entry.openFuture.set(result);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        log.info("Connection failed to open the payment channel: " + t.getMessage());
+        evict(key, entry);
+        connection.disconnectWithoutSettlement();
+        entry.openFuture.setException(t);
+      }
+    });
+
+    Futures.addCallback(connection.getConnectionClosedFuture(), new FutureCallback<StroemClientTcpConnection>() {
+      @Override
+      public void onSuccess(StroemClientTcpConnection result) {
+        evict(key, entry);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        evict(key, entry);
+      }
+    });
+  }
+
+  /*
+   * Removes the entry if it is still the one stored under the key.
+   */
+  private synchronized void evict(Sha256Hash key, Entry entry) {
+    evictLocked(key, entry);
+  }
+
+  // Guarded by "this"
+  private void evictLocked(Sha256Hash key, Entry entry) {
+    if (connections.get(key) == entry) {
+      connections.remove(key);
+      evictionCount.incrementAndGet();
+      log.debug("Evicted connection {} from the pool", key);
+    }
+  }
+
+  /*
+   * A connection in the pool, or the place of one that is being created.
+   */
+  private static class Entry {
+    private final SettableFuture<StroemClientTcpConnection> openFuture = SettableFuture.create();
+    // Null while the connection is created, guarded by the pool
+    @Nullable private StroemClientTcpConnection connection;
+  }
+}
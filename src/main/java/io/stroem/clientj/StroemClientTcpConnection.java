@@ -4,10 +4,17 @@ import io.stroem.api.Messages;
 import io.stroem.clientj.domain.*;
 import io.stroem.promissorynote.PaymentInstrument;
 import org.bitcoinj.core.*;
-import org.bitcoinj.net.NioClient;
+import org.bitcoinj.net.ClientConnectionManager;
 import org.bitcoinj.net.ProtobufParser;
 import org.bitcoinj.protocols.channels.*;
+import org.bitcoinj.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import io.stroem.proto.StroemProtos;
 import io.stroem.proto.StroemProtos.StroemMessage;
@@ -20,17 +27,24 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.spongycastle.math.ec.ECPoint;
 import org.spongycastle.crypto.params.KeyParameter;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
  * A simple utility class that runs the stroem protocol over a raw TCP socket using NIO, standalone.
+ * The socket can be replaced by another {@link StroemTransport}.
  */
 public class StroemClientTcpConnection {
   private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemClientTcpConnection.class);
@@ -39,25 +53,31 @@ public class StroemClientTcpConnection {
   public static final int CLIENT_STROEM_VERSION = 1;
   public static final String CURRENCY = "BTC";
   public static final long SAFE_MARGIN_SECONDS = 60*59; // 59 minutes time difference between the client and server clocks is allowed.
+  public static final int DEFAULT_MAX_QUEUED_PAYMENTS = 16;
 
   private PaymentChannelClient paymentChannelClient;
 
   private StroemMessageReceiver stroemMessageReceiver;
 
   // Used to write messages to the socket
-  private final ProtobufParser<StroemMessage> wireParser;
+  private final StroemWireParser wireParser;
 
   // Holds the status of an initialization of the payment channel
   private final SettableFuture<StroemClientTcpConnection> channelOpenFuture = SettableFuture.create();
-  // Holds the status of a settlement of the payment channel
+  private final ReentrantLock settleLock = Threading.lock("StroemClientTcpConnection");
+  // Holds the status of a settlement of the payment channel, guarded by settleLock
   private SettableFuture<Void> settlementFuture = SettableFuture.create();
   // A general future used to detect errors
   private SettableFuture<Void> currentFuture = SettableFuture.create();
+  // Completes when the TCP connection has been closed, for whatever reason
+  private final SettableFuture<StroemClientTcpConnection> connectionClosedFuture = SettableFuture.create();
 
   // Indicates if a channel was created (i.e. did not previously exist)
   private boolean freshChannel = false;
   // True when we have entered the settling process (the settling will terminate the connection)
   private boolean settling = false;
+  // Why the payment channel was closed, null while open
+  @Nullable private volatile PaymentChannelCloseException.CloseReason closeReason;
 
   // Some intermediate member values (coming from the constructor)
   private final Wallet wallet;
@@ -67,22 +87,76 @@ public class StroemClientTcpConnection {
   private Coin maxValue;
   private long paymentChannelTimeoutSeconds;
   @Nullable private KeyParameter userKeySetup;
-
-  // Temporary (state) variables
-  private StroemStep stroemStep = StroemStep.START;
+  private final StroemConnectionTimeouts timeouts;
+  private final StroemRttEstimator rttEstimator;
+  private final String issuerHost;
+  // True if the payment channel CLIENT_VERSION was sent without waiting for the issuer's Stroem version
+  private volatile boolean pipelinedHandshake = false;
+  // True once the issuer has sent a payment channel message, i.e. it has answered the CLIENT_VERSION
+  private volatile boolean channelMessageReceived = false;
+  // True once we have decided to close the connection (a deadline, or a disconnect)
+  private volatile boolean closingLocally = false;
+  // True if the issuer failed the pipelined setup without answering the early CLIENT_VERSION
+  private volatile boolean pipelineRejected = false;
+
+  // Deadline for the current phase of the connection setup
+  private final StroemConnectTimings connectTimings = new StroemConnectTimings();
+  private volatile ScheduledFuture<?> phaseDeadline;
+  // Set when a TLS transport has finished its handshake
+  @Nullable private volatile StroemTlsSession tlsSession;
+
+  // The step of the Stroem protocol, read by other threads than the NIO thread without locking (see isOpen())
+  private final StroemStateMachine stateMachine = new StroemStateMachine(this);
+
+  // Payments waiting for an ack from the issuer, created when the channel is open
+  private volatile StroemPaymentQueue paymentQueue;
+  private volatile int maxQueuedPayments = DEFAULT_MAX_QUEUED_PAYMENTS;
+  // When a payment was last made or acked (or the channel opened), see getIdleMillis()
+  private volatile long lastUsedNanos = System.nanoTime();
+  // Makes the check of the queue and the update of the socket timeout atomic
+  private final ReentrantLock ackDeadlineLock = Threading.lock("StroemAckDeadline");
+  // Deliver the promissory notes pushed by the issuer, one queue per listener
+  private final CopyOnWriteArrayList<StroemPromissoryNoteQueue> promissoryNoteQueues =
+      new CopyOnWriteArrayList<StroemPromissoryNoteQueue>();
+  // What new payments do when the outbound queue is full
+  private volatile StroemWriteQueue.OverflowPolicy overflowPolicy = StroemWriteQueue.OverflowPolicy.BLOCK;
 
   /**
    *  Tell it to terminate the payment relationship and thus broadcast the micropayment transactions. We will
    *  resume control in destroyConnection below.
+   *
+   * @return The settlement future, see {@link #getSettlementFuture()}
    */
-  public synchronized void settlePaymentChannel() {
-    settling = true;
-    currentFuture = settlementFuture = SettableFuture.create();
-    if (paymentChannelClient == null) {
-      // Have to connect first.
-      initializePayments();
+  public ListenableFuture<Void> settlePaymentChannel() {
+    settleLock.lock();
+    try {
+      settling = true;
+      currentFuture = settlementFuture = SettableFuture.create();
+      if (paymentChannelClient == null) {
+        // Have to connect first.
+        initializePayments();
+      }
+      paymentChannelClient.settle();
+      return settlementFuture;
+    } finally {
+      settleLock.unlock();
+    }
+  }
+
+  /**
+   * <p>Gets a future which completes when the issuer has settled the channel, after
+   * {@link #settlePaymentChannel()}.</p>
+   *
+   * <p>It fails with an {@link InsufficientMoneyException} if the issuer asked for more value than the channel has,
+   * and with a {@link PaymentChannelCloseException} if the connection closed before the channel was settled.</p>
+   */
+  public ListenableFuture<Void> getSettlementFuture() {
+    settleLock.lock();
+    try {
+      return settlementFuture;
+    } finally {
+      settleLock.unlock();
     }
-    paymentChannelClient.settle();
   }
 
   /**
@@ -96,7 +170,7 @@ public class StroemClientTcpConnection {
 
   /**
    * Attempts to open a new connection to and open a payment channel over the Stroem protocol, using the given serverId.
-   * Blocking until the connection is open.
+   * Returns at once, use {@link #getChannelOpenFuture()} to wait until the channel is open.
    *
    * Use this constructor if you are building a normal wallet
    *
@@ -113,14 +187,40 @@ public class StroemClientTcpConnection {
    */
   public StroemClientTcpConnection(StroemPaymentChannel stroemPaymentChannel, int socketTimeoutSeconds, Wallet wallet,
                                    ECKey myKey, @Nullable KeyParameter userKeySetup
+  ) throws IOException, ValueOutOfRangeException {
+    this(stroemPaymentChannel, socketTimeoutSeconds, wallet, myKey, userKeySetup, null);
+  }
+
+  /**
+   * Attempts to open a new connection to and open a payment channel over the Stroem protocol, using the given serverId.
+   * Returns at once, use {@link #getChannelOpenFuture()} to wait until the channel is open.
+   *
+   * Use this constructor if you are building a normal wallet, and want many connections to share NIO threads.
+   *
+   * @param stroemPaymentChannel Meta data for the channel
+   * @param socketTimeoutSeconds The connection timeout and read timeout during initialization. This should be large enough
+   *                       to accommodate ECDSA signature operations and network latency.
+   * @param wallet The wallet which will be paid from, and where completed transactions will be committed.
+   *               Must already have a {@link org.bitcoinj.protocols.channels.StoredPaymentChannelClientStates} object in its extensions set.
+   * @param myKey A freshly generated keypair used for the multisig contract and refund output.
+   * @param userKeySetup Key derived from a user password, used to decrypt myKey, if it is encrypted, during setup.
+   * @param connectionManager A running manager the connection will be registered with (see {@link StroemNioClientManagers}),
+   *                          or null if the connection should use a NIO thread of its own.
+   *
+   * @throws java.io.IOException if there's an issue using the network.
+   * @throws ValueOutOfRangeException if the balance of wallet is lower than maxValue.
+   */
+  public StroemClientTcpConnection(StroemPaymentChannel stroemPaymentChannel, int socketTimeoutSeconds, Wallet wallet,
+                                   ECKey myKey, @Nullable KeyParameter userKeySetup,
+                                   @Nullable ClientConnectionManager connectionManager
   ) throws IOException, ValueOutOfRangeException {
     this(stroemPaymentChannel.getIssuerHost(), socketTimeoutSeconds, stroemPaymentChannel.getTimeoutSeconds(),
-        wallet, myKey, userKeySetup, stroemPaymentChannel.getMaxValue(), stroemPaymentChannel.getStroemId());
+        wallet, myKey, userKeySetup, stroemPaymentChannel.getMaxValue(), stroemPaymentChannel.getStroemId(), connectionManager);
   }
 
   /**
    * Attempts to open a new connection to and open a payment channel over the Stroem protocol, using the given serverId.
-   * Blocking until the connection is open.
+   * Returns at once, use {@link #getChannelOpenFuture()} to wait until the channel is open.
    *
    * Use this constructor if you are building a normal wallet
    *
@@ -145,7 +245,7 @@ public class StroemClientTcpConnection {
 
   /**
    * Attempts to open a new connection to and open a payment channel over the Stroem protocol, using the given serverId.
-   * Blocking until the connection is open.
+   * Returns at once, use {@link #getChannelOpenFuture()} to wait until the channel is open.
    *
    * Use this constructor if you have need of the "serverId" param.
    *
@@ -167,8 +267,163 @@ public class StroemClientTcpConnection {
   public StroemClientTcpConnection(String issuerHost, int socketTimeoutSeconds, long paymentChannelTimeoutSeconds, Wallet wallet,
                                    ECKey myKey, @Nullable KeyParameter userKeySetup, Coin maxValue, StroemId serverId
       ) throws IOException, ValueOutOfRangeException {
+    this(issuerHost, socketTimeoutSeconds, paymentChannelTimeoutSeconds, wallet, myKey, userKeySetup, maxValue, serverId, null);
+  }
+
+  /**
+   * Attempts to open a new connection to and open a payment channel over the Stroem protocol, using the given serverId.
+   * Returns at once, use {@link #getChannelOpenFuture()} to wait until the channel is open.
+   *
+   * Use this constructor if you have need of the "serverId" param, and want many connections to share NIO threads.
+   *
+   * @param issuerHost The host where the issuer server is listening.
+   * @param socketTimeoutSeconds The connection timeout and read timeout during initialization. This should be large enough
+   *                       to accommodate ECDSA signature operations and network latency.
+   * @param paymentChannelTimeoutSeconds How long the payment channel should stay open. Server not care about this value.
+   * @param wallet The wallet which will be paid from, and where completed transactions will be committed.
+   *               Must already have a {@link org.bitcoinj.protocols.channels.StoredPaymentChannelClientStates} object in its extensions set.
+   * @param myKey A freshly generated keypair used for the multisig contract and refund output.
+   * @param userKeySetup Key derived from a user password, used to decrypt myKey, if it is encrypted, during setup.
+   * @param maxValue The maximum value this channel is allowed to request
+   * @param serverId A unique ID which is used to attempt reopening of an existing channel.
+   * @param connectionManager A running manager the connection will be registered with (see {@link StroemNioClientManagers}),
+   *                          or null if the connection should use a NIO thread of its own.
+   *
+   * @throws java.io.IOException if there's an issue using the network.
+   * @throws ValueOutOfRangeException if the balance of wallet is lower than maxValue.
+   */
+  public StroemClientTcpConnection(String issuerHost, int socketTimeoutSeconds, long paymentChannelTimeoutSeconds, Wallet wallet,
+                                   ECKey myKey, @Nullable KeyParameter userKeySetup, Coin maxValue, StroemId serverId,
+                                   @Nullable ClientConnectionManager connectionManager
+      ) throws IOException, ValueOutOfRangeException {
+    this(issuerHost, StroemConnectionTimeouts.fromSocketTimeout(socketTimeoutSeconds), paymentChannelTimeoutSeconds, wallet,
+        myKey, userKeySetup, maxValue, serverId, StroemNioTransport.forManager(connectionManager));
+  }
+
+  /**
+   * <p>Opens a connection and a payment channel over the Stroem protocol, with a deadline for each phase of the setup.</p>
+   *
+   * <p>The deadlines are enforced on {@link StroemThreading#TIMER}. If the setup fails the future fails with a
+   * {@link StroemConnectException}, that tells which phase failed and how long each phase took.</p>
+   *
+   * @param stroemPaymentChannel Meta data for the channel
+   * @param timeouts The deadlines for the TCP connect, the version handshake and the channel initiate.
+   * @param wallet The wallet which will be paid from, and where completed transactions will be committed.
+   *               Must already have a {@link org.bitcoinj.protocols.channels.StoredPaymentChannelClientStates} object in its extensions set.
+   * @param myKey A freshly generated keypair used for the multisig contract and refund output.
+   * @param userKeySetup Key derived from a user password, used to decrypt myKey, if it is encrypted, during setup.
+   * @param connectionManager A running manager the connection will be registered with (see {@link StroemNioClientManagers}),
+   *                          or null if the connection should use a NIO thread of its own.
+   * @return A future that returns the connection when the payment channel is open.
+   */
+  public static ListenableFuture<StroemClientTcpConnection> connectAsync(
+      StroemPaymentChannel stroemPaymentChannel, StroemConnectionTimeouts timeouts, Wallet wallet, ECKey myKey,
+      @Nullable KeyParameter userKeySetup, @Nullable ClientConnectionManager connectionManager) {
+    return connectAsync(stroemPaymentChannel.getIssuerHost(), timeouts, stroemPaymentChannel.getTimeoutSeconds(), wallet,
+        myKey, userKeySetup, stroemPaymentChannel.getMaxValue(), stroemPaymentChannel.getStroemId(), connectionManager);
+  }
+
+  /**
+   * <p>Opens a connection and a payment channel over the Stroem protocol, with a deadline for each phase of the setup.</p>
+   *
+   * <p>The deadlines are enforced on {@link StroemThreading#TIMER}. If the setup fails the future fails with a
+   * {@link StroemConnectException}, that tells which phase failed and how long each phase took.</p>
+   *
+   * @param issuerHost The host where the issuer server is listening.
+   * @param timeouts The deadlines for the TCP connect, the version handshake and the channel initiate.
+   * @param paymentChannelTimeoutSeconds How long the payment channel should stay open. Server not care about this value.
+   * @param wallet The wallet which will be paid from, and where completed transactions will be committed.
+   *               Must already have a {@link org.bitcoinj.protocols.channels.StoredPaymentChannelClientStates} object in its extensions set.
+   * @param myKey A freshly generated keypair used for the multisig contract and refund output.
+   * @param userKeySetup Key derived from a user password, used to decrypt myKey, if it is encrypted, during setup.
+   * @param maxValue The maximum value this channel is allowed to request
+   * @param serverId A unique ID which is used to attempt reopening of an existing channel.
+   * @param connectionManager A running manager the connection will be registered with (see {@link StroemNioClientManagers}),
+   *                          or null if the connection should use a NIO thread of its own.
+   * @return A future that returns the connection when the payment channel is open.
+   */
+  public static ListenableFuture<StroemClientTcpConnection> connectAsync(
+      String issuerHost, StroemConnectionTimeouts timeouts, long paymentChannelTimeoutSeconds, Wallet wallet, ECKey myKey,
+      @Nullable KeyParameter userKeySetup, Coin maxValue, StroemId serverId,
+      @Nullable ClientConnectionManager connectionManager) {
+    return connectAsync(issuerHost, timeouts, paymentChannelTimeoutSeconds, wallet, myKey, userKeySetup, maxValue,
+        serverId, StroemNioTransport.forManager(connectionManager));
+  }
+
+  /**
+   * <p>Opens a connection and a payment channel over the Stroem protocol, with a deadline for each phase of the setup.</p>
+   *
+   * <p>Same as {@link #connectAsync(String, StroemConnectionTimeouts, long, Wallet, ECKey, KeyParameter, Coin, StroemId,
+   * ClientConnectionManager)}, but over the given transport.</p>
+   *
+   * @param transport Carries the bytes to and from the issuer (see {@link StroemTransport}).
+   * @return A future that returns the connection when the payment channel is open.
+   */
+  public static ListenableFuture<StroemClientTcpConnection> connectAsync(
+      String issuerHost, StroemConnectionTimeouts timeouts, long paymentChannelTimeoutSeconds, Wallet wallet, ECKey myKey,
+      @Nullable KeyParameter userKeySetup, Coin maxValue, StroemId serverId, StroemTransport transport) {
+    return connectAsync(issuerHost, timeouts, paymentChannelTimeoutSeconds, wallet, myKey, userKeySetup, maxValue,
+        serverId, transport, true);
+  }
+
+  /*
+   * Retries once if the issuer rejected a pipelined handshake (see StroemPipelinedHandshake). The host then gets the
+   * sequential handshake, so the retry does not pipeline.
+   */
+  private static ListenableFuture<StroemClientTcpConnection> connectAsync(
+      final String issuerHost, final StroemConnectionTimeouts timeouts, final long paymentChannelTimeoutSeconds,
+      final Wallet wallet, final ECKey myKey, @Nullable final KeyParameter userKeySetup, final Coin maxValue,
+      final StroemId serverId, final StroemTransport transport, final boolean retryIfPipelineRejected) {
+    final StroemClientTcpConnection connection;
+    try {
+      connection = new StroemClientTcpConnection(issuerHost, timeouts, paymentChannelTimeoutSeconds, wallet, myKey,
+          userKeySetup, maxValue, serverId, transport);
+    } catch (IOException | ValueOutOfRangeException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    return Futures.withFallback(connection.getChannelOpenFuture(), new FutureFallback<StroemClientTcpConnection>() {
+      @Override
+      public ListenableFuture<StroemClientTcpConnection> create(Throwable t) {
+        if (retryIfPipelineRejected && connection.pipelineRejected) {
+          log.info("Retrying the setup to {} with the sequential handshake", issuerHost);
+          return connectAsync(issuerHost, timeouts, paymentChannelTimeoutSeconds, wallet, myKey, userKeySetup, maxValue,
+              serverId, transport, false);
+        }
+        return Futures.immediateFailedFuture(new StroemConnectException(t, connection.getConnectTimings()));
+      }
+    });
+  }
+
+  /**
+   * Attempts to open a new connection to and open a payment channel over the Stroem protocol, using the given serverId.
+   * Returns at once, use {@link #getChannelOpenFuture()} to wait until the channel is open.
+   *
+   * All other constructors end up here. Use this constructor if the connection should not use TCP, e.g. to run
+   * against an in-process issuer (see {@link StroemLoopbackTransport}).
+   *
+   * @param issuerHost The host where the issuer server is listening.
+   * @param timeouts The deadlines for the TCP connect, the version handshake and the channel initiate.
+   * @param paymentChannelTimeoutSeconds How long the payment channel should stay open. Server not care about this value.
+   * @param wallet The wallet which will be paid from, and where completed transactions will be committed.
+   *               Must already have a {@link org.bitcoinj.protocols.channels.StoredPaymentChannelClientStates} object in its extensions set.
+   * @param myKey A freshly generated keypair used for the multisig contract and refund output.
+   * @param userKeySetup Key derived from a user password, used to decrypt myKey, if it is encrypted, during setup.
+   * @param maxValue The maximum value this channel is allowed to request
+   * @param serverId A unique ID which is used to attempt reopening of an existing channel.
+   * @param transport Carries the bytes to and from the issuer.
+   *
+   * @throws java.io.IOException if there's an issue using the network.
+   * @throws ValueOutOfRangeException if the balance of wallet is lower than maxValue.
+   */
+  public StroemClientTcpConnection(String issuerHost, StroemConnectionTimeouts timeouts, long paymentChannelTimeoutSeconds,
+                                   Wallet wallet, ECKey myKey, @Nullable KeyParameter userKeySetup, Coin maxValue,
+                                   StroemId serverId, StroemTransport transport
+      ) throws IOException, ValueOutOfRangeException {
 
     // Initiate some members
+    this.timeouts = timeouts;
+    this.rttEstimator = StroemRttEstimator.forHost(issuerHost);
+    this.issuerHost = issuerHost;
     this.wallet = wallet;
     this.serverIdName = serverId.getServerId();
     this.serverIdHash = serverId.getRealPaymentChannelServerId();
@@ -186,24 +441,149 @@ public class StroemClientTcpConnection {
     paymentChannelClient = new PaymentChannelClient(wallet, myKey, maxValue, serverIdHash, paymentChannelTimeoutSeconds, userKeySetup, clientConnection);
     log.debug("3. payment client built");
 
-    stroemMessageReceiver = new StroemMessageReceiver(paymentChannelClient);
+    stroemMessageReceiver = new StroemMessageReceiver(paymentChannelClient, new StroemMessageReceiver.PromissoryNoteHandler() {
+      @Override
+      public void promissoryNoteReceived(StroemPromissoryNote note) {
+        for (StroemPromissoryNoteQueue queue : promissoryNoteQueues) {
+          queue.offer(note);
+        }
+      }
+    });
     log.debug("4. stroem message receiver built");
 
     // 2. This listener handles messages coming in from network (Stroem protobuf -> java objects)
     ProtobufParser.Listener<StroemMessage> stroemMessageListener = buildStroemMessageListener();
     log.debug("5. stroem message listener built");
 
-    StroemMessage defaultInstance = StroemMessage.getDefaultInstance();
-    log.debug("6. default instance built");
+    wireParser = new StroemWireParser(stroemMessageListener, Short.MAX_VALUE, getAdaptiveReadTimeoutMillis());
 
-    wireParser = new ProtobufParser<StroemMessage>(stroemMessageListener, defaultInstance, Short.MAX_VALUE, socketTimeoutSeconds*1000);
+    log.debug("Start {}", transport);
+    connectTimings.start();
+    startPhaseDeadline(StroemConnectTimings.Phase.CONNECT, timeouts.getConnectTimeoutMillis());
+    // Initiate the outbound connection. The wireParser object will handle things from here on out.
+    openConnection(transport, issuerHost);
+    log.debug("Initation of transport done");
+  }
 
-    log.debug("Start NIO");
-    InetSocketAddress inetSocketAddress = new InetSocketAddress(issuerHost, STROEM_PORT);
-    // Initiate the outbound network connection. We don't need to keep this around. The wireParser object will handle
-    // things from here on out.
-    new NioClient(inetSocketAddress, wireParser, socketTimeoutSeconds * 1000);
-    log.debug("Initation of TCP over NIO done");
+  /*
+   * Fails the channel open future if the setup is still in the given phase when the deadline passes.
+   */
+  private void startPhaseDeadline(final StroemConnectTimings.Phase phase, final long timeoutMillis) {
+    cancelPhaseDeadline();
+    if (timeoutMillis <= 0) {
+      return; // No deadline
+    }
+    phaseDeadline = StroemThreading.TIMER.schedule(new Runnable() {
+      @Override
+      public void run() {
+        if (channelOpenFuture.isDone() || connectTimings.getCurrentPhase() != phase) {
+          return;
+        }
+        log.warn("Phase {} did not complete within {} ms ({})", phase, timeoutMillis, connectTimings);
+        channelOpenFuture.setException(new StroemProtocolException(StroemProtocolException.Code.TIMEOUT,
+            "Phase " + phase + " did not complete within " + timeoutMillis + " ms"));
+        if (phase == StroemConnectTimings.Phase.CONNECT) {
+          // Nothing to close yet, connectionOpen() will close the socket if the connect completes later on.
+          return;
+        }
+        closingLocally = true;
+        wireParser.closeConnection();
+      }
+    }, timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void cancelPhaseDeadline() {
+    ScheduledFuture<?> deadline = phaseDeadline;
+    if (deadline != null) {
+      deadline.cancel(false);
+    }
+  }
+
+  /**
+   * @return How long each phase of the connection setup took (so far).
+   */
+  public StroemConnectTimings getConnectTimings() {
+    return connectTimings;
+  }
+
+  /**
+   * @return The TLS handshake time and whether the session was resumed, or null if the transport does not use TLS
+   *         (see {@link StroemTlsTransport}).
+   */
+  @Nullable
+  public StroemTlsSession getTlsSession() {
+    return tlsSession;
+  }
+
+  /**
+   * @return The round trip time estimates of the issuer host, shared by all connections to the host.
+   */
+  public StroemRttEstimator getRttEstimator() {
+    return rttEstimator;
+  }
+
+  /*
+   * The read timeout while we wait for the issuer (setup, payment acks): the configured value, or the one learned from
+   * the RTT of the issuer host if that is longer. A configured value of 0 (no timeout) is always kept.
+   * The RTT may only make the timeout longer: the first samples come from the cheap version round trips, while the
+   * issuer signs during INITIATE and for every payment ack.
+   */
+  @VisibleForTesting
+  int getAdaptiveReadTimeoutMillis() {
+    int configuredMillis = timeouts.getReadTimeoutMillis();
+    if (configuredMillis == 0) {
+      return 0;
+    }
+    return Math.max(configuredMillis, rttEstimator.getTimeoutMillis(configuredMillis));
+  }
+
+  /**
+   * @return The number of messages sent to the issuer. Every message is sent as one frame (one byte array).
+   */
+  public long getMessagesSent() {
+    return wireParser.getMessagesWritten();
+  }
+
+  /**
+   * @return The number of bytes sent to the issuer, including the length prefixes.
+   */
+  public long getBytesSent() {
+    return wireParser.getBytesWritten();
+  }
+
+  /**
+   * @return The first message of every connection
+   */
+  static StroemMessage clientVersionMessage() {
+    StroemProtos.StroemClientVersion stroemVersionMsg = StroemProtos.StroemClientVersion.newBuilder()
+        .setVersion(CLIENT_STROEM_VERSION).build();
+    return StroemMessage.newBuilder()
+        .setType(StroemMessage.MessageType.STROEM_CLIENT_VERSION)
+        .setStroemClientVersion(stroemVersionMsg)
+        .build();
+  }
+
+  /*
+   * Opens the transport connection for the wireParser.
+   * If the transport fails to connect the channel open future fails.
+   */
+  private void openConnection(StroemTransport transport, final String issuerHost) {
+    Futures.addCallback(transport.openConnection(issuerHost, STROEM_PORT, wireParser, timeouts.getConnectTimeoutMillis()),
+        new FutureCallback<Object>() {
+      @Override
+      public void onSuccess(Object result) {
+        // connectionOpen() is called on the wireParser
+        if (result instanceof StroemTlsSession) {
+          tlsSession = (StroemTlsSession) result;
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        log.warn("Unable to connect to {}: {}", issuerHost, t.getMessage());
+        channelOpenFuture.setException(t);
+      }
+    });
   }
 
   /*
@@ -238,22 +618,18 @@ public class StroemClientTcpConnection {
       // PaymentChannel protobuf objects need to be transformed to Stroem protobuf and sent via TCP.
       @Override
       public void sendToServer(Protos.TwoWayChannelMessage paymentMsg) {
-        log.debug("1. Sending Payment Channel message of type: " + paymentMsg.getType());
-        StroemProtos.PaymentChannelMessage stroemPaymentChannelMsg = StroemProtos.PaymentChannelMessage.newBuilder()
-            .setPaymentChannelMessage(paymentMsg.toByteString()).build();
-        log.debug("2. ");
-        StroemMessage msg = StroemMessage.newBuilder()
-            .setType(StroemMessage.MessageType.PAYMENTCHANNEL_MESSAGE)
-            .setPaymentChannelMessage(stroemPaymentChannelMsg)
-            .build();
-        log.debug("3. ");
-          wireParser.write(msg);
-        log.debug("4. Written to protobuf parser.");
+        if (log.isDebugEnabled()) {
+          log.debug("Sending Payment Channel message of type: " + paymentMsg.getType());
+        }
+        // Written straight into the outbound frame, without building the Stroem envelope messages
+        wireParser.writePaymentChannelMessage(paymentMsg);
       }
 
       // This method is a bit messy, There might be a simpler way to figure out what error case should go where.
       @Override
       public void destroyConnection(PaymentChannelCloseException.CloseReason reason) {
+        closeReason = reason;
+        closingLocally = true;
         if(channelOpenFuture.isDone()) {
           if (reason == PaymentChannelCloseException.CloseReason.CLIENT_REQUESTED_CLOSE) {
             if (settling) {
@@ -290,17 +666,40 @@ public class StroemClientTcpConnection {
 
       @Override
       public void channelOpen(boolean wasInitiated) {
-        log.info("Payment channel {}", wasInitiated ? "was initiated." : "found.");
-        stroemStep = StroemStep.CONNECTION_OPEN;
-        freshChannel = wasInitiated;
-        wireParser.setSocketTimeout(0); // We will set the timeout on the socket instead
-        channelOpenFuture.set(StroemClientTcpConnection.this);
+        channelOpened(wasInitiated);
       }
     };
 
     return clientConnection;
   }
 
+  /*
+   * Called by the payment channel client when the channel is open.
+   */
+  private void channelOpened(boolean wasInitiated) {
+    log.info("Payment channel {}", wasInitiated ? "was initiated." : "found.");
+    connectTimings.channelOpen();
+    cancelPhaseDeadline();
+    log.debug("Channel setup timings: {}", connectTimings);
+    freshChannel = wasInitiated;
+    // Before the step is advanced, a payment may be made as soon as isOpen() returns true
+    paymentQueue = new StroemPaymentQueue(paymentChannelClient, userKeySetup, maxQueuedPayments);
+    lastUsedNanos = System.nanoTime();
+    stateMachine.advance(StroemStep.CONNECTION_OPEN);
+    wireParser.setSocketTimeout(0); // No timeout while idle, see updateAckDeadline()
+    channelOpenFuture.set(this);
+  }
+
+  /**
+   * Opens the channel as if the issuer had opened it, so that tests can use an open connection without a payment
+   * channel server. The transport connection must be open.
+   */
+  @VisibleForTesting
+  void channelOpenedForTesting() {
+    stateMachine.force(StroemStep.WAITING_FOR_PAYMENT_CHANNEL_INITIATE);
+    channelOpened(true);
+  }
+
   /*
    * (Stroem protobuf -> Java)
    * Returns a Listener, which handles messages coming from the network, in this case StroemMessage (protobuf).
@@ -312,8 +711,25 @@ public class StroemClientTcpConnection {
       // The initStep field might change depending on the received message.
       @Override
       public void messageReceived(ProtobufParser<StroemMessage> handler, StroemMessage msg) {
+        if (msg.getType() == StroemMessage.MessageType.PAYMENTCHANNEL_MESSAGE) {
+          channelMessageReceived = true;
+        }
+        long rttMillis = wireParser.takeRttSampleMillis();
+        if (rttMillis >= 0) {
+          rttEstimator.addSample(rttMillis);
+          if (!channelOpenFuture.isDone()) {
+            wireParser.setSocketTimeout(getAdaptiveReadTimeoutMillis());
+          }
+        }
         try {
-          stroemStep = stroemMessageReceiver.receiveMessage(msg, stroemStep);
+          StroemStep previousStep = stateMachine.get();
+          StroemStep newStep = stroemMessageReceiver.receiveMessage(msg, previousStep);
+          // The payment channel messages may have moved the step themselves (see channelOpen())
+          if (newStep != previousStep && stateMachine.transition(previousStep, newStep)
+              && newStep == StroemStep.WAITING_FOR_PAYMENT_CHANNEL_INITIATE) {
+            connectTimings.handshakeDone();
+            startPhaseDeadline(StroemConnectTimings.Phase.INITIATE, timeouts.getInitiateTimeoutMillis());
+          }
         } catch (WrongStroemServerVersionException e) {
           // This happens before the payment channel has begun INITIATE.
           log.warn("Incorrect server version: " + e.getMessage());
@@ -325,6 +741,13 @@ public class StroemClientTcpConnection {
         } catch (StroemProtocolException e) {
           // This could happen anytime,
           log.error("A Stroem protocol error occurred: " + e.getCode().name());
+          if (pipelinedHandshake && !channelOpenFuture.isDone()) {
+            // The issuer may not accept the early payment channel message
+            checkPipelineRejected();
+            closingLocally = true;
+            channelOpenFuture.setException(e);
+            handler.closeConnection();
+          }
           if(channelOpenFuture.isDone()) {
             channelOpenFuture.setException(e);
           }
@@ -334,28 +757,52 @@ public class StroemClientTcpConnection {
 
       @Override
       public void connectionOpen(ProtobufParser<StroemMessage> handler) {
-        if(stroemStep != StroemStep.START) {
-          log.warn("When a TCP channel just opened the Stroem init step should not be " + stroemStep.name());
-          stroemStep = StroemStep.START;
+        if (channelOpenFuture.isDone()) {
+          // The connect deadline has passed
+          log.info("TCP connection opened after the setup had failed, closing it");
+          closingLocally = true;
+          handler.closeConnection();
+          return;
+        }
+        connectTimings.connected();
+        startPhaseDeadline(StroemConnectTimings.Phase.HANDSHAKE, timeouts.getHandshakeTimeoutMillis());
+
+        if (!stateMachine.transition(StroemStep.START, StroemStep.WAITING_FOR_SERVER_STROM_VERSION)) {
+          log.warn("When a TCP channel just opened the Stroem init step should not be " + stateMachine.get().name());
+          stateMachine.force(StroemStep.WAITING_FOR_SERVER_STROM_VERSION);
         }
 
         // First thing to do is to send the Stroem Version
-        StroemProtos.StroemClientVersion stroemVersionMsg = StroemProtos.StroemClientVersion.newBuilder()
-            .setVersion(CLIENT_STROEM_VERSION).build();
-        StroemMessage msg = StroemMessage.newBuilder()
-            .setType(StroemMessage.MessageType.STROEM_CLIENT_VERSION)
-            .setStroemClientVersion(stroemVersionMsg)
-            .build();
-        wireParser.write(msg);
-
-        stroemStep = StroemStep.WAITING_FOR_SERVER_STROM_VERSION;
+        wireParser.write(clientVersionMessage());
+
+        if (StroemPipelinedHandshake.isEnabledFor(issuerHost)) {
+          // Send the payment channel CLIENT_VERSION right away, the issuer reads it after our Stroem version
+          pipelinedHandshake = true;
+          stroemMessageReceiver.openPaymentChannel();
+        }
         // Now we will wait for the server response (see StroemMessageReceiver.receiveStroemVersion())
       }
 
       @Override
       public void connectionClosed(ProtobufParser<StroemMessage> handler) {
+        checkPipelineRejected();
         paymentChannelClient.connectionClosed();
-        stroemStep = StroemStep.CONNECTION_CLOSED;
+        if (closeReason == null) {
+          closeReason = PaymentChannelCloseException.CloseReason.CONNECTION_CLOSED;
+        }
+        stateMachine.advance(StroemStep.CONNECTION_CLOSED);
+        cancelPhaseDeadline();
+        connectionClosedFuture.set(StroemClientTcpConnection.this);
+        StroemPaymentQueue queue = paymentQueue;
+        if (queue != null) {
+          queue.failAll(new PaymentChannelCloseException("The TCP socket died",
+              PaymentChannelCloseException.CloseReason.CONNECTION_CLOSED));
+        }
+
+        if (settling && !settlementFuture.isDone()) {
+          settlementFuture.setException(new PaymentChannelCloseException("The TCP socket died before the channel was settled",
+              PaymentChannelCloseException.CloseReason.CONNECTION_CLOSED));
+        }
 
         if(!channelOpenFuture.isDone()) {
           // If this happens when the channel opens we need to mark this as an error.
@@ -368,6 +815,18 @@ public class StroemClientTcpConnection {
     return stroemMessageListener;
   }
 
+  /*
+   * Called when the issuer fails the setup. If that follows the early payment channel CLIENT_VERSION without an answer
+   * to it, the issuer may not accept the pipelined handshake: the host gets the sequential one for a while.
+   */
+  private void checkPipelineRejected() {
+    if (pipelinedHandshake && !channelMessageReceived && !closingLocally && !wireParser.hasTimedOut()
+        && !channelOpenFuture.isDone()) {
+      pipelineRejected = true;
+      StroemPipelinedHandshake.failed(issuerHost);
+    }
+  }
+
 
 
 
@@ -383,6 +842,153 @@ public class StroemClientTcpConnection {
     return channelOpenFuture;
   }
 
+  /**
+   * <p>Gets a future which returns this when the TCP connection has been closed, regardless of the reason.</p>
+   *
+   * <p>After this future completes the connection cannot be used anymore, a new one must be created.</p>
+   */
+  public ListenableFuture<StroemClientTcpConnection> getConnectionClosedFuture() {
+    return connectionClosedFuture;
+  }
+
+  /**
+   * @return Why the payment channel was closed, or null if it has not been closed.
+   *         {@link PaymentChannelCloseException.CloseReason#CONNECTION_CLOSED} means that the socket died without
+   *         any close message, so the channel can be resumed on a new connection.
+   */
+  @Nullable
+  public PaymentChannelCloseException.CloseReason getCloseReason() {
+    return closeReason;
+  }
+
+  /**
+   * @return The current step of the Stroem protocol on this connection.
+   */
+  public StroemStep getStroemStep() {
+    return stateMachine.get();
+  }
+
+  /**
+   * Adds a listener for the promissory notes pushed by the issuer. It is called on bitcoinj's user thread
+   * ({@link Threading#USER_THREAD}), and may be {@link StroemPromissoryNoteQueue#DEFAULT_CAPACITY} notes behind
+   * before notes are dropped.
+   */
+  public StroemPromissoryNoteQueue addPromissoryNoteListener(StroemPromissoryNoteListener listener) {
+    return addPromissoryNoteListener(listener, Threading.USER_THREAD, StroemPromissoryNoteQueue.DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Adds a listener for the promissory notes pushed by the issuer. The network thread never waits for the listener,
+   * the notes are queued for it (see {@link StroemPromissoryNoteQueue}).
+   *
+   * @param listener Gets the notes, one at a time and in order
+   * @param executor Runs the listener
+   * @param capacity How many notes the listener may be behind before notes are dropped
+   * @return The queue of the listener, with statistics
+   */
+  public StroemPromissoryNoteQueue addPromissoryNoteListener(StroemPromissoryNoteListener listener, Executor executor,
+                                                             int capacity) {
+    StroemPromissoryNoteQueue queue = new StroemPromissoryNoteQueue(this, listener, executor, capacity);
+    promissoryNoteQueues.add(queue);
+    return queue;
+  }
+
+  public void removePromissoryNoteListener(StroemPromissoryNoteListener listener) {
+    for (StroemPromissoryNoteQueue queue : promissoryNoteQueues) {
+      if (queue.getListener() == listener) {
+        promissoryNoteQueues.remove(queue);
+      }
+    }
+  }
+
+  /**
+   * Adds a listener that is told about every change of the {@link StroemStep} of this connection.
+   */
+  public void addStepListener(StroemStepListener listener) {
+    stateMachine.addListener(listener);
+  }
+
+  public void removeStepListener(StroemStepListener listener) {
+    stateMachine.removeListener(listener);
+  }
+
+  /**
+   * @return true if the payment channel is open and the connection can be used for payments
+   *         (a payment might be in process, in which case incrementPayment() will wait for it).
+   */
+  public boolean isOpen() {
+    switch (stateMachine.get()) {
+      case CONNECTION_OPEN:
+      case WAITING_FOR_PAYMENT_ACK:
+      case PAYMENT_DONE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return The time since a payment was last made or acked on this connection (or since the channel was opened).
+   *         Used by {@link StroemKeepalive} to find connections to close.
+   */
+  public long getIdleMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastUsedNanos);
+  }
+
+  /**
+   * @return The time since anything was last received from the issuer.
+   */
+  public long getMillisSinceLastReceive() {
+    return wireParser.getMillisSinceLastReceive();
+  }
+
+  /**
+   * @return The real ID of the payment channel (see {@link StroemId#getRealPaymentChannelServerId()}).
+   */
+  public Sha256Hash getServerIdHash() {
+    return serverIdHash;
+  }
+
+  /**
+   * Sets how many payments that can be queued on this connection at the same time, the one waiting for the issuer's
+   * ack included. This bounds the queue, not the wire: bitcoinj sends one increment at a time, so at most one payment
+   * is waiting for its ack. Callers of incrementPayment() will wait while the queue is full.
+   *
+   * @param maxQueuedPayments The size of the queue, default is {@link #DEFAULT_MAX_QUEUED_PAYMENTS}
+   */
+  public void setMaxQueuedPayments(int maxQueuedPayments) {
+    checkArgument(maxQueuedPayments > 0, "Must allow at least one queued payment");
+    this.maxQueuedPayments = maxQueuedPayments;
+    StroemPaymentQueue queue = paymentQueue;
+    if (queue != null) {
+      queue.setMaxQueuedPayments(maxQueuedPayments);
+    }
+  }
+
+  /**
+   * @return The outbound queue, use it to set the limits, or to be told when the issuer is not keeping up
+   */
+  public StroemWriteQueue getWriteQueue() {
+    return wireParser.getWriteQueue();
+  }
+
+  /**
+   * Sets what {@link #incrementPayment(byte[], ECKey)} does when the outbound queue is full: wait until it is
+   * writable again (the default), or fail at once. {@link #incrementPaymentAsync(byte[], ECKey)} always fails at once.
+   * A payment that fails because of a full queue fails with a {@link StroemPaymentNotSentException}.
+   */
+  public void setOverflowPolicy(StroemWriteQueue.OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = checkNotNull(overflowPolicy);
+  }
+
+  /**
+   * @return The number of payments that are queued or waiting for the issuer's ack.
+   */
+  public int getQueuedPaymentCount() {
+    StroemPaymentQueue queue = paymentQueue;
+    return queue == null ? 0 : queue.size();
+  }
+
   /**
    * Increments the total value which we pay the server.
    * A. This method will call the issuer and pay the issuer using the payment channel.
@@ -390,6 +996,9 @@ public class StroemClientTcpConnection {
    * C. A tailor made Negotiator object will be returned, and the wallet developer is supposed to use it for negotiation.
    * D. When negotiation has been done, the wallet developer should send the new promissory note to the merchant.
    *
+   * Many threads can call this method at the same time. The payments are queued and sent to the issuer in order,
+   * each one as soon as the previous one has been acked (see {@link #setMaxQueuedPayments(int)}).
+   *
    * @param merchantPaymentDetailsBytes The raw data from the "stroem_message" field in the PaymentDetails protobuf message
    *                                    received from the merchant.
    * @param myTransactionKey - A (potentially new) key pair that will be used during this transaction. Must be used to sign the
@@ -402,41 +1011,166 @@ public class StroemClientTcpConnection {
    *                               (see {@link StroemClientTcpConnection#getChannelOpenFuture()} for the second)
 
    */
-  public synchronized StroemNegotiator incrementPayment(
+  public StroemNegotiator incrementPayment(
       byte[] merchantPaymentDetailsBytes,
       ECKey myTransactionKey
   ) throws ValueOutOfRangeException, ExecutionException,  InterruptedException {
+    try {
+      return incrementPayment(merchantPaymentDetailsBytes, myTransactionKey, true).get();
+    } catch (ExecutionException e) {
+      // Throw the same exceptions as PaymentChannelClient.incrementPayment() would
+      if (e.getCause() instanceof ValueOutOfRangeException) {
+        throw (ValueOutOfRangeException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
 
-    log.debug("1. Begin incrementPayment.");
-    verifyStroemState();
-    this.stroemStep = StroemStep.WAITING_FOR_PAYMENT_ACK;
+  /**
+   * Same as {@link #incrementPayment(byte[], ECKey)}, but the calling thread is never blocked.
+   *
+   * The issuer's ack is handled (the promissory note is parsed and validated) on the bitcoinj thread pool.
+   * If the payment queue is full (see {@link #setMaxQueuedPayments(int)}) the future fails with an IllegalStateException.
+   *
+   * @param merchantPaymentDetailsBytes The raw data from the "stroem_message" field in the PaymentDetails protobuf message
+   *                                    received from the merchant.
+   * @param myTransactionKey - A (potentially new) key pair that will be used during this transaction. Must be used to sign the
+   *                later.
+   * @return A future that returns the StroemNegotiator, or fails with the same exceptions incrementPayment() throws.
+   */
+  public ListenableFuture<StroemNegotiator> incrementPaymentAsync(byte[] merchantPaymentDetailsBytes, ECKey myTransactionKey) {
+    try {
+      return incrementPayment(merchantPaymentDetailsBytes, myTransactionKey, false);
+    } catch (InterruptedException e) {
+      // Cannot happen, since we don't wait for room in the payment queue
+      return Futures.immediateFailedFuture(e);
+    }
+  }
 
-    ECPoint myPublicKey = myTransactionKey.getPubKeyPoint();
-    JavaToScalaBridge.PromissoryNoteRequestReturnBundle returnBundle = JavaToScalaBridge.buildPromissoryNoteRequestProto(merchantPaymentDetailsBytes, myPublicKey);
+  /*
+   * The payment pipeline: build the request -> queue the increment -> (ack) -> parse and validate the promissory note.
+   */
+  private ListenableFuture<StroemNegotiator> incrementPayment(
+      byte[] merchantPaymentDetailsBytes,
+      ECKey myTransactionKey,
+      boolean waitForRoom
+  ) throws InterruptedException {
 
-    log.debug("2. Verify that the merchant has the correct issuer public key.");
-    StroemEntity realIssuerProtoEntity = this.stroemMessageReceiver.getIssuerGivenEntity();
-    verifyIssuerEntity(realIssuerProtoEntity.getName(), realIssuerProtoEntity.getPublicKey(), returnBundle);
+    log.debug("1. Begin incrementPayment.");
+    final ECPoint myPublicKey = myTransactionKey.getPubKeyPoint();
+    final JavaToScalaBridge.PromissoryNoteRequestReturnBundle returnBundle;
+    try {
+      verifyStroemState();
+      returnBundle = JavaToScalaBridge.buildPromissoryNoteRequestProto(merchantPaymentDetailsBytes, myPublicKey);
+
+      log.debug("2. Verify that the merchant has the correct issuer public key.");
+      StroemEntity realIssuerProtoEntity = this.stroemMessageReceiver.getIssuerGivenEntity();
+      verifyIssuerEntity(realIssuerProtoEntity.getName(), realIssuerProtoEntity.getPublicKey(),
+          returnBundle.getIssuerName(), returnBundle.getIssuerPublicKey().getEncoded());
+    } catch (RuntimeException e) {
+      return Futures.immediateFailedFuture(e);
+    }
 
     StroemProtos.StroemMessage messageRequestProto = returnBundle.getPromissoryNoteRequestProto();
     Coin sizeFromMerchant = returnBundle.getAmount();
 
-    log.debug("3. About to pay the issuer (do an incrementPayment call).");
-    ListenableFuture<PaymentIncrementAck> ackFuture = paymentChannelClient.incrementPayment(sizeFromMerchant, messageRequestProto.toByteString(), this.userKeySetup);
+    log.debug("3. About to pay the issuer (queue an incrementPayment call).");
+    ListenableFuture<PaymentIncrementAck> ackFuture = submitIncrement(sizeFromMerchant, messageRequestProto.toByteString(), waitForRoom);
+
+    return Futures.transform(ackFuture, new Function<PaymentIncrementAck, StroemNegotiator>() {
+      @Override
+      public StroemNegotiator apply(PaymentIncrementAck ack) {
+        log.debug("4. Ack received. ");
+
+        log.debug("5. Prepare for negotiation. ");
+        ByteString infoByteString = ack.getInfo();
+        PaymentInstrument.PromissoryNote promissoryNote = JavaToScalaBridge.buildPromissoryNoteFromBytes(infoByteString);
+        ECPoint merchantPublicKey = returnBundle.getMerchantPublicKey();
+        final PaymentInstrument.PaymentInfo paymentInfo = Messages.displayTextToPaymentInfo(returnBundle.getDisplayText());
+        PaymentInstrument.NegotiateInfo negotiateInfo = JavaToScalaBridge.validateForNegotiate(promissoryNote, myPublicKey, merchantPublicKey, paymentInfo.bytes());
+
+        log.debug("6. End (return StroemNegotiator).");
+        return new StroemNegotiator(negotiateInfo);
+      }
+    }, Threading.THREAD_POOL);
+  }
+
+  /**
+   * Increments the payment channel by the amount, without a promissory note request. This is for issuers that take
+   * plain value increments (e.g. metering paid to the issuer itself), and is what {@link StroemPaymentCoalescer}
+   * sends. The calling thread is never blocked.
+   *
+   * @param amount The amount to add to the channel
+   * @param info The info sent to the issuer with the increment
+   * @return A future that returns the issuer's ack
+   */
+  public ListenableFuture<PaymentIncrementAck> incrementPaymentValueAsync(Coin amount, ByteString info) {
+    try {
+      verifyStroemState();
+      return submitIncrement(amount, info, false);
+    } catch (RuntimeException e) {
+      return Futures.immediateFailedFuture(e);
+    } catch (InterruptedException e) {
+      // Cannot happen, since we don't wait for room
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  /*
+   * Queues the increment, unless the outbound queue is full (see setOverflowPolicy()).
+   */
+  private ListenableFuture<PaymentIncrementAck> submitIncrement(Coin amount, ByteString info, boolean waitForRoom)
+      throws InterruptedException {
+    StroemWriteQueue writeQueue = wireParser.getWriteQueue();
+    if (!writeQueue.isWritable()) {
+      if (waitForRoom && overflowPolicy == StroemWriteQueue.OverflowPolicy.BLOCK) {
+        writeQueue.awaitWritable();
+      } else {
+        return Futures.immediateFailedFuture(new StroemPaymentNotSentException(
+            new IOException("The outbound queue is full")));
+      }
+    }
 
-    PaymentIncrementAck ack = ackFuture.get();
-    log.debug("4. Ack received. ");
-    this.stroemStep = StroemStep.PAYMENT_DONE;
+    final StroemPaymentQueue queue = this.paymentQueue;
+    ListenableFuture<PaymentIncrementAck> ackFuture = queue.submit(amount, info, waitForRoom);
+    stateMachine.advance(StroemStep.WAITING_FOR_PAYMENT_ACK);
+    lastUsedNanos = System.nanoTime();
+    updateAckDeadline(queue);
+    ackFuture.addListener(new Runnable() {
+      @Override
+      public void run() {
+        markPaymentDone(queue);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    return ackFuture;
+  }
 
-    log.debug("5. Prepare for negotiation. ");
-    ByteString infoByteString = ack.getInfo();
-    PaymentInstrument.PromissoryNote promissoryNote = JavaToScalaBridge.buildPromissoryNoteFromBytes(infoByteString);
-    ECPoint merchantPublicKey = returnBundle.getMerchantPublicKey();
-    final PaymentInstrument.PaymentInfo paymentInfo = Messages.displayTextToPaymentInfo(returnBundle.getDisplayText());
-    PaymentInstrument.NegotiateInfo negotiateInfo = JavaToScalaBridge.validateForNegotiate(promissoryNote, myPublicKey, merchantPublicKey, paymentInfo.bytes());
+  /*
+   * The connection is back in PAYMENT_DONE when all queued payments have been acked.
+   */
+  private void markPaymentDone(StroemPaymentQueue queue) {
+    lastUsedNanos = System.nanoTime();
+    updateAckDeadline(queue);
+    if (queue.isIdle() && stateMachine.transition(StroemStep.WAITING_FOR_PAYMENT_ACK, StroemStep.PAYMENT_DONE)
+        && !queue.isIdle()) {
+      // A payment was submitted after the check, it may have seen WAITING_FOR_PAYMENT_ACK and left the step alone
+      stateMachine.transition(StroemStep.PAYMENT_DONE, StroemStep.WAITING_FOR_PAYMENT_ACK);
+    }
+  }
 
-    log.debug("6. End (return StroemNegotiator).");
-    return new StroemNegotiator(negotiateInfo);
+  /*
+   * While payments are waiting for acks the issuer must answer within the read timeout, or the connection is closed
+   * (and the payments fail), so a dead connection is noticed instead of hanging. No timeout while idle.
+   */
+  private void updateAckDeadline(StroemPaymentQueue queue) {
+    ackDeadlineLock.lock();
+    try {
+      wireParser.setSocketTimeout(queue.isIdle() ? 0 : getAdaptiveReadTimeoutMillis());
+    } finally {
+      ackDeadlineLock.unlock();
+    }
   }
 
   /**
@@ -445,23 +1179,26 @@ public class StroemClientTcpConnection {
    *
    * @param realIssuerName
    * @param realIssuerPublicKey
-   * @param returnBundle
+   * @param merchantIssuerName The issuer named in the merchant's payment details
+   * @param merchantIssuerPublicKey The issuer's public key in the merchant's payment details
    */
-  private void verifyIssuerEntity(String realIssuerName, byte[] realIssuerPublicKey, JavaToScalaBridge.PromissoryNoteRequestReturnBundle returnBundle) {
-    if (realIssuerName.equals(returnBundle.getIssuerName())) {
-      byte[] publicKey = returnBundle.getIssuerPublicKey().getEncoded();
-      if(Arrays.equals(publicKey, realIssuerPublicKey)) {
+  @VisibleForTesting
+  static void verifyIssuerEntity(String realIssuerName, byte[] realIssuerPublicKey, String merchantIssuerName,
+                                 byte[] merchantIssuerPublicKey) {
+    if (realIssuerName.equals(merchantIssuerName)) {
+      if(Arrays.equals(merchantIssuerPublicKey, realIssuerPublicKey)) {
         return; // All OK. Do nothing
       } else {
         throw new IllegalStateException("Merchant's key is old, must contact the issuer to get the correct one");
       }
     } else {
-      throw new IllegalStateException("Issuer from merchant (" + returnBundle.getIssuerName() + ") is not same as issuers name (" + realIssuerName + ")");
+      throw new IllegalStateException("Issuer from merchant (" + merchantIssuerName + ") is not same as issuers name (" + realIssuerName + ")");
     }
   }
 
   private void verifyStroemState() {
-    switch (this.stroemStep) {
+    StroemStep step = stateMachine.get();
+    switch (step) {
       case CONNECTION_OPEN:
         log.debug("This is the first payment on this TCP session");
         break;
@@ -469,11 +1206,12 @@ public class StroemClientTcpConnection {
         log.debug("Last payment is completed, OK to make a new payment.");
         break;
       case WAITING_FOR_PAYMENT_ACK:
-        throw new IllegalStateException("The last payment has not yet been completed. Cannot start new."); // Should not be possible since synchronized
+        log.debug("Payments are in process, this payment will be queued.");
+        break;
       case CONNECTION_CLOSED:
         throw new IllegalStateException("Cannot make payment on a closed channel");
       default:
-        throw new IllegalStateException("Cannot make payments when the connection's state is: " + this.stroemStep);
+        throw new IllegalStateException("Cannot make payments when the connection's state is: " + step);
     }
   }
 
@@ -513,6 +1251,13 @@ public class StroemClientTcpConnection {
    * unplugs the network socket and marks the stored channel state as inactive).
    */
   public void disconnectWithoutSettlement() {
+    if (stateMachine.get() == StroemStep.START) {
+      // Still connecting, connectionOpen() will close the socket when the connect completes.
+      channelOpenFuture.setException(new PaymentChannelCloseException("Disconnected before the TCP connection was open",
+          PaymentChannelCloseException.CloseReason.CONNECTION_CLOSED));
+      return;
+    }
+    closingLocally = true;
     wireParser.closeConnection();
   }
 }
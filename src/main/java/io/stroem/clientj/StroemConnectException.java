@@ -0,0 +1,28 @@
+package io.stroem.clientj;
+
+/**
+ * Thrown when a connection could not open the payment channel. Tells in which phase the setup failed, and how long
+ * each phase took.
+ */
+public class StroemConnectException extends Exception {
+
+  private final StroemConnectTimings.Phase phase;
+  private final StroemConnectTimings timings;
+
+  public StroemConnectException(Throwable cause, StroemConnectTimings timings) {
+    super("Failed to open payment channel in phase " + timings.getCurrentPhase() + " (" + timings + "): " + cause.getMessage(), cause);
+    this.phase = timings.getCurrentPhase();
+    this.timings = timings;
+  }
+
+  /**
+   * @return The phase the connection setup failed in.
+   */
+  public StroemConnectTimings.Phase getPhase() {
+    return phase;
+  }
+
+  public StroemConnectTimings getTimings() {
+    return timings;
+  }
+}
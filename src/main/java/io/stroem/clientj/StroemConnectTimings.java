@@ -0,0 +1,101 @@
+package io.stroem.clientj;
+
+/**
+ * <p>Records how long each phase of the connection setup took, used to diagnose slow issuers.</p>
+ *
+ * <p>The phases are described in {@link StroemConnectionTimeouts}.</p>
+ */
+public class StroemConnectTimings {
+
+  public static enum Phase {
+    CONNECT,
+    HANDSHAKE,
+    INITIATE,
+    DONE,
+  }
+
+  // System.nanoTime() when each phase ended, 0 if not reached
+  private volatile long startNanos;
+  private volatile long connectedNanos;
+  private volatile long handshakeDoneNanos;
+  private volatile long channelOpenNanos;
+
+  void start() {
+    startNanos = System.nanoTime();
+  }
+
+  void connected() {
+    connectedNanos = System.nanoTime();
+  }
+
+  void handshakeDone() {
+    handshakeDoneNanos = System.nanoTime();
+  }
+
+  void channelOpen() {
+    channelOpenNanos = System.nanoTime();
+  }
+
+  /**
+   * @return The phase the connection setup is in (or failed in)
+   */
+  public Phase getCurrentPhase() {
+    if (channelOpenNanos != 0) {
+      return Phase.DONE;
+    } else if (handshakeDoneNanos != 0) {
+      return Phase.INITIATE;
+    } else if (connectedNanos != 0) {
+      return Phase.HANDSHAKE;
+    } else {
+      return Phase.CONNECT;
+    }
+  }
+
+  /**
+   * @return Milliseconds spent on the TCP connect, or -1 if not done
+   */
+  public long getConnectMillis() {
+    return millisBetween(startNanos, connectedNanos);
+  }
+
+  /**
+   * @return Milliseconds spent on the Stroem version handshake, or -1 if not done
+   */
+  public long getHandshakeMillis() {
+    return millisBetween(connectedNanos, handshakeDoneNanos);
+  }
+
+  /**
+   * @return Milliseconds spent on the payment channel initiate (or resume), or -1 if not done
+   */
+  public long getInitiateMillis() {
+    return millisBetween(handshakeDoneNanos, channelOpenNanos);
+  }
+
+  /**
+   * @return Milliseconds since the setup started, until the channel was opened (or until now if not open)
+   */
+  public long getTotalMillis() {
+    long end = channelOpenNanos != 0 ? channelOpenNanos : System.nanoTime();
+    return millisBetween(startNanos, end);
+  }
+
+  private static long millisBetween(long fromNanos, long toNanos) {
+    if (fromNanos == 0 || toNanos == 0) {
+      return -1;
+    }
+    return (toNanos - fromNanos) / 1000000;
+  }
+
+  @Override
+  public String toString() {
+    return "connect=" + format(getConnectMillis()) +
+        ", handshake=" + format(getHandshakeMillis()) +
+        ", initiate=" + format(getInitiateMillis()) +
+        ", total=" + format(getTotalMillis());
+  }
+
+  private static String format(long millis) {
+    return millis < 0 ? "(not done)" : millis + " ms";
+  }
+}
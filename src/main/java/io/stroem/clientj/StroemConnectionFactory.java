@@ -0,0 +1,23 @@
+package io.stroem.clientj;
+
+import io.stroem.clientj.domain.StroemId;
+import org.bitcoinj.protocols.channels.ValueOutOfRangeException;
+
+import java.io.IOException;
+
+/**
+ * Creates connections to payment channels, used by {@link StroemClientConnectionPool} and
+ * {@link StroemConnectionSupervisor}. A typical implementation calls one of the {@link StroemClientTcpConnection}
+ * constructors with the wallet and keys of the application.
+ *
+ * <p>For issuers with several endpoints (see {@link io.stroem.clientj.domain.StroemPaymentChannel#getEndpoints()}),
+ * give the connections a {@link StroemEndpointRacingTransport} that has the endpoints of the channels.</p>
+ */
+public interface StroemConnectionFactory {
+
+  /**
+   * @param stroemId The id of the payment channel, the same id must always give a connection to the same channel.
+   * @return A new connection, that is opening the payment channel.
+   */
+  StroemClientTcpConnection create(StroemId stroemId) throws IOException, ValueOutOfRangeException;
+}
@@ -0,0 +1,324 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import io.stroem.clientj.domain.StroemId;
+import io.stroem.clientj.domain.StroemNegotiator;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.protocols.channels.PaymentChannelCloseException;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Keeps a connection to one payment channel open, by reconnecting when the socket dies.</p>
+ *
+ * <p>Reconnects are done with jittered exponential backoff (see {@link StroemBackoff}), using the same
+ * {@link StroemId}, so bitcoinj will resume the stored payment channel. There will be no reconnect if the channel was
+ * closed for another reason than a dead socket (e.g. settlement, or an error from the issuer).</p>
+ *
+ * <p>Payments made through {@link #incrementPaymentAsync(byte[], ECKey)} that were queued but never sent to the issuer
+ * when the socket died are handled according to the {@link PendingPaymentPolicy}. Payments that were sent but not
+ * acked always fail, since we cannot know if the issuer got them.</p>
+ *
+ * <p>The reconnects create their connections on the executor of {@link #setExecutor} (bitcoinj's user thread by
+ * default). No lock is held while a connection is created.</p>
+ */
+public class StroemConnectionSupervisor {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemConnectionSupervisor.class);
+
+  public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 500;
+  public static final long DEFAULT_MAX_BACKOFF_MILLIS = 60 * 1000;
+
+  /**
+   * What to do with payments that have not been sent to the issuer when the connection is lost.
+   */
+  public static enum PendingPaymentPolicy {
+    RESUBMIT,   // Wait for the reconnect and make the payment on the new connection
+    FAIL_FAST,  // Fail the payment at once (also new payments will fail until we are reconnected)
+  }
+
+  private final StroemId stroemId;
+  private final StroemConnectionFactory connectionFactory;
+  private final PendingPaymentPolicy pendingPaymentPolicy;
+  private final StroemBackoff backoff;
+  private volatile Executor executor = Threading.USER_THREAD;
+
+  // Guarded by "this"
+  private StroemClientTcpConnection connection;
+  private SettableFuture<StroemClientTcpConnection> openFuture = SettableFuture.create();
+  private boolean reconnecting = false;
+  private boolean stopped = false;
+  private int reconnectCount = 0;
+
+  /**
+   * @param stroemId The id of the payment channel
+   * @param connectionFactory Creates the connections, must give a connection to the same channel every time.
+   * @param pendingPaymentPolicy What to do with payments that were not sent when the connection was lost.
+   */
+  public StroemConnectionSupervisor(StroemId stroemId, StroemConnectionFactory connectionFactory,
+                                    PendingPaymentPolicy pendingPaymentPolicy) {
+    this(stroemId, connectionFactory, pendingPaymentPolicy,
+        new StroemBackoff(DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS));
+  }
+
+  /**
+   * @param stroemId The id of the payment channel
+   * @param connectionFactory Creates the connections, must give a connection to the same channel every time.
+   * @param pendingPaymentPolicy What to do with payments that were not sent when the connection was lost.
+   * @param backoff The delays between reconnect attempts
+   */
+  public StroemConnectionSupervisor(StroemId stroemId, StroemConnectionFactory connectionFactory,
+                                    PendingPaymentPolicy pendingPaymentPolicy, StroemBackoff backoff) {
+    this.stroemId = stroemId;
+    this.connectionFactory = connectionFactory;
+    this.pendingPaymentPolicy = pendingPaymentPolicy;
+    this.backoff = backoff;
+  }
+
+  /**
+   * @param executor Creates the connections of the reconnects. Not a network thread, creating a connection may
+   *                 connect.
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = checkNotNull(executor);
+  }
+
+  /**
+   * Opens the first connection.
+   *
+   * @return A future that returns the connection when the payment channel is open.
+   */
+  public ListenableFuture<StroemClientTcpConnection> start() {
+    ListenableFuture<StroemClientTcpConnection> firstOpen;
+    synchronized (this) {
+      // Also tells why, if the issuer is not worth a retry
+      firstOpen = openFuture;
+    }
+    connect();
+    return firstOpen;
+  }
+
+  /**
+   * <p>Gets the open connection. If we are reconnecting the future completes when the new connection is open.</p>
+   *
+   * <p>With the {@link PendingPaymentPolicy#FAIL_FAST} policy the future fails at once while we are reconnecting.</p>
+   */
+  public synchronized ListenableFuture<StroemClientTcpConnection> getConnection() {
+    if (stopped) {
+      return Futures.immediateFailedFuture(new IllegalStateException("The supervisor is stopped"));
+    }
+    if (reconnecting && pendingPaymentPolicy == PendingPaymentPolicy.FAIL_FAST) {
+      return Futures.immediateFailedFuture(new StroemPaymentNotSentException(
+          new IOException("Reconnecting to " + stroemId)));
+    }
+    return openFuture;
+  }
+
+  /**
+   * Makes a payment on the current connection (see {@link StroemClientTcpConnection#incrementPaymentAsync(byte[], ECKey)}).
+   * Payments that were not sent because the connection was lost are handled according to the policy.
+   */
+  public ListenableFuture<StroemNegotiator> incrementPaymentAsync(byte[] merchantPaymentDetailsBytes, ECKey myTransactionKey) {
+    SettableFuture<StroemNegotiator> result = SettableFuture.create();
+    submitPayment(merchantPaymentDetailsBytes, myTransactionKey, result);
+    return result;
+  }
+
+  /**
+   * Stops reconnecting and disconnects the current connection without settlement.
+   */
+  public void stop() {
+    StroemClientTcpConnection toClose;
+    synchronized (this) {
+      stopped = true;
+      toClose = connection;
+      openFuture.setException(new IllegalStateException("The supervisor is stopped"));
+    }
+    if (toClose != null) {
+      toClose.disconnectWithoutSettlement();
+    }
+  }
+
+  /**
+   * @return The number of reconnect attempts made since start.
+   */
+  public synchronized int getReconnectCount() {
+    return reconnectCount;
+  }
+
+  private void submitPayment(final byte[] merchantPaymentDetailsBytes, final ECKey myTransactionKey,
+                             final SettableFuture<StroemNegotiator> result) {
+    Futures.addCallback(getConnection(), new FutureCallback<StroemClientTcpConnection>() {
+      @Override
+      public void onSuccess(StroemClientTcpConnection openConnection) {
+        Futures.addCallback(openConnection.incrementPaymentAsync(merchantPaymentDetailsBytes, myTransactionKey),
+            new FutureCallback<StroemNegotiator>() {
+              @Override
+              public void onSuccess(StroemNegotiator negotiator) {
+                result.set(negotiator);
+              }
+
+              @Override
+              public void onFailure(Throwable t) {
+                if (t instanceof StroemPaymentNotSentException && pendingPaymentPolicy == PendingPaymentPolicy.RESUBMIT) {
+                  log.debug("Payment was not sent before the connection was lost, will resubmit");
+                  submitPayment(merchantPaymentDetailsBytes, myTransactionKey, result);
+                } else {
+                  result.setException(t);
+                }
+              }
+            });
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        result.setException(t);
+      }
+    });
+  }
+
+  /*
+   * Creates a connection, and watches it so we can reconnect when it is closed.
+   */
+  private void connect() {
+    synchronized (this) {
+      if (stopped) {
+        return;
+      }
+    }
+    // Not under the lock, the factory may block
+    final StroemClientTcpConnection newConnection;
+    try {
+      newConnection = connectionFactory.create(stroemId);
+    } catch (Exception e) {
+      log.warn("Unable to create connection to {}: {}", stroemId, e.getMessage());
+      synchronized (this) {
+        if (!stopped) {
+          scheduleReconnect();
+        }
+      }
+      return;
+    }
+    boolean wasStopped;
+    synchronized (this) {
+      wasStopped = stopped;
+      if (!wasStopped) {
+        connection = newConnection;
+      }
+    }
+    if (wasStopped) {
+      // Stopped while it was created
+      newConnection.disconnectWithoutSettlement();
+      return;
+    }
+
+    Futures.addCallback(newConnection.getChannelOpenFuture(), new FutureCallback<StroemClientTcpConnection>() {
+      @Override
+      public void onSuccess(StroemClientTcpConnection openConnection) {
+        synchronized (StroemConnectionSupervisor.this) {
+          if (connection != openConnection) {
+            return;
+          }
+          log.info("Payment channel {} is open", stroemId);
+          reconnecting = false;
+          backoff.reset();
+          openFuture.set(openConnection);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (isRetryable(t)) {
+          log.info("Unable to open payment channel {}: {}", stroemId, t.getMessage());
+          onConnectionLost(newConnection);
+        } else {
+          log.warn("Unable to open payment channel {}, will not retry: {}", stroemId, t.getMessage());
+          synchronized (StroemConnectionSupervisor.this) {
+            stopped = true;
+            if (connection == newConnection) {
+              connection = null;
+            }
+            openFuture.setException(t);
+          }
+          // The socket may still be open (e.g. after a wrong Stroem version)
+          newConnection.disconnectWithoutSettlement();
+        }
+      }
+    });
+
+    Futures.addCallback(newConnection.getConnectionClosedFuture(), new FutureCallback<StroemClientTcpConnection>() {
+      @Override
+      public void onSuccess(StroemClientTcpConnection closedConnection) {
+        if (closedConnection.getCloseReason() == PaymentChannelCloseException.CloseReason.CONNECTION_CLOSED) {
+          onConnectionLost(closedConnection);
+        } else {
+          log.info("Payment channel {} was closed ({}), will not reconnect", stroemId, closedConnection.getCloseReason());
+          synchronized (StroemConnectionSupervisor.this) {
+            stopped = true;
+          }
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        // Never fails
+      }
+    });
+  }
+
+  /*
+   * Called both when the channel fails to open and when the socket dies, only the first call per connection counts.
+   */
+  private synchronized void onConnectionLost(StroemClientTcpConnection lostConnection) {
+    if (connection != lostConnection || stopped) {
+      return;
+    }
+    connection = null;
+    if (openFuture.isDone()) {
+      openFuture = SettableFuture.create();
+    }
+    scheduleReconnect();
+  }
+
+  // Guarded by "this"
+  private void scheduleReconnect() {
+    reconnecting = true;
+    reconnectCount++;
+    long delayMillis = backoff.nextDelayMillis();
+    log.info("Will reconnect to {} in {} ms (attempt {})", stroemId, delayMillis, backoff.getAttempts());
+    StroemThreading.TIMER.schedule(new Runnable() {
+      @Override
+      public void run() {
+        // Not on the timer, creating the connection may block
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            connect();
+          }
+        });
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /*
+   * Network problems are worth a retry, errors from the issuer or the wallet are not.
+   */
+  private static boolean isRetryable(Throwable t) {
+    if (t instanceof IOException) {
+      return true;
+    } else if (t instanceof StroemProtocolException) {
+      return ((StroemProtocolException) t).getCode() == StroemProtocolException.Code.TIMEOUT;
+    } else if (t instanceof PaymentChannelCloseException) {
+      return ((PaymentChannelCloseException) t).getCloseReason() == PaymentChannelCloseException.CloseReason.CONNECTION_CLOSED;
+    }
+    return false;
+  }
+}
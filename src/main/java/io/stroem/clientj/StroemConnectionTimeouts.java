@@ -0,0 +1,78 @@
+package io.stroem.clientj;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The time budgets used when a {@link StroemClientTcpConnection} is set up.</p>
+ *
+ * <ul>
+ * <li>connect: until the TCP connection is open</li>
+ * <li>handshake: from TCP open until the issuer has answered with its Stroem version</li>
+ * <li>initiate: from the Stroem version until the payment channel is open (new or resumed)</li>
+ * <li>read: the longest time we wait for a message from the issuer before the channel is open, and for the ack of a
+ * payment after that. A timeout derived from the issuer's round trip time (see {@link StroemRttEstimator}) may make
+ * it longer, but not shorter.</li>
+ * </ul>
+ *
+ * <p>A value of 0 means that there is no deadline for the phase.</p>
+ */
+public class StroemConnectionTimeouts {
+
+  private final int connectTimeoutMillis;
+  private final long handshakeTimeoutMillis;
+  private final long initiateTimeoutMillis;
+  private final int readTimeoutMillis;
+
+  /**
+   * @param connectTimeoutMillis Deadline for the TCP connect
+   * @param handshakeTimeoutMillis Deadline for the Stroem version handshake
+   * @param initiateTimeoutMillis Deadline for the payment channel initiate (or resume), this should be large enough
+   *                              to accommodate ECDSA signature operations and network latency.
+   * @param readTimeoutMillis Read timeout on the socket until the channel is open, and while payments wait for acks
+   */
+  public StroemConnectionTimeouts(int connectTimeoutMillis, long handshakeTimeoutMillis, long initiateTimeoutMillis,
+                                  int readTimeoutMillis) {
+    checkArgument(connectTimeoutMillis >= 0 && handshakeTimeoutMillis >= 0 && initiateTimeoutMillis >= 0
+        && readTimeoutMillis >= 0, "Timeouts cannot be negative");
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+    this.initiateTimeoutMillis = initiateTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  /**
+   * The timeouts used by the constructors of {@link StroemClientTcpConnection}: the same value for connect and read,
+   * and no deadline for the handshake and initiate phases.
+   *
+   * @param socketTimeoutSeconds The connection timeout and read timeout during initialization.
+   */
+  public static StroemConnectionTimeouts fromSocketTimeout(int socketTimeoutSeconds) {
+    return new StroemConnectionTimeouts(socketTimeoutSeconds * 1000, 0, 0, socketTimeoutSeconds * 1000);
+  }
+
+  public int getConnectTimeoutMillis() {
+    return connectTimeoutMillis;
+  }
+
+  public long getHandshakeTimeoutMillis() {
+    return handshakeTimeoutMillis;
+  }
+
+  public long getInitiateTimeoutMillis() {
+    return initiateTimeoutMillis;
+  }
+
+  public int getReadTimeoutMillis() {
+    return readTimeoutMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "StroemConnectionTimeouts{" +
+        "connectTimeoutMillis=" + connectTimeoutMillis +
+        ", handshakeTimeoutMillis=" + handshakeTimeoutMillis +
+        ", initiateTimeoutMillis=" + initiateTimeoutMillis +
+        ", readTimeoutMillis=" + readTimeoutMillis +
+        '}';
+  }
+}
@@ -0,0 +1,225 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import io.stroem.clientj.domain.StroemPaymentChannel;
+import io.stroem.clientj.domain.StroemPaymentChannels;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Opens connections in a {@link StroemClientConnectionPool} at startup, so the first payment on a channel does not
+ * have to pay for the DNS lookup, TCP connect, version handshake and channel resume.</p>
+ *
+ * <p>The preferred channel is warmed first, then the most recently used channels. We don't store when a channel was
+ * last used, so the update time of the channel's contract transaction in the wallet is used instead. Channels whose
+ * contract is not in the wallet, or that have expired, are skipped since connecting to them would open a new channel.</p>
+ *
+ * <p>The connects complete on the executor of {@link #setExecutor} (bitcoinj's user thread by default), which also
+ * starts the next ones. No lock is held while a connect is started.</p>
+ */
+public class StroemConnectionWarmer {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemConnectionWarmer.class);
+
+  private final StroemClientConnectionPool pool;
+  private final int maxConcurrentConnects;
+  private volatile Executor executor = Threading.USER_THREAD;
+
+  // Guarded by "this"
+  private final Deque<StroemPaymentChannel> toWarm = new ArrayDeque<StroemPaymentChannel>();
+  private int connecting = 0;
+  private int warmCount = 0;
+  private SettableFuture<Integer> warmFuture;
+
+  /**
+   * @param pool The pool the connections will be added to
+   * @param maxConcurrentConnects How many connections that are allowed to be set up at the same time
+   */
+  public StroemConnectionWarmer(StroemClientConnectionPool pool, int maxConcurrentConnects) {
+    checkArgument(maxConcurrentConnects > 0, "Must allow at least one connect at a time");
+    this.pool = pool;
+    this.maxConcurrentConnects = maxConcurrentConnects;
+  }
+
+  /**
+   * @param executor Runs the completion of the connects, and starts the next ones. Not a network thread, starting a
+   *                 connect may connect.
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = checkNotNull(executor);
+  }
+
+  /**
+   * Opens connections to the preferred channel and the most recently used channels, in parallel.
+   *
+   * @param channels The loaded channels
+   * @param wallet The wallet the channels were created with
+   * @param count The max number of channels to warm, including the preferred channel
+   * @return A future that returns the number of open connections when the pool is warm.
+   *         Channels that fail to open are logged and not counted.
+   */
+  public ListenableFuture<Integer> warmUp(StroemPaymentChannels channels, Wallet wallet, int count) {
+    List<StroemPaymentChannel> selected = selectChannels(channels, wallet, count);
+    SettableFuture<Integer> future;
+    List<StroemPaymentChannel> toStart;
+    synchronized (this) {
+      checkArgument(warmFuture == null || warmFuture.isDone(), "Warm up is already in progress");
+      log.info("Warming up {} payment channel connections", selected.size());
+      future = warmFuture = SettableFuture.create();
+      warmCount = 0;
+      toWarm.addAll(selected);
+      toStart = takeNext();
+    }
+    if (selected.isEmpty()) {
+      future.set(0);
+    }
+    connectAll(toStart);
+    return future;
+  }
+
+  /**
+   * @return true if the last warm up has completed
+   */
+  public synchronized boolean isWarm() {
+    return warmFuture != null && warmFuture.isDone();
+  }
+
+  /*
+   * The preferred channel first, then the other usable channels, most recent first.
+   */
+  private List<StroemPaymentChannel> selectChannels(StroemPaymentChannels channels, Wallet wallet, int count) {
+    List<StroemPaymentChannel> result = new ArrayList<StroemPaymentChannel>();
+    // Looked up once, so that the sort sees the same time for a channel every time (and "now" does not move)
+    long nowMillis = System.currentTimeMillis();
+    final Map<StroemPaymentChannel, Long> contractTimes = new LinkedHashMap<StroemPaymentChannel, Long>();
+    for (StroemPaymentChannel channel : channels.getAllStroemPaymentChannels()) {
+      Long contractTime = getContractTime(channel, wallet, nowMillis);
+      if (contractTime != null) {
+        contractTimes.put(channel, contractTime);
+      }
+    }
+
+    StroemPaymentChannel preferred = channels.getPreferredStroemPaymentChannel();
+    if (preferred != null && count > 0 && getContractTime(preferred, wallet, nowMillis) != null) {
+      result.add(preferred);
+    }
+
+    List<StroemPaymentChannel> others = new ArrayList<StroemPaymentChannel>();
+    for (StroemPaymentChannel channel : contractTimes.keySet()) {
+      if (!channel.equals(preferred)) {
+        others.add(channel);
+      }
+    }
+    Collections.sort(others, new Comparator<StroemPaymentChannel>() {
+      @Override
+      public int compare(StroemPaymentChannel a, StroemPaymentChannel b) {
+        return Long.compare(contractTimes.get(b), contractTimes.get(a));
+      }
+    });
+
+    for (StroemPaymentChannel channel : others) {
+      if (result.size() >= count) {
+        break;
+      }
+      result.add(channel);
+    }
+    return result;
+  }
+
+  /*
+   * @return The update time of the channel's contract, or null if the channel cannot be resumed.
+   */
+  @Nullable
+  private static Long getContractTime(StroemPaymentChannel channel, Wallet wallet, long nowMillis) {
+    Transaction contract = wallet.getTransaction(Sha256Hash.wrap(channel.getHash()));
+    if (contract == null) {
+      return null;
+    }
+    long updateTime = contract.getUpdateTime().getTime();
+    if (updateTime + channel.getTimeoutSeconds() * 1000 < nowMillis) {
+      return null; // Expired
+    }
+    return updateTime;
+  }
+
+  /*
+   * Takes the channels that may be connected now. They are connected by the caller, after it has released the lock.
+   */
+  // Guarded by "this"
+  private List<StroemPaymentChannel> takeNext() {
+    List<StroemPaymentChannel> toStart = new ArrayList<StroemPaymentChannel>();
+    while (connecting < maxConcurrentConnects && !toWarm.isEmpty()) {
+      toStart.add(toWarm.poll());
+      connecting++;
+    }
+    return toStart;
+  }
+
+  private void connectAll(List<StroemPaymentChannel> toStart) {
+    for (StroemPaymentChannel channel : toStart) {
+      connect(channel);
+    }
+  }
+
+  private void connect(final StroemPaymentChannel channel) {
+    ListenableFuture<StroemClientTcpConnection> openFuture;
+    try {
+      openFuture = pool.getConnection(channel.getStroemId());
+    } catch (Exception e) {
+      openFuture = Futures.immediateFailedFuture(e);
+    }
+    Futures.addCallback(openFuture, new FutureCallback<StroemClientTcpConnection>() {
+      @Override
+      public void onSuccess(StroemClientTcpConnection connection) {
+        done(true);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        log.warn("Unable to warm up connection to {}: {}", channel.getIssuerUri(), t.getMessage());
+        done(false);
+      }
+    }, executor);
+  }
+
+  private void done(boolean open) {
+    List<StroemPaymentChannel> toStart;
+    SettableFuture<Integer> completed = null;
+    int count;
+    synchronized (this) {
+      connecting--;
+      if (open) {
+        warmCount++;
+      }
+      count = warmCount;
+      toStart = takeNext();
+      if (toStart.isEmpty() && connecting == 0) {
+        completed = warmFuture;
+      }
+    }
+    connectAll(toStart);
+    if (completed != null) {
+      log.info("Connection pool is warm, {} connections open", count);
+      completed.set(count);
+    }
+  }
+}
@@ -0,0 +1,500 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.stroem.clientj.domain.StroemEndpoint;
+import io.stroem.clientj.domain.StroemPaymentChannel;
+import io.stroem.clientj.domain.StroemPaymentChannels;
+import io.stroem.proto.StroemProtos.StroemMessage;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.StreamParser;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Connects to issuers that run several frontends ("happy eyeballs"): the endpoints of the issuer are connected to
+ * in parallel, with a staggered start, and the first one that answers the Stroem version handshake is kept. The
+ * others are closed. A degraded frontend then costs at most the stagger delay, instead of a connect timeout.</p>
+ *
+ * <pre>
+ * StroemEndpointRacingTransport transport = new StroemEndpointRacingTransport(new StroemNioTransport());
+ * transport.setEndpoints(stroemPaymentChannels);
+ * // Give the transport to the StroemClientTcpConnections made by the StroemConnectionFactory
+ * </pre>
+ *
+ * <ul>
+ * <li>The endpoints are started in order, the next one when the stagger delay has passed or at once when a started
+ * one fails. The endpoint that won the last race of the issuer is started first.</li>
+ * <li>Each candidate sends the client version, and the first that receives the server version wins. The connection
+ * is then handed to the {@link StreamParser} of the {@link StroemClientTcpConnection}: its own client version is not
+ * sent again, and it receives the server version as if it came in now.</li>
+ * <li>Issuers with one endpoint, or none set, are connected to directly.</li>
+ * </ul>
+ *
+ * <p>Wrap the other transports (e.g. a {@link StroemTlsTransport}) with this one, the handshake must be read in
+ * plain text. The connect timeout applies to each candidate, and to the race as a whole after the last start (0 is no
+ * timeout).</p>
+ */
+public class StroemEndpointRacingTransport implements StroemTransport {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemEndpointRacingTransport.class);
+
+  public static final int DEFAULT_STAGGER_MILLIS = 250;
+
+  private static final int LENGTH_PREFIX_SIZE = 4;
+  private static final int MAX_HANDSHAKE_SIZE = 64 * 1024;
+
+  /**
+   * The first exchange of a connection, which tells that the endpoint is up.
+   */
+  interface Handshake {
+
+    /**
+     * @return The first frame the client sends (length prefix included)
+     */
+    byte[] hello();
+
+    /**
+     * @param message The first message received (without the length prefix)
+     * @return True if it is the server's answer to the hello
+     */
+    boolean isAccepted(byte[] message);
+  }
+
+  static final Handshake STROEM_VERSION_HANDSHAKE = new Handshake() {
+    @Override
+    public byte[] hello() {
+      return StroemWireParser.encode(StroemClientTcpConnection.clientVersionMessage());
+    }
+
+    @Override
+    public boolean isAccepted(byte[] message) {
+      try {
+        return StroemMessage.parseFrom(message).getType() == StroemMessage.MessageType.STROEM_SERVER_VERSION;
+      } catch (InvalidProtocolBufferException e) {
+        return false;
+      }
+    }
+  };
+
+  private final StroemTransport transport;
+  private final int staggerMillis;
+  private final Handshake handshake;
+  private final ConcurrentMap<String, List<StroemEndpoint>> endpoints = new ConcurrentHashMap<String, List<StroemEndpoint>>();
+  private final ConcurrentMap<String, StroemEndpoint> lastWinners = new ConcurrentHashMap<String, StroemEndpoint>();
+
+  /**
+   * @param transport Opens the connections to the endpoints
+   */
+  public StroemEndpointRacingTransport(StroemTransport transport) {
+    this(transport, DEFAULT_STAGGER_MILLIS);
+  }
+
+  /**
+   * @param transport Opens the connections to the endpoints
+   * @param staggerMillis How long to wait for an endpoint before the next one is started as well
+   */
+  public StroemEndpointRacingTransport(StroemTransport transport, int staggerMillis) {
+    this(transport, staggerMillis, STROEM_VERSION_HANDSHAKE);
+  }
+
+  StroemEndpointRacingTransport(StroemTransport transport, int staggerMillis, Handshake handshake) {
+    checkArgument(staggerMillis >= 0, "Bad stagger delay: " + staggerMillis);
+    this.transport = transport;
+    this.staggerMillis = staggerMillis;
+    this.handshake = handshake;
+  }
+
+  /**
+   * @param issuerHost The issuer host the connections are made to
+   * @param issuerEndpoints The frontends of the issuer, in order of preference
+   */
+  public void setEndpoints(String issuerHost, List<StroemEndpoint> issuerEndpoints) {
+    checkArgument(!issuerEndpoints.isEmpty(), "No endpoints for " + issuerHost);
+    endpoints.put(issuerHost, new ArrayList<StroemEndpoint>(issuerEndpoints));
+  }
+
+  /**
+   * Uses the endpoints of the channel for its issuer.
+   */
+  public void setEndpoints(StroemPaymentChannel channel) {
+    setEndpoints(channel.getIssuerHost(), channel.getEndpoints());
+  }
+
+  /**
+   * Uses the endpoints of all the channels.
+   */
+  public void setEndpoints(StroemPaymentChannels channels) {
+    for (StroemPaymentChannel channel : channels.getAllStroemPaymentChannels()) {
+      setEndpoints(channel);
+    }
+  }
+
+  /**
+   * @return The endpoints of the issuer, in the order they are tried next time
+   */
+  public List<StroemEndpoint> getEndpoints(String issuerHost, int port) {
+    List<StroemEndpoint> issuerEndpoints = endpoints.get(issuerHost);
+    if (issuerEndpoints == null) {
+      return Arrays.asList(new StroemEndpoint(issuerHost, port));
+    }
+    StroemEndpoint lastWinner = lastWinners.get(issuerHost);
+    if (lastWinner == null || !issuerEndpoints.contains(lastWinner)) {
+      return issuerEndpoints;
+    }
+    List<StroemEndpoint> ordered = new ArrayList<StroemEndpoint>(issuerEndpoints.size());
+    ordered.add(lastWinner);
+    for (StroemEndpoint endpoint : issuerEndpoints) {
+      if (!endpoint.equals(lastWinner)) {
+        ordered.add(endpoint);
+      }
+    }
+    return ordered;
+  }
+
+  /**
+   * The port is only used for issuers without endpoints.
+   */
+  @Override
+  public ListenableFuture<?> openConnection(String issuerHost, int port, StreamParser parser, int connectTimeoutMillis) {
+    List<StroemEndpoint> candidates = getEndpoints(issuerHost, port);
+    if (candidates.size() == 1) {
+      StroemEndpoint endpoint = candidates.get(0);
+      return transport.openConnection(endpoint.getHost(), endpoint.getPort(), parser, connectTimeoutMillis);
+    }
+    return new Race(issuerHost, candidates, parser, connectTimeoutMillis).start();
+  }
+
+  @Override
+  public String toString() {
+    return "StroemEndpointRacingTransport{" + transport + ", stagger " + staggerMillis + " ms}";
+  }
+
+  /*
+   * The connects to the endpoints of one issuer, for one connection.
+   */
+  private class Race {
+    private final String issuerHost;
+    private final List<StroemEndpoint> candidates;
+    private final StreamParser parser;
+    private final int connectTimeoutMillis;
+    private final byte[] hello;
+    private final SettableFuture<Object> openFuture = SettableFuture.create();
+
+    // Guarded by "this"
+    private final List<Candidate> started = new ArrayList<Candidate>();
+    private int failed = 0;
+    private Candidate winner;
+    private ScheduledFuture<?> nextStart;
+
+    private Race(String issuerHost, List<StroemEndpoint> candidates, StreamParser parser, int connectTimeoutMillis) {
+      this.issuerHost = issuerHost;
+      this.candidates = candidates;
+      this.parser = parser;
+      this.connectTimeoutMillis = connectTimeoutMillis;
+      this.hello = handshake.hello();
+    }
+
+    private ListenableFuture<?> start() {
+      startNext();
+      return openFuture;
+    }
+
+    private void startNext() {
+      final Candidate candidate;
+      synchronized (this) {
+        if (isOver() || started.size() == candidates.size()) {
+          return;
+        }
+        if (nextStart != null) {
+          nextStart.cancel(false);
+        }
+        candidate = new Candidate(candidates.get(started.size()));
+        started.add(candidate);
+        if (started.size() < candidates.size()) {
+          nextStart = StroemThreading.TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+              startNext();
+            }
+          }, staggerMillis, TimeUnit.MILLISECONDS);
+        } else if (connectTimeoutMillis > 0) {
+          nextStart = StroemThreading.TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+              fail(new SocketTimeoutException("No endpoint of " + issuerHost + " answered in time"));
+            }
+          }, connectTimeoutMillis, TimeUnit.MILLISECONDS);
+        } else {
+          // No deadline, the race ends when an endpoint answers or all have failed
+          nextStart = null;
+        }
+      }
+      log.debug("Connecting to {} for {}", candidate.endpoint, issuerHost);
+      candidate.open();
+    }
+
+    private void candidateFailed(Candidate candidate, Throwable t) {
+      log.info("Endpoint {} of {} failed: {}", candidate.endpoint, issuerHost, t.getMessage());
+      boolean allFailed;
+      synchronized (this) {
+        if (isOver() || candidate.failed) {
+          return;
+        }
+        candidate.failed = true;
+        failed++;
+        allFailed = failed == candidates.size();
+      }
+      if (allFailed) {
+        fail(new IOException("Unable to connect to any endpoint of " + issuerHost + ": " + t.getMessage(), t));
+      } else {
+        startNext();
+      }
+    }
+
+    /*
+     * @return True if the candidate is the first to win
+     */
+    private boolean won(Candidate candidate) {
+      List<Candidate> losers;
+      synchronized (this) {
+        if (isOver()) {
+          return false;
+        }
+        winner = candidate;
+        if (nextStart != null) {
+          nextStart.cancel(false);
+        }
+        losers = new ArrayList<Candidate>(started);
+        losers.remove(candidate);
+      }
+      log.debug("Endpoint {} of {} won", candidate.endpoint, issuerHost);
+      lastWinners.put(issuerHost, candidate.endpoint);
+      for (Candidate loser : losers) {
+        loser.close();
+      }
+      Futures.addCallback(candidate.transportResult, new FutureCallback<Object>() {
+        @Override
+        public void onSuccess(Object result) {
+          openFuture.set(result);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          openFuture.setException(t);
+        }
+      });
+      return true;
+    }
+
+    private void fail(Throwable t) {
+      List<Candidate> pending;
+      synchronized (this) {
+        if (isOver()) {
+          return;
+        }
+        if (nextStart != null) {
+          nextStart.cancel(false);
+        }
+        openFuture.setException(t);
+        pending = new ArrayList<Candidate>(started);
+      }
+      for (Candidate candidate : pending) {
+        candidate.close();
+      }
+    }
+
+    // Guarded by "this"
+    private boolean isOver() {
+      return winner != null || openFuture.isDone();
+    }
+
+    private synchronized boolean isLost(Candidate candidate) {
+      return winner != null ? winner != candidate : openFuture.isDone();
+    }
+
+    /*
+     * The connection to one endpoint: does the handshake, then passes everything to the parser if it won.
+     */
+    private class Candidate implements StreamParser {
+      private final StroemEndpoint endpoint;
+      private final SettableFuture<Object> transportResult = SettableFuture.create();
+
+      // Guarded by the race
+      private boolean failed = false;
+
+      // Only used by the transport's thread of the connection
+      private MessageWriteTarget target;
+      private boolean handedOver = false;
+      private long helloSentNanos;
+      private boolean closed = false;
+
+      private Candidate(StroemEndpoint endpoint) {
+        this.endpoint = endpoint;
+      }
+
+      private void open() {
+        Futures.addCallback(transport.openConnection(endpoint.getHost(), endpoint.getPort(), this, connectTimeoutMillis),
+            new FutureCallback<Object>() {
+          @Override
+          public void onSuccess(Object result) {
+            transportResult.set(result);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            transportResult.setException(t);
+            candidateFailed(Candidate.this, t);
+          }
+        });
+      }
+
+      private void close() {
+        MessageWriteTarget writeTarget = target;
+        if (writeTarget != null) {
+          writeTarget.closeConnection();
+        }
+        // Else connectionOpened() closes it
+      }
+
+      @Override
+      public void setWriteTarget(MessageWriteTarget writeTarget) {
+        target = writeTarget;
+      }
+
+      @Override
+      public void connectionOpened() {
+        if (isLost(this)) {
+          target.closeConnection();
+          return;
+        }
+        try {
+          helloSentNanos = System.nanoTime();
+          target.writeBytes(hello);
+        } catch (IOException e) {
+          closed = true;
+          candidateFailed(this, e);
+          target.closeConnection();
+        }
+      }
+
+      @Override
+      public int receiveBytes(ByteBuffer buff) throws Exception {
+        if (handedOver) {
+          return parser.receiveBytes(buff);
+        }
+        int consumed = buff.remaining();
+        if (closed || buff.remaining() < LENGTH_PREFIX_SIZE) {
+          // Nothing more is read from a loser
+          return closed ? consumed : 0;
+        }
+        int length = buff.duplicate().order(ByteOrder.BIG_ENDIAN).getInt();
+        if (length < 0 || length > MAX_HANDSHAKE_SIZE) {
+          return reject(buff, "bad frame length " + length);
+        }
+        if (buff.remaining() < LENGTH_PREFIX_SIZE + length) {
+          return 0;
+        }
+        byte[] frame = new byte[LENGTH_PREFIX_SIZE + length];
+        buff.get(frame);
+        if (!handshake.isAccepted(Arrays.copyOfRange(frame, LENGTH_PREFIX_SIZE, frame.length))) {
+          return frame.length + reject(buff, "unexpected answer to the handshake");
+        }
+        if (!won(this)) {
+          closed = true;
+          target.closeConnection();
+          return consumed;
+        }
+
+        // The parser writes its own client version first, which the issuer already has
+        handedOver = true;
+        if (parser instanceof StroemWireParser) {
+          // It then neither counts the frame nor takes it as an RTT sample of 0 ms
+          ((StroemWireParser) parser).setAlreadySent(hello, helloSentNanos);
+          parser.setWriteTarget(target);
+        } else {
+          parser.setWriteTarget(new SkippingWriteTarget(target, hello.length));
+        }
+        parser.connectionOpened();
+        new StroemStreamFeeder(parser).feed(frame);
+        return frame.length + (buff.hasRemaining() ? parser.receiveBytes(buff) : 0);
+      }
+
+      private int reject(ByteBuffer buff, String reason) {
+        int consumed = buff.remaining();
+        buff.position(buff.limit());
+        closed = true;
+        candidateFailed(this, new IOException(endpoint + ": " + reason));
+        target.closeConnection();
+        return consumed;
+      }
+
+      @Override
+      public void connectionClosed() {
+        if (handedOver) {
+          parser.connectionClosed();
+          return;
+        }
+        if (!closed) {
+          closed = true;
+          candidateFailed(this, new IOException("The connection to " + endpoint + " was closed during the handshake"));
+        }
+      }
+
+      @Override
+      public int getMaxMessageSize() {
+        return Math.max(parser.getMaxMessageSize(), MAX_HANDSHAKE_SIZE);
+      }
+    }
+  }
+
+  /*
+   * Drops the first bytes written, which the issuer has already received.
+   */
+  private static class SkippingWriteTarget implements MessageWriteTarget {
+    private final MessageWriteTarget target;
+
+    // Guarded by "this"
+    private int toSkip;
+
+    private SkippingWriteTarget(MessageWriteTarget target, int toSkip) {
+      this.target = target;
+      this.toSkip = toSkip;
+    }
+
+    @Override
+    public void writeBytes(byte[] message) throws IOException {
+      synchronized (this) {
+        if (toSkip > 0) {
+          int skipped = Math.min(toSkip, message.length);
+          toSkip -= skipped;
+          if (skipped == message.length) {
+            return;
+          }
+          message = Arrays.copyOfRange(message, skipped, message.length);
+        }
+      }
+      target.writeBytes(message);
+    }
+
+    @Override
+    public void closeConnection() {
+      target.closeConnection();
+    }
+  }
+}
@@ -0,0 +1,445 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.StreamParser;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Makes the connections of another transport slow and flaky, to see how payments, timeouts, reconnects and
+ * pipelining behave with a bad network or a bad issuer (in a test or a benchmark).</p>
+ *
+ * <pre>
+ * StroemFaultInjectingTransport transport = new StroemFaultInjectingTransport(new StroemLoopbackTransport(issuer), 42);
+ * transport.setLatency(StroemFaultInjectingTransport.uniformLatency(20, 80));
+ * transport.setBandwidth(64 * 1024);
+ * transport.setStalls(0.01, 200);
+ * </pre>
+ *
+ * <p>Every chunk of bytes, in both directions, gets to the other side after:</p>
+ * <ul>
+ * <li>its transmission time, when a bandwidth is set. The chunks of a direction are transmitted one after the other.</li>
+ * <li>a one way latency, drawn from the {@link LatencyDistribution} for every chunk</li>
+ * <li>a stall, for a chunk picked with the stall probability. On TCP a lost packet is not lost, it is retransmitted
+ * late, and the bytes after it wait for it (head-of-line blocking): that is what a stall is.</li>
+ * </ul>
+ * <p>The bytes of a direction are never reordered, a chunk is held until the chunks before it got through. The
+ * opening of the connection is delayed by a round trip. A connection can also be dropped, for every chunk with the
+ * disconnect probability, or all at once with {@link #dropConnections()}: the bytes still in flight are lost and both
+ * sides are told the connection is closed.</p>
+ *
+ * <p>The settings can be changed at any time, they apply to the chunks sent from then on. The random numbers come
+ * from one seeded {@link Random}, so a single threaded run is repeatable. Each connection uses a thread of its own
+ * to deliver the delayed events, in both directions.</p>
+ */
+public class StroemFaultInjectingTransport implements StroemTransport {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemFaultInjectingTransport.class);
+
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder()
+      .setNameFormat("Stroem fault injection %d").setDaemon(true).build();
+
+  /**
+   * The one way latency of a chunk of bytes.
+   */
+  public interface LatencyDistribution {
+    /**
+     * @return The latency of the next chunk, in microseconds
+     */
+    long nextMicros(Random random);
+  }
+
+  /**
+   * No latency.
+   */
+  public static final LatencyDistribution NO_LATENCY = fixedLatency(0);
+
+  private final StroemTransport transport;
+  private final Random random;
+  private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+  private volatile LatencyDistribution latency = NO_LATENCY;
+  private volatile long bytesPerSecond = 0;
+  private volatile double stallProbability = 0;
+  private volatile long stallMillis = 0;
+  private volatile double disconnectProbability = 0;
+
+  // Statistics
+  private final AtomicLong stalledChunks = new AtomicLong();
+  private final AtomicLong droppedConnections = new AtomicLong();
+
+  /**
+   * @param transport The transport to make faulty
+   */
+  public StroemFaultInjectingTransport(StroemTransport transport) {
+    this(transport, System.nanoTime());
+  }
+
+  /**
+   * @param transport The transport to make faulty
+   * @param seed The seed of the random numbers
+   */
+  public StroemFaultInjectingTransport(StroemTransport transport, long seed) {
+    this.transport = transport;
+    this.random = new Random(seed);
+  }
+
+  /**
+   * @return The same latency for every chunk
+   */
+  public static LatencyDistribution fixedLatency(final long millis) {
+    checkArgument(millis >= 0, "The latency cannot be negative");
+    return new LatencyDistribution() {
+      @Override
+      public long nextMicros(Random random) {
+        return TimeUnit.MILLISECONDS.toMicros(millis);
+      }
+    };
+  }
+
+  /**
+   * @return A latency between min and max, all values equally likely (jitter)
+   */
+  public static LatencyDistribution uniformLatency(final long minMillis, final long maxMillis) {
+    checkArgument(minMillis >= 0 && maxMillis >= minMillis, "Bad latency range");
+    return new LatencyDistribution() {
+      @Override
+      public long nextMicros(Random random) {
+        long rangeMicros = TimeUnit.MILLISECONDS.toMicros(maxMillis - minMillis);
+        return TimeUnit.MILLISECONDS.toMicros(minMillis) + (long) (random.nextDouble() * rangeMicros);
+      }
+    };
+  }
+
+  /**
+   * @return A latency of min plus an exponentially distributed part: mostly close to min, with a long tail (a
+   *         loaded network or issuer)
+   */
+  public static LatencyDistribution exponentialLatency(final long minMillis, final long meanExtraMillis) {
+    checkArgument(minMillis >= 0 && meanExtraMillis >= 0, "The latency cannot be negative");
+    return new LatencyDistribution() {
+      @Override
+      public long nextMicros(Random random) {
+        double extraMicros = -Math.log(1 - random.nextDouble()) * TimeUnit.MILLISECONDS.toMicros(meanExtraMillis);
+        return TimeUnit.MILLISECONDS.toMicros(minMillis) + (long) extraMicros;
+      }
+    };
+  }
+
+  /**
+   * @param latency The one way latency of every chunk of bytes
+   */
+  public void setLatency(LatencyDistribution latency) {
+    this.latency = latency;
+  }
+
+  /**
+   * @param bytesPerSecond The bandwidth of each direction of a connection, 0 for no limit
+   */
+  public void setBandwidth(long bytesPerSecond) {
+    checkArgument(bytesPerSecond >= 0, "The bandwidth cannot be negative");
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  /**
+   * @param probability The probability that a chunk of bytes is stalled
+   * @param stallMillis How long a stalled chunk, and the chunks after it, are held
+   */
+  public void setStalls(double probability, long stallMillis) {
+    checkArgument(probability >= 0 && probability <= 1, "Not a probability: " + probability);
+    checkArgument(stallMillis >= 0, "The stall cannot be negative");
+    this.stallProbability = probability;
+    this.stallMillis = stallMillis;
+  }
+
+  /**
+   * @param probability The probability that a connection is dropped when it carries a chunk of bytes
+   */
+  public void setDisconnectProbability(double probability) {
+    checkArgument(probability >= 0 && probability <= 1, "Not a probability: " + probability);
+    this.disconnectProbability = probability;
+  }
+
+  /**
+   * Drops all the open connections now.
+   */
+  public void dropConnections() {
+    for (Connection connection : connections) {
+      connection.drop();
+    }
+  }
+
+  /**
+   * @return The number of chunks of bytes that were stalled
+   */
+  public long getStalledChunks() {
+    return stalledChunks.get();
+  }
+
+  /**
+   * @return The number of connections that were dropped
+   */
+  public long getDroppedConnections() {
+    return droppedConnections.get();
+  }
+
+  @Override
+  public ListenableFuture<?> openConnection(String issuerHost, int port, StreamParser parser, int connectTimeoutMillis) {
+    return transport.openConnection(issuerHost, port, new Connection(parser), connectTimeoutMillis);
+  }
+
+  @Override
+  public String toString() {
+    return "StroemFaultInjectingTransport{" + transport + '}';
+  }
+
+  private boolean draw(double probability) {
+    return probability > 0 && random.nextDouble() < probability;
+  }
+
+  private long nextLatencyNanos() {
+    return TimeUnit.MICROSECONDS.toNanos(latency.nextMicros(random));
+  }
+
+  /*
+   * One direction of a connection. The events of a direction are kept in the order they were sent, and each delivery
+   * runs the oldest one: the executor may run two deliveries due at about the same time in any order.
+   */
+  private class Link {
+    private final ScheduledThreadPoolExecutor executor;
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+    private final Runnable deliverNext = new Runnable() {
+      @Override
+      public void run() {
+        Runnable event = pending.poll();
+        if (event == null) {
+          return; // Dropped
+        }
+        try {
+          event.run();
+        } catch (RuntimeException e) {
+          log.warn("Error on the connection", e);
+        }
+      }
+    };
+
+    // Guarded by "this"
+    private long transmittedNanos = 0; // When the link is done transmitting the last chunk
+    private long arrivalNanos = 0;     // When the last chunk gets to the other side
+
+    private Link(ScheduledThreadPoolExecutor executor) {
+      this.executor = executor;
+    }
+
+    /**
+     * Runs the event when a chunk of the size, sent now, gets to the other side.
+     *
+     * @param extraNanos Added to the latency
+     * @return false if the connection's thread has stopped (the event is not run)
+     */
+    boolean send(int size, long extraNanos, Runnable event) {
+      long arrival;
+      synchronized (this) {
+        arrival = Math.max(System.nanoTime(), transmittedNanos);
+        long limit = bytesPerSecond;
+        if (limit > 0) {
+          arrival += TimeUnit.SECONDS.toNanos(size) / limit;
+        }
+        transmittedNanos = arrival;
+        arrival += nextLatencyNanos() + extraNanos;
+        if (draw(stallProbability)) {
+          stalledChunks.incrementAndGet();
+          arrival += TimeUnit.MILLISECONDS.toNanos(stallMillis);
+        }
+        // Never before the chunk sent before it
+        arrivalNanos = Math.max(arrival, arrivalNanos);
+        arrival = arrivalNanos;
+        pending.add(event);
+      }
+      return schedule(event, arrival);
+    }
+
+    /**
+     * Runs the event when everything sent so far has got to the other side.
+     *
+     * @return false if the connection's thread has stopped (the event is not run)
+     */
+    boolean sendLast(Runnable event) {
+      long arrival;
+      synchronized (this) {
+        arrivalNanos = Math.max(System.nanoTime(), arrivalNanos);
+        arrival = arrivalNanos;
+        pending.add(event);
+      }
+      return schedule(event, arrival);
+    }
+
+    /**
+     * Forgets the events in flight.
+     */
+    void clear() {
+      pending.clear();
+    }
+
+    private boolean schedule(Runnable event, long arrivalNanos) {
+      try {
+        executor.schedule(deliverNext, arrivalNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        return true;
+      } catch (RejectedExecutionException e) {
+        pending.remove(event);
+        return false;
+      }
+    }
+  }
+
+  /*
+   * Sits between the wrapped transport and the parser of a connection.
+   */
+  private class Connection implements StreamParser, MessageWriteTarget {
+    private final StreamParser parser;
+    private final StroemStreamFeeder feeder;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Link inbound;
+    private final Link outbound;
+    private final AtomicBoolean dropped = new AtomicBoolean(false);
+    private volatile MessageWriteTarget writeTarget;
+
+    private Connection(StreamParser parser) {
+      this.parser = parser;
+      this.feeder = new StroemStreamFeeder(parser);
+      this.executor = new ScheduledThreadPoolExecutor(1, THREAD_FACTORY);
+      executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+      this.inbound = new Link(executor);
+      this.outbound = new Link(executor);
+    }
+
+    @Override
+    public void setWriteTarget(MessageWriteTarget writeTarget) {
+      this.writeTarget = writeTarget;
+      parser.setWriteTarget(this);
+    }
+
+    @Override
+    public void connectionOpened() {
+      connections.add(this);
+      // The handshake takes a round trip
+      inbound.send(0, nextLatencyNanos(), new Runnable() {
+        @Override
+        public void run() {
+          parser.connectionOpened();
+        }
+      });
+    }
+
+    @Override
+    public int receiveBytes(ByteBuffer buff) throws Exception {
+      int size = buff.remaining();
+      final byte[] bytes = new byte[size];
+      buff.get(bytes);
+      if (dropped.get()) {
+        return size;
+      }
+      if (draw(disconnectProbability)) {
+        drop();
+        return size;
+      }
+      inbound.send(size, 0, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            feeder.feed(bytes);
+          } catch (Exception e) {
+            log.warn("Error when reading from the connection, closing it", e);
+            closeConnection();
+          }
+        }
+      });
+      return size;
+    }
+
+    @Override
+    public void connectionClosed() {
+      connections.remove(this);
+      // After the bytes in flight (none if dropped)
+      Runnable closed = new Runnable() {
+        @Override
+        public void run() {
+          parser.connectionClosed();
+          executor.shutdownNow();
+        }
+      };
+      if (!inbound.sendLast(closed)) {
+        closed.run();
+      }
+    }
+
+    @Override
+    public int getMaxMessageSize() {
+      return parser.getMaxMessageSize();
+    }
+
+    @Override
+    public void writeBytes(final byte[] message) throws IOException {
+      if (dropped.get()) {
+        throw new IOException("The connection was dropped");
+      }
+      if (draw(disconnectProbability)) {
+        drop();
+        throw new IOException("The connection was dropped");
+      }
+      outbound.send(message.length, 0, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            writeTarget.writeBytes(message);
+          } catch (IOException e) {
+            log.debug("Unable to write to the connection: {}", e.getMessage());
+            writeTarget.closeConnection();
+          }
+        }
+      });
+    }
+
+    @Override
+    public void closeConnection() {
+      // After the bytes in flight
+      Runnable close = new Runnable() {
+        @Override
+        public void run() {
+          writeTarget.closeConnection();
+        }
+      };
+      if (!outbound.sendLast(close)) {
+        close.run();
+      }
+    }
+
+    private void drop() {
+      if (dropped.compareAndSet(false, true)) {
+        droppedConnections.incrementAndGet();
+        log.debug("Dropping a connection");
+        // The bytes in flight are lost
+        inbound.clear();
+        outbound.clear();
+        writeTarget.closeConnection();
+      }
+    }
+  }
+}
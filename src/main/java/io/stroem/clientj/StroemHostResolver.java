@@ -0,0 +1,276 @@
+package io.stroem.clientj;
+
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.stroem.clientj.domain.StroemPaymentChannel;
+import io.stroem.clientj.domain.StroemPaymentChannels;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Resolves issuer host names off the caller's thread, and caches the results.</p>
+ *
+ * <ul>
+ * <li>An address is cached for the TTL. After that it is still returned at once, and looked up again in the
+ * background (so a connection only waits for DNS the first time a host is used).</li>
+ * <li>A failed lookup is cached for the negative TTL, connections to the host fail at once until then. If the host
+ * had an address before, the old address is used until the next lookup.</li>
+ * <li>Concurrent lookups of the same host are done once.</li>
+ * <li>Watched hosts (e.g. the issuers of the loaded payment channels, see {@link #watch(StroemPaymentChannels)}) are
+ * looked up again every half TTL, so they never expire.</li>
+ * </ul>
+ *
+ * <p>The lookups run on a few daemon threads of the resolver. The JVM's own cache of {@link InetAddress} is still
+ * used below this one, see the networkaddress.cache.ttl security property.</p>
+ */
+public class StroemHostResolver {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemHostResolver.class);
+
+  public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  public static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  private static final int LOOKUP_THREADS = 4;
+
+  /**
+   * Looks a host name up, blocking.
+   */
+  interface Lookup {
+    InetAddress lookup(String host) throws UnknownHostException;
+  }
+
+  private static final Lookup DNS = new Lookup() {
+    @Override
+    public InetAddress lookup(String host) throws UnknownHostException {
+      return InetAddress.getByName(host);
+    }
+  };
+
+  private static final StroemHostResolver DEFAULT = new StroemHostResolver(DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS);
+
+  private final Lookup lookup;
+  private final long ttlMillis;
+  private final long negativeTtlMillis;
+  private final ThreadPoolExecutor executor;
+  private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentMap<String, SettableFuture<InetAddress>> lookups = new ConcurrentHashMap<String, SettableFuture<InetAddress>>();
+  private final Set<String> watched = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  // Guarded by "this"
+  private ScheduledFuture<?> refreshTask;
+
+  // Statistics
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong lookupCount = new AtomicLong();
+
+  /**
+   * @param ttlMillis How long an address is used before it is looked up again
+   * @param negativeTtlMillis How long a failed lookup is remembered
+   */
+  public StroemHostResolver(long ttlMillis, long negativeTtlMillis) {
+    this(DNS, ttlMillis, negativeTtlMillis);
+  }
+
+  StroemHostResolver(Lookup lookup, long ttlMillis, long negativeTtlMillis) {
+    checkArgument(ttlMillis > 0 && negativeTtlMillis >= 0, "Bad TTL");
+    this.lookup = lookup;
+    this.ttlMillis = ttlMillis;
+    this.negativeTtlMillis = negativeTtlMillis;
+    executor = new ThreadPoolExecutor(LOOKUP_THREADS, LOOKUP_THREADS, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setNameFormat("Stroem resolver %d").setDaemon(true).build());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return The resolver used by the TCP transports, unless they are given another one
+   */
+  public static StroemHostResolver getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Never blocks.
+   *
+   * @param host A host name or an IP address
+   * @return A future that returns the address, or fails with an {@link UnknownHostException}
+   */
+  public ListenableFuture<InetAddress> resolve(String host) {
+    if (InetAddresses.isInetAddress(host)) {
+      return Futures.immediateFuture(InetAddresses.forString(host));
+    }
+    Entry entry = cache.get(host);
+    if (entry != null) {
+      if (!entry.isExpired()) {
+        hitCount.incrementAndGet();
+        return entry.address != null
+            ? Futures.immediateFuture(entry.address)
+            : Futures.<InetAddress>immediateFailedFuture(entry.failure);
+      }
+      if (entry.address != null) {
+        // Stale, but better than waiting
+        hitCount.incrementAndGet();
+        refresh(host);
+        return Futures.immediateFuture(entry.address);
+      }
+    }
+    return refresh(host);
+  }
+
+  /**
+   * @return The cached address of the host (even if expired), or null
+   */
+  @Nullable
+  public InetAddress getCached(String host) {
+    Entry entry = cache.get(host);
+    return entry == null ? null : entry.address;
+  }
+
+  /**
+   * Looks the host up again, in the background.
+   *
+   * @return A future that returns the address
+   */
+  public ListenableFuture<InetAddress> refresh(final String host) {
+    final SettableFuture<InetAddress> future = SettableFuture.create();
+    SettableFuture<InetAddress> running = lookups.putIfAbsent(host, future);
+    if (running != null) {
+      return running;
+    }
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          lookup(host, future);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      lookups.remove(host, future);
+      future.setException(e);
+    }
+    return future;
+  }
+
+  private void lookup(String host, SettableFuture<InetAddress> future) {
+    lookupCount.incrementAndGet();
+    try {
+      InetAddress address = lookup.lookup(host);
+      cache.put(host, new Entry(address, null, ttlMillis));
+      future.set(address);
+    } catch (UnknownHostException e) {
+      Entry old = cache.get(host);
+      if (old != null && old.address != null) {
+        log.info("Unable to resolve {}, using the last address {}: {}", host, old.address, e.getMessage());
+        cache.put(host, new Entry(old.address, null, negativeTtlMillis));
+        future.set(old.address);
+      } else {
+        log.info("Unable to resolve {}: {}", host, e.getMessage());
+        cache.put(host, new Entry(null, e, negativeTtlMillis));
+        future.setException(e);
+      }
+    } catch (RuntimeException e) {
+      future.setException(e);
+    } finally {
+      lookups.remove(host, future);
+    }
+  }
+
+  /**
+   * Keeps the address of the host fresh, looking it up now and again every half TTL.
+   */
+  public void watch(String host) {
+    if (InetAddresses.isInetAddress(host) || !watched.add(host)) {
+      return;
+    }
+    refresh(host);
+    synchronized (this) {
+      if (refreshTask == null) {
+        long periodMillis = Math.max(1, ttlMillis / 2);
+        refreshTask = StroemThreading.TIMER.scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            for (String watchedHost : watched) {
+              refresh(watchedHost);
+            }
+          }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Keeps the addresses of the issuers of the channels fresh.
+   */
+  public void watch(StroemPaymentChannels channels) {
+    for (StroemPaymentChannel channel : channels.getAllStroemPaymentChannels()) {
+      watch(channel.getIssuerHost());
+    }
+  }
+
+  /**
+   * Stops keeping the address of the host fresh. The cached address is kept until it expires.
+   */
+  public void unwatch(String host) {
+    watched.remove(host);
+    synchronized (this) {
+      if (watched.isEmpty() && refreshTask != null) {
+        refreshTask.cancel(false);
+        refreshTask = null;
+      }
+    }
+  }
+
+  /**
+   * Forgets the address of the host, the next connection looks it up again.
+   */
+  public void invalidate(String host) {
+    cache.remove(host);
+  }
+
+  /**
+   * @return The number of resolves answered from the cache
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return The number of lookups made
+   */
+  public long getLookupCount() {
+    return lookupCount.get();
+  }
+
+  private static class Entry {
+    @Nullable private final InetAddress address;
+    @Nullable private final UnknownHostException failure;
+    private final long expiresNanos;
+
+    private Entry(@Nullable InetAddress address, @Nullable UnknownHostException failure, long ttlMillis) {
+      this.address = address;
+      this.failure = failure;
+      this.expiresNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    private boolean isExpired() {
+      return System.nanoTime() - expiresNanos >= 0;
+    }
+  }
+}
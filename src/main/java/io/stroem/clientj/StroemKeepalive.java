@@ -0,0 +1,206 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Looks after idle connections: closes connections that have not been used for a while, and pings the issuer on
+ * connections that have been quiet for a while.</p>
+ *
+ * <p>All watched connections are checked by one periodic task on {@link StroemThreading#TIMER}, there is no thread or
+ * timer per connection.</p>
+ *
+ * <ul>
+ * <li>Reaping: a connection without payments in flight that has been idle (see
+ * {@link StroemClientTcpConnection#getIdleMillis()}) longer than the TTL is disconnected without settlement.
+ * A {@link StroemClientConnectionPool} then drops it, which caps the number of open sockets.</li>
+ * <li>Keepalive: the Stroem protocol has no ping message, so the ping is a {@link Probe} given by the application
+ * (e.g. a request the issuer is known to answer). If nothing has been received for two keepalive intervals, i.e.
+ * the issuer did not answer the ping, the connection is closed. Without a probe, an idle connection whose socket has
+ * died (a half-open TCP connection) is never detected; it is only closed by the idle TTL, or when a payment is
+ * made on it.</li>
+ * </ul>
+ *
+ * <p>A connection that dies while a payment is waiting for an ack is noticed by the connection itself: the issuer
+ * must answer within the (RTT based) read timeout while payments are in flight.</p>
+ */
+public class StroemKeepalive {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemKeepalive.class);
+
+  private static final long MIN_SWEEP_INTERVAL_MILLIS = 100;
+
+  /**
+   * Sends something to the issuer that the issuer will answer.
+   */
+  public interface Probe {
+    /**
+     * Called on the timer thread, must not block.
+     */
+    void ping(StroemClientTcpConnection connection);
+  }
+
+  private final long idleTtlMillis;
+  private final long keepaliveIntervalMillis;
+  @Nullable private final Probe probe;
+
+  // The watched connections, and when each one was last pinged (System.nanoTime(), NEVER if never)
+  private static final long NEVER = Long.MIN_VALUE;
+  private final ConcurrentMap<StroemClientTcpConnection, Long> connections =
+      new ConcurrentHashMap<StroemClientTcpConnection, Long>();
+
+  // Guarded by "this"
+  private ScheduledFuture<?> sweepTask;
+
+  // Statistics
+  private final AtomicLong reapCount = new AtomicLong();
+  private final AtomicLong pingCount = new AtomicLong();
+
+  /**
+   * @param idleTtlMillis Connections idle longer than this are closed, 0 means never
+   */
+  public StroemKeepalive(long idleTtlMillis) {
+    this(idleTtlMillis, 0, null);
+  }
+
+  /**
+   * @param idleTtlMillis Connections idle longer than this are closed, 0 means never
+   * @param keepaliveIntervalMillis Ping connections where nothing has been received for this long, 0 means never
+   * @param probe Sends the ping, or null for no pings
+   */
+  public StroemKeepalive(long idleTtlMillis, long keepaliveIntervalMillis, @Nullable Probe probe) {
+    checkArgument(idleTtlMillis >= 0 && keepaliveIntervalMillis >= 0, "Intervals cannot be negative");
+    checkArgument(keepaliveIntervalMillis == 0 || probe != null, "Need a probe to send keepalives");
+    this.idleTtlMillis = idleTtlMillis;
+    this.keepaliveIntervalMillis = keepaliveIntervalMillis;
+    this.probe = probe;
+  }
+
+  /**
+   * Starts the periodic check.
+   */
+  public synchronized void start() {
+    if (sweepTask != null) {
+      return;
+    }
+    long sweepIntervalMillis = getSweepIntervalMillis();
+    sweepTask = StroemThreading.TIMER.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sweep();
+        } catch (RuntimeException e) {
+          // An exception would stop the periodic task
+          log.error("Keepalive sweep failed", e);
+        }
+      }
+    }, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the periodic check, the connections are left open.
+   */
+  public synchronized void stop() {
+    if (sweepTask != null) {
+      sweepTask.cancel(false);
+      sweepTask = null;
+    }
+  }
+
+  /**
+   * Starts to watch the connection, until it is closed.
+   */
+  public void watch(final StroemClientTcpConnection connection) {
+    connections.put(connection, NEVER);
+    Futures.addCallback(connection.getConnectionClosedFuture(), new FutureCallback<StroemClientTcpConnection>() {
+      @Override
+      public void onSuccess(StroemClientTcpConnection result) {
+        connections.remove(connection);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        connections.remove(connection);
+      }
+    });
+  }
+
+  /**
+   * @return The number of watched connections
+   */
+  public int size() {
+    return connections.size();
+  }
+
+  /**
+   * @return The number of connections closed because they were idle or did not answer a keepalive
+   */
+  public long getReapCount() {
+    return reapCount.get();
+  }
+
+  /**
+   * @return The number of pings sent
+   */
+  public long getPingCount() {
+    return pingCount.get();
+  }
+
+  /*
+   * Checks often enough to be at most a quarter interval late.
+   */
+  private long getSweepIntervalMillis() {
+    long shortest = Long.MAX_VALUE;
+    if (idleTtlMillis > 0) {
+      shortest = idleTtlMillis;
+    }
+    if (keepaliveIntervalMillis > 0) {
+      shortest = Math.min(shortest, keepaliveIntervalMillis);
+    }
+    return shortest == Long.MAX_VALUE ? 1000 : Math.max(MIN_SWEEP_INTERVAL_MILLIS, shortest / 4);
+  }
+
+  void sweep() {
+    for (Map.Entry<StroemClientTcpConnection, Long> entry : connections.entrySet()) {
+      StroemClientTcpConnection connection = entry.getKey();
+      if (!connection.isOpen() || connection.getQueuedPaymentCount() > 0) {
+        continue; // Still opening, closing or busy
+      }
+      long silentMillis = connection.getMillisSinceLastReceive();
+      if (idleTtlMillis > 0 && connection.getIdleMillis() >= idleTtlMillis) {
+        log.info("Closing connection to {}, idle for {} ms", connection.getServerIdHash(), connection.getIdleMillis());
+        close(connection);
+      } else if (keepaliveIntervalMillis > 0 && silentMillis >= 2 * keepaliveIntervalMillis) {
+        log.info("Closing connection to {}, no answer to keepalive for {} ms", connection.getServerIdHash(), silentMillis);
+        close(connection);
+      } else if (keepaliveIntervalMillis > 0 && silentMillis >= keepaliveIntervalMillis
+          && (entry.getValue() == NEVER || TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.getValue()) >= keepaliveIntervalMillis)) {
+        connections.replace(connection, entry.getValue(), System.nanoTime());
+        log.debug("Sending keepalive to {}", connection.getServerIdHash());
+        pingCount.incrementAndGet();
+        try {
+          probe.ping(connection);
+        } catch (RuntimeException e) {
+          log.warn("Keepalive failed, closing connection: {}", e.getMessage());
+          close(connection);
+        }
+      }
+    }
+  }
+
+  private void close(StroemClientTcpConnection connection) {
+    connections.remove(connection);
+    reapCount.incrementAndGet();
+    connection.disconnectWithoutSettlement();
+  }
+}
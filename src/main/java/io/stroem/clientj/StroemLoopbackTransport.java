@@ -0,0 +1,142 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.StreamParser;
+import org.bitcoinj.net.StreamParserFactory;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>An in-process transport: every connection is paired with a parser created by the issuer side
+ * {@link StreamParserFactory} (e.g. a stand-in issuer in a benchmark or a soak test), and no sockets are used.</p>
+ *
+ * <p>The written byte arrays are handed to the other side as they are. All events of a pair (open, bytes, close) are
+ * run on one thread of the pair's own, so the parsers are called the same way as from a NIO selector thread.</p>
+ */
+public class StroemLoopbackTransport implements StroemTransport {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemLoopbackTransport.class);
+
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder()
+      .setNameFormat("Stroem loopback %d").setDaemon(true).build();
+
+  private final StreamParserFactory issuerParserFactory;
+
+  /**
+   * @param issuerParserFactory Creates the issuer side parser of each connection. May return null to refuse the connection.
+   */
+  public StroemLoopbackTransport(StreamParserFactory issuerParserFactory) {
+    this.issuerParserFactory = issuerParserFactory;
+  }
+
+  @Override
+  public ListenableFuture<?> openConnection(String issuerHost, int port, StreamParser parser, int connectTimeoutMillis) {
+    StreamParser issuerParser = issuerParserFactory.getNewParser(InetAddress.getLoopbackAddress(), port);
+    if (issuerParser == null) {
+      return Futures.immediateFailedFuture(new IOException("Connection to " + issuerHost + " refused"));
+    }
+    return new LoopbackPair(parser, issuerParser).open();
+  }
+
+  /*
+   * The two ends of a connection, and the thread they share.
+   */
+  private static class LoopbackPair {
+    private final ListeningExecutorService executor = MoreExecutors.listeningDecorator(
+        Executors.newSingleThreadExecutor(THREAD_FACTORY));
+    private final End clientEnd;
+    private final End issuerEnd;
+
+    // Only used by the executor thread
+    private boolean closed = false;
+
+    private LoopbackPair(StreamParser clientParser, StreamParser issuerParser) {
+      clientEnd = new End(clientParser);
+      issuerEnd = new End(issuerParser);
+      clientEnd.peer = issuerEnd;
+      issuerEnd.peer = clientEnd;
+    }
+
+    private ListenableFuture<?> open() {
+      return executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          issuerEnd.parser.setWriteTarget(issuerEnd);
+          clientEnd.parser.setWriteTarget(clientEnd);
+          issuerEnd.parser.connectionOpened();
+          clientEnd.parser.connectionOpened();
+        }
+      });
+    }
+
+    private void deliver(End to, byte[] message) {
+      if (closed) {
+        return;
+      }
+      try {
+        to.feeder.feed(message);
+      } catch (Exception e) {
+        log.warn("Error when reading from the loopback connection, closing it", e);
+        close();
+      }
+    }
+
+    private void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      clientEnd.parser.connectionClosed();
+      issuerEnd.parser.connectionClosed();
+      executor.shutdown();
+    }
+
+    private class End implements MessageWriteTarget {
+      private final StreamParser parser;
+      private final StroemStreamFeeder feeder;
+      private End peer;
+
+      private End(StreamParser parser) {
+        this.parser = parser;
+        this.feeder = new StroemStreamFeeder(parser);
+      }
+
+      @Override
+      public void writeBytes(final byte[] message) throws IOException {
+        try {
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              deliver(peer, message);
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          throw new IOException("The loopback connection is closed");
+        }
+      }
+
+      @Override
+      public void closeConnection() {
+        try {
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              close();
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          // Already closed
+        }
+      }
+    }
+  }
+}
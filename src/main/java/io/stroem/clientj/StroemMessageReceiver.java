@@ -1,8 +1,10 @@
 package io.stroem.clientj;
 
 import io.stroem.clientj.domain.StroemEntity;
+import io.stroem.clientj.domain.StroemPromissoryNote;
 import org.bitcoinj.core.InsufficientMoneyException;
 import org.bitcoinj.protocols.channels.PaymentChannelClient;
+import org.bitcoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -10,6 +12,9 @@ import io.stroem.proto.StroemProtos;
 import org.bitcoin.paymentchannel.Protos;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.util.concurrent.locks.ReentrantLock;
+
 import static com.google.common.base.Preconditions.checkState;
 
 
@@ -23,17 +28,38 @@ public class StroemMessageReceiver {
   // Used to keep track of whether or not the "socket" ie connection is open and we can generate messages
   @VisibleForTesting  boolean connectionOpen = false;
 
+  /**
+   * Takes the promissory notes pushed by the issuer. Called on the network thread, must not block.
+   */
+  interface PromissoryNoteHandler {
+    void promissoryNoteReceived(StroemPromissoryNote note);
+  }
+
   private final PaymentChannelClient paymentChannelClient;
+  @Nullable private final PromissoryNoteHandler promissoryNoteHandler;
 
   private StroemEntity issuerGivenEntity; // Who the issuer claims to be
 
+  private final ReentrantLock openLock = Threading.lock("StroemMessageReceiver");
+  // True when paymentChannelClient.connectionOpen() has been called, guarded by openLock
+  private boolean paymentChannelOpened = false;
+
   // Call this method to get the issuer's Entity after the channel has been initiated
   public StroemEntity getIssuerGivenEntity() {
     return issuerGivenEntity;
   }
 
   public StroemMessageReceiver(PaymentChannelClient paymentChannelClient) {
+    this(paymentChannelClient, null);
+  }
+
+  /**
+   * @param paymentChannelClient Gets the payment channel messages
+   * @param promissoryNoteHandler Gets the promissory notes pushed by the issuer, or null to ignore them
+   */
+  StroemMessageReceiver(PaymentChannelClient paymentChannelClient, @Nullable PromissoryNoteHandler promissoryNoteHandler) {
     this.paymentChannelClient = paymentChannelClient;
+    this.promissoryNoteHandler = promissoryNoteHandler;
   }
 
   public StroemStep receiveMessage(StroemProtos.StroemMessage msg, StroemStep previousStep)
@@ -66,15 +92,26 @@ public class StroemMessageReceiver {
    * Just extract the payment channel message and send it to PaymentChannelClient.
    */
   private void readPaymentChannelMessage(StroemProtos.PaymentChannelMessage msg) throws InsufficientMoneyException {
-    ByteString byteString = msg.getPaymentChannelMessage();
+    Protos.TwoWayChannelMessage paymentChannelMsg;
     try {
-      Protos.TwoWayChannelMessage paymentChannelMsg = Protos.TwoWayChannelMessage.newBuilder().mergeFrom(byteString).build();
-      log.debug("Received a StroemMessage of type PaymentChannel: " + paymentChannelMsg.getType());
-      paymentChannelClient.receiveMessage(paymentChannelMsg);
+      paymentChannelMsg = decodePaymentChannelMessage(msg.getPaymentChannelMessage());
     } catch (InvalidProtocolBufferException e) {
       log.error("Unable to read the payment channel protobuf message: "+ e.getMessage());
       throw new RuntimeException(e);
     }
+    if (log.isDebugEnabled()) {
+      log.debug("Received a StroemMessage of type PaymentChannel: " + paymentChannelMsg.getType());
+    }
+    paymentChannelClient.receiveMessage(paymentChannelMsg);
+  }
+
+  /**
+   * Parses the payment channel message with the static parser, reading straight from the bytes of the
+   * received frame (no builder, and no copy of the message bytes before parsing).
+   */
+  @VisibleForTesting
+  static Protos.TwoWayChannelMessage decodePaymentChannelMessage(ByteString byteString) throws InvalidProtocolBufferException {
+    return Protos.TwoWayChannelMessage.PARSER.parseFrom(byteString);
   }
 
   /**
@@ -86,7 +123,7 @@ public class StroemMessageReceiver {
     if(step == StroemStep.WAITING_FOR_SERVER_STROM_VERSION) {
       int serverVersion = msg.getVersion();
       if(serverVersion == StroemClientTcpConnection.CLIENT_STROEM_VERSION) {
-        paymentChannelClient.connectionOpen();
+        openPaymentChannel();
         issuerGivenEntity = new StroemEntity(msg.getEntity());
         return StroemStep.WAITING_FOR_PAYMENT_CHANNEL_INITIATE;
       } else {
@@ -98,13 +135,31 @@ public class StroemMessageReceiver {
   }
 
   /**
-   *
+   * Starts the payment channel handshake (sends CLIENT_VERSION), unless it has already been started.
+   * Called early when the handshake is pipelined (see {@link StroemPipelinedHandshake}).
+   */
+  void openPaymentChannel() {
+    openLock.lock();
+    try {
+      if (!paymentChannelOpened) {
+        paymentChannelOpened = true;
+        paymentChannelClient.connectionOpen();
+      }
+    } finally {
+      openLock.unlock();
+    }
+  }
+
+  /**
+   * A promissory note pushed by the issuer, handed over without waiting for whoever consumes it.
    */
   private void receivePromissoryNote(StroemProtos.PromissoryNote msg) {
     log.debug("Received Stroem promissory note");
-    //  TODO: Not needed yet
-    throw new IllegalStateException("not impl");
-
+    if (promissoryNoteHandler == null) {
+      log.info("Ignoring promissory note {} from the issuer, nobody is listening", msg.getId());
+      return;
+    }
+    promissoryNoteHandler.promissoryNoteReceived(new StroemPromissoryNote(msg));
   }
 
   /**
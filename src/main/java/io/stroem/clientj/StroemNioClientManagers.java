@@ -0,0 +1,109 @@
+package io.stroem.clientj;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.net.ClientConnectionManager;
+import org.bitcoinj.net.NioClientManager;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A small striped set of bitcoinj {@link NioClientManager}s, each running one selector thread.</p>
+ *
+ * <p>Give a manager from this class to the {@link StroemClientTcpConnection} constructor and the connection will be
+ * registered with that selector instead of starting a {@link org.bitcoinj.net.NioClient} (with a thread of its own).
+ * This way the thread count stays flat when the number of connections grows.</p>
+ *
+ * <p>A channel is always mapped to the same stripe (using the server id hash), so all connections to the
+ * same channel are handled by the same thread.</p>
+ */
+public class StroemNioClientManagers {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemNioClientManagers.class);
+
+  // Guarded by the class
+  private static StroemNioClientManagers shared;
+
+  private final NioClientManager[] managers;
+  private volatile boolean stopped = false;
+
+  /**
+   * Starts the given number of selector threads.
+   *
+   * @param stripes The number of NIO client managers (i.e. selector threads) to use.
+   */
+  public StroemNioClientManagers(int stripes) {
+    checkArgument(stripes > 0, "Need at least one stripe");
+    managers = new NioClientManager[stripes];
+    for (int i = 0; i < stripes; i++) {
+      managers[i] = new NioClientManager();
+      managers[i].startAsync();
+    }
+    for (NioClientManager manager : managers) {
+      manager.awaitRunning();
+    }
+    log.debug("Started {} NIO client managers", stripes);
+  }
+
+  /**
+   * @return A process wide instance, with one selector thread per available core. Started on first use, and again on
+   * the first use after it has been stopped.
+   */
+  public static synchronized StroemNioClientManagers getShared() {
+    if (shared == null) {
+      shared = new StroemNioClientManagers(Runtime.getRuntime().availableProcessors());
+    }
+    return shared;
+  }
+
+  /**
+   * @param serverIdHash The real ID of the payment channel (see {@link io.stroem.clientj.domain.StroemId#getRealPaymentChannelServerId()})
+   * @return The (running) manager that should handle the connection of the given channel.
+   * @throws IllegalStateException if the managers have been stopped.
+   */
+  public ClientConnectionManager getManager(Sha256Hash serverIdHash) {
+    checkState(!stopped, "The NIO client managers are stopped");
+    return managers[Math.abs(serverIdHash.hashCode() % managers.length)];
+  }
+
+  /**
+   * @return The number of stripes, i.e. selector threads.
+   */
+  public int getStripeCount() {
+    return managers.length;
+  }
+
+  /**
+   * @return The number of connections currently handled by all the managers.
+   */
+  public int getConnectedClientCount() {
+    int count = 0;
+    for (NioClientManager manager : managers) {
+      count += manager.getConnectedClientCount();
+    }
+    return count;
+  }
+
+  /**
+   * Closes all connections and stops the selector threads. If this is the shared instance, {@link #getShared()} will
+   * start a new one.
+   */
+  public void stop() {
+    synchronized (StroemNioClientManagers.class) {
+      if (stopped) {
+        return;
+      }
+      stopped = true;
+      if (shared == this) {
+        shared = null;
+      }
+    }
+    for (NioClientManager manager : managers) {
+      manager.stopAsync();
+    }
+    for (NioClientManager manager : managers) {
+      manager.awaitTerminated();
+    }
+    log.debug("Stopped {} NIO client managers", managers.length);
+  }
+}
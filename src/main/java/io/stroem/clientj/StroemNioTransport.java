@@ -0,0 +1,91 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.net.ClientConnectionManager;
+import org.bitcoinj.net.NioClient;
+import org.bitcoinj.net.StreamParser;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * <p>TCP transport using bitcoinj's NIO classes.</p>
+ *
+ * <p>Without a {@link ClientConnectionManager} every connection gets a {@link NioClient}, with a selector thread of its
+ * own. With a manager (see {@link StroemNioClientManagers}) the connections are registered with the manager's
+ * selector thread.</p>
+ *
+ * <p>The issuer host is resolved by a {@link StroemHostResolver}, so opening a connection never waits for DNS on the
+ * caller's thread.</p>
+ */
+public class StroemNioTransport implements StroemTransport {
+
+  private static final StroemNioTransport OWN_THREAD = new StroemNioTransport(null);
+
+  @Nullable private final ClientConnectionManager connectionManager;
+  private final StroemHostResolver resolver;
+
+  /**
+   * @param connectionManager A running manager the connections will be registered with,
+   *                          or null if every connection should use a NIO thread of its own.
+   */
+  public StroemNioTransport(@Nullable ClientConnectionManager connectionManager) {
+    this(connectionManager, StroemHostResolver.getDefault());
+  }
+
+  /**
+   * @param connectionManager A running manager, or null
+   * @param resolver Resolves the issuer hosts
+   */
+  public StroemNioTransport(@Nullable ClientConnectionManager connectionManager, StroemHostResolver resolver) {
+    this.connectionManager = connectionManager;
+    this.resolver = resolver;
+  }
+
+  /**
+   * @param connectionManager A running manager, or null
+   * @return A transport using the manager, or the shared transport where every connection has a thread of its own
+   */
+  public static StroemNioTransport forManager(@Nullable ClientConnectionManager connectionManager) {
+    return connectionManager == null ? OWN_THREAD : new StroemNioTransport(connectionManager);
+  }
+
+  /**
+   * Note: Without a connection manager a failed connect is reported through {@link StreamParser#connectionClosed()},
+   * since {@link NioClient} does not tell us.
+   */
+  @Override
+  public ListenableFuture<?> openConnection(String issuerHost, final int port, final StreamParser parser,
+                                            final int connectTimeoutMillis) {
+    return Futures.transform(resolver.resolve(issuerHost), new AsyncFunction<InetAddress, Object>() {
+      @Override
+      @SuppressWarnings("unchecked")
+      public ListenableFuture<Object> apply(InetAddress address) {
+        return (ListenableFuture<Object>) openConnection(new InetSocketAddress(address, port), parser, connectTimeoutMillis);
+      }
+    });
+  }
+
+  private ListenableFuture<?> openConnection(InetSocketAddress inetSocketAddress, StreamParser parser,
+                                             int connectTimeoutMillis) {
+    if (connectionManager != null) {
+      return connectionManager.openConnection(inetSocketAddress, parser);
+    }
+    try {
+      // We don't need to keep this around. The parser will handle things from here on out.
+      new NioClient(inetSocketAddress, parser, connectTimeoutMillis);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    return Futures.immediateFuture(null);
+  }
+
+  @Override
+  public String toString() {
+    return connectionManager == null ? "StroemNioTransport{own thread}" : "StroemNioTransport{" + connectionManager + '}';
+  }
+}
@@ -0,0 +1,247 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.protocols.channels.PaymentIncrementAck;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Collects small increments made within a time window into one payment channel increment.</p>
+ *
+ * <p>Every increment costs a signature and a round trip to the issuer, and the channel only has one increment in
+ * flight at a time. For a workload that pays tiny amounts many times per second (metering) the coalescer sends the
+ * total of the increments that arrive within the window, up to a max value, as one increment. When the issuer has
+ * acked it, every caller's future completes with that ack (so {@link PaymentIncrementAck#getValue()} is the total of
+ * the batch, not the caller's amount). If it fails, all the callers' futures fail.</p>
+ *
+ * <p>Only plain value increments can be coalesced (see
+ * {@link StroemClientTcpConnection#incrementPaymentValueAsync(Coin, ByteString)}). Merchant payments can't: each one
+ * carries a promissory note request for the merchant's own amount and key.</p>
+ *
+ * <p>A batch whose window closes is sent on the executor (see {@link #setExecutor(Executor)}), since sending signs
+ * the increment and can block on the socket.</p>
+ *
+ * <p>A window of 0 sends every increment at once. The trade-off between window, throughput and latency is measured
+ * by StroemPaymentCoalescerBenchmark (in the tests).</p>
+ */
+public class StroemPaymentCoalescer {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemPaymentCoalescer.class);
+
+  /**
+   * Sends the total of a batch.
+   */
+  interface IncrementSink {
+    ListenableFuture<PaymentIncrementAck> increment(Coin total);
+  }
+
+  private final IncrementSink sink;
+  private final long windowMillis;
+  private final Coin maxBatchValue;
+  private volatile Executor executor = Threading.USER_THREAD;
+
+  // Guarded by "this"
+  private List<SettableFuture<PaymentIncrementAck>> batch = new ArrayList<SettableFuture<PaymentIncrementAck>>();
+  private Coin batchValue = Coin.ZERO;
+  private WindowTimer windowTimer;
+
+  // Statistics
+  private final AtomicLong incrementCount = new AtomicLong();
+  private final AtomicLong batchCount = new AtomicLong();
+
+  /**
+   * @param connection An open connection
+   * @param info The info sent to the issuer with every batch
+   * @param windowMillis How long to collect increments after the first one of a batch, 0 for no coalescing
+   * @param maxBatchValue The max total of a batch, a batch that reaches it is sent at once
+   */
+  public StroemPaymentCoalescer(final StroemClientTcpConnection connection, final ByteString info, long windowMillis,
+                                Coin maxBatchValue) {
+    this(new IncrementSink() {
+      @Override
+      public ListenableFuture<PaymentIncrementAck> increment(Coin total) {
+        return connection.incrementPaymentValueAsync(total, info);
+      }
+    }, windowMillis, maxBatchValue);
+  }
+
+  StroemPaymentCoalescer(IncrementSink sink, long windowMillis, Coin maxBatchValue) {
+    checkArgument(windowMillis >= 0, "The window cannot be negative");
+    checkArgument(maxBatchValue.signum() > 0, "The max batch value must be positive");
+    this.sink = sink;
+    this.windowMillis = windowMillis;
+    this.maxBatchValue = maxBatchValue;
+  }
+
+  /**
+   * Adds the amount to the current batch. Never blocks.
+   *
+   * @return A future that returns the issuer's ack of the batch the amount was sent in
+   */
+  public ListenableFuture<PaymentIncrementAck> increment(Coin amount) {
+    checkArgument(amount.signum() > 0, "The amount must be positive");
+    incrementCount.incrementAndGet();
+    SettableFuture<PaymentIncrementAck> future = SettableFuture.create();
+    List<Batch> toSend = new ArrayList<Batch>(2);
+    synchronized (this) {
+      if (batchValue.add(amount).compareTo(maxBatchValue) > 0) {
+        // Does not fit, send what we have (an amount larger than the max is sent alone)
+        addIfNotEmpty(toSend, takeBatch());
+      }
+      batch.add(future);
+      batchValue = batchValue.add(amount);
+      if (windowMillis == 0 || batchValue.compareTo(maxBatchValue) >= 0) {
+        addIfNotEmpty(toSend, takeBatch());
+      } else if (windowTimer == null) {
+        windowTimer = new WindowTimer();
+        windowTimer.future = StroemThreading.TIMER.schedule(windowTimer, windowMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    for (Batch full : toSend) {
+      send(full);
+    }
+    return future;
+  }
+
+  /**
+   * Sends the current batch now, without waiting for the window to close.
+   */
+  public void flush() {
+    Batch toSend;
+    synchronized (this) {
+      toSend = takeBatch();
+    }
+    if (toSend != null) {
+      send(toSend);
+    }
+  }
+
+  /**
+   * Sets the executor that sends the batches whose window has closed, default is bitcoinj's user thread.
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = checkNotNull(executor);
+  }
+
+  /**
+   * @return The number of increments made
+   */
+  public long getIncrementCount() {
+    return incrementCount.get();
+  }
+
+  /**
+   * @return The number of increments sent to the issuer
+   */
+  public long getBatchCount() {
+    return batchCount.get();
+  }
+
+  /*
+   * Guarded by "this".
+   */
+  private Batch takeBatch() {
+    if (windowTimer != null) {
+      windowTimer.future.cancel(false);
+      windowTimer = null;
+    }
+    if (batch.isEmpty()) {
+      return null;
+    }
+    Batch taken = new Batch(batch, batchValue);
+    batch = new ArrayList<SettableFuture<PaymentIncrementAck>>();
+    batchValue = Coin.ZERO;
+    return taken;
+  }
+
+  /*
+   * Sends the batch of the window that closed, unless it has been sent already. A timer that fired before the batch
+   * was taken is no longer the current one, and must not send the next batch early.
+   */
+  private void windowClosed(WindowTimer closed) {
+    Batch toSend;
+    synchronized (this) {
+      if (windowTimer != closed) {
+        return;
+      }
+      toSend = takeBatch();
+    }
+    if (toSend != null) {
+      send(toSend);
+    }
+  }
+
+  private static void addIfNotEmpty(List<Batch> batches, Batch batch) {
+    if (batch != null) {
+      batches.add(batch);
+    }
+  }
+
+  private void send(final Batch toSend) {
+    batchCount.incrementAndGet();
+    log.debug("Sending {} increments as one, total {}", toSend.futures.size(), toSend.value);
+    ListenableFuture<PaymentIncrementAck> ackFuture;
+    try {
+      ackFuture = sink.increment(toSend.value);
+    } catch (RuntimeException e) {
+      ackFuture = Futures.immediateFailedFuture(e);
+    }
+    Futures.addCallback(ackFuture, new FutureCallback<PaymentIncrementAck>() {
+      @Override
+      public void onSuccess(PaymentIncrementAck ack) {
+        for (SettableFuture<PaymentIncrementAck> future : toSend.futures) {
+          future.set(ack);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        for (SettableFuture<PaymentIncrementAck> future : toSend.futures) {
+          future.setException(t);
+        }
+      }
+    });
+  }
+
+  /*
+   * Runs on the timer thread, and hands the send to the executor.
+   */
+  private class WindowTimer implements Runnable {
+    // Guarded by the coalescer
+    private ScheduledFuture<?> future;
+
+    @Override
+    public void run() {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          windowClosed(WindowTimer.this);
+        }
+      });
+    }
+  }
+
+  private static class Batch {
+    private final List<SettableFuture<PaymentIncrementAck>> futures;
+    private final Coin value;
+
+    private Batch(List<SettableFuture<PaymentIncrementAck>> futures, Coin value) {
+      this.futures = futures;
+      this.value = value;
+    }
+  }
+}
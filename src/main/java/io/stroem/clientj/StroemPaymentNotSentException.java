@@ -0,0 +1,12 @@
+package io.stroem.clientj;
+
+/**
+ * A payment failed before it was sent to the issuer (for example because the connection was closed while the
+ * payment was queued). Nothing was paid, so it is safe to make the payment again on a new connection.
+ */
+public class StroemPaymentNotSentException extends Exception {
+
+  public StroemPaymentNotSentException(Throwable cause) {
+    super("Payment was not sent to the issuer: " + cause.getMessage(), cause);
+  }
+}
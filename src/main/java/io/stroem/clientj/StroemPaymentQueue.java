@@ -0,0 +1,220 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.protocols.channels.IPaymentChannelClient;
+import org.bitcoinj.protocols.channels.PaymentChannelClient;
+import org.bitcoinj.protocols.channels.PaymentIncrementAck;
+import org.bitcoinj.protocols.channels.ValueOutOfRangeException;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Queues the payment increments of one connection, so that many callers can have payments in flight at the
+ * same time.</p>
+ *
+ * <p>bitcoinj's {@link PaymentChannelClient} only accepts one increment at a time, so the queue sends the next
+ * increment as soon as the ack of the previous one is received (without waiting for the caller to wake up).
+ * Acks are matched to the callers in the order the payments were submitted.</p>
+ *
+ * <p>The state of a payment is its future: pending while it is queued or waiting for its ack, then done or failed.
+ * A payment that failed before it was sent fails with a {@link StroemPaymentNotSentException}. There is no
+ * {@link StroemStep} per payment: with one increment on the wire, the connection's step (WAITING_FOR_PAYMENT_ACK until
+ * the queue drains) and {@link #size()} tell the rest.</p>
+ */
+class StroemPaymentQueue {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemPaymentQueue.class);
+
+  private static class PendingPayment {
+    private final Coin amount;
+    private final ByteString info;
+    private final SettableFuture<PaymentIncrementAck> ackFuture = SettableFuture.create();
+
+    private PendingPayment(Coin amount, ByteString info) {
+      this.amount = amount;
+      this.info = info;
+    }
+  }
+
+  private final IPaymentChannelClient paymentChannelClient;
+  @Nullable private final KeyParameter userKeySetup;
+
+  private final ReentrantLock lock = Threading.lock("StroemPaymentQueue");
+  private final Condition roomInWindow = lock.newCondition();
+
+  // Guarded by lock
+  private final Deque<PendingPayment> queued = new ArrayDeque<PendingPayment>();
+  private PendingPayment inFlight;
+  private int maxQueued;
+  private Throwable closedCause;
+
+  /**
+   * @param paymentChannelClient An open payment channel client
+   * @param userKeySetup Key derived from a user password, used to decrypt myKey, if it is encrypted.
+   * @param maxQueued How many payments (queued or sent) that are allowed at the same time.
+   */
+  StroemPaymentQueue(IPaymentChannelClient paymentChannelClient, @Nullable KeyParameter userKeySetup, int maxQueued) {
+    checkArgument(maxQueued > 0, "Must allow at least one queued payment");
+    this.paymentChannelClient = paymentChannelClient;
+    this.userKeySetup = userKeySetup;
+    this.maxQueued = maxQueued;
+  }
+
+  /**
+   * Adds a payment to the queue.
+   *
+   * @param amount The amount to increment the channel with
+   * @param info The info to send to the issuer together with the payment
+   * @param waitForRoom If true, the caller is blocked while the queue is full, otherwise the returned future fails
+   *                    with an IllegalStateException.
+   * @return A future that returns the issuer's ack of this payment
+   * @throws InterruptedException If interrupted while waiting for room in the queue
+   */
+  ListenableFuture<PaymentIncrementAck> submit(Coin amount, ByteString info, boolean waitForRoom) throws InterruptedException {
+    PendingPayment payment = new PendingPayment(amount, info);
+    lock.lock();
+    try {
+      while (closedCause == null && size() >= maxQueued) {
+        if (!waitForRoom) {
+          return Futures.immediateFailedFuture(new IllegalStateException("Too many queued payments: " + size()));
+        }
+        roomInWindow.await();
+      }
+      if (closedCause != null) {
+        return Futures.immediateFailedFuture(new StroemPaymentNotSentException(closedCause));
+      }
+      queued.add(payment);
+    } finally {
+      lock.unlock();
+    }
+    dispatchNext();
+    return payment.ackFuture;
+  }
+
+  /**
+   * Fails all queued and sent payments. New payments will fail immediately.
+   * Payments that were never sent to the issuer fail with a {@link StroemPaymentNotSentException}.
+   */
+  void failAll(Throwable cause) {
+    PendingPayment[] toFail;
+    lock.lock();
+    try {
+      closedCause = cause;
+      toFail = queued.toArray(new PendingPayment[queued.size()]);
+      queued.clear();
+      roomInWindow.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    for (PendingPayment payment : toFail) {
+      payment.ackFuture.setException(new StroemPaymentNotSentException(cause));
+    }
+    PendingPayment sent;
+    lock.lock();
+    try {
+      sent = inFlight;
+    } finally {
+      lock.unlock();
+    }
+    if (sent != null) {
+      complete(sent, null, cause);
+    }
+  }
+
+  void setMaxQueuedPayments(int maxQueued) {
+    checkArgument(maxQueued > 0, "Must allow at least one queued payment");
+    lock.lock();
+    try {
+      this.maxQueued = maxQueued;
+      roomInWindow.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of payments that are queued or sent but not yet acked
+   */
+  int size() {
+    lock.lock();
+    try {
+      return queued.size() + (inFlight == null ? 0 : 1);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isIdle() {
+    return size() == 0;
+  }
+
+  /*
+   * Sends the first queued payment, unless a payment is already waiting for an ack.
+   */
+  private void dispatchNext() {
+    final PendingPayment payment;
+    lock.lock();
+    try {
+      if (inFlight != null || queued.isEmpty()) {
+        return;
+      }
+      payment = inFlight = queued.poll();
+    } finally {
+      lock.unlock();
+    }
+
+    ListenableFuture<PaymentIncrementAck> ackFuture;
+    try {
+      ackFuture = paymentChannelClient.incrementPayment(payment.amount, payment.info, userKeySetup);
+    } catch (ValueOutOfRangeException | IllegalStateException | ECKey.KeyIsEncryptedException e) {
+      complete(payment, null, e);
+      return;
+    }
+
+    Futures.addCallback(ackFuture, new FutureCallback<PaymentIncrementAck>() {
+      @Override
+      public void onSuccess(PaymentIncrementAck ack) {
+        complete(payment, ack, null);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        complete(payment, null, t);
+      }
+    });
+  }
+
+  private void complete(PendingPayment payment, @Nullable PaymentIncrementAck ack, @Nullable Throwable t) {
+    lock.lock();
+    try {
+      if (inFlight != payment) {
+        return; // Already completed
+      }
+      inFlight = null;
+      roomInWindow.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (t == null) {
+      payment.ackFuture.set(ack);
+    } else {
+      log.debug("Payment of {} failed: {}", payment.amount, t.getMessage());
+      payment.ackFuture.setException(t);
+    }
+    dispatchNext();
+  }
+}
@@ -0,0 +1,161 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.StreamParser;
+import org.bitcoinj.net.StreamParserFactory;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.Pipe;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>An in-process transport where the bytes go through a pair of OS pipes ({@link Pipe}), one per direction.
+ * Every connection is paired with a parser created by the issuer side {@link StreamParserFactory}.</p>
+ *
+ * <p>Unlike {@link StroemLoopbackTransport} the bytes are copied and may arrive in other chunks than they were
+ * written, like on a socket. Each end reads on a blocking thread of its own.</p>
+ */
+public class StroemPipeTransport implements StroemTransport {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemPipeTransport.class);
+
+  private static final int READ_BUFFER_SIZE = 8192;
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder()
+      .setNameFormat("Stroem pipe reader %d").setDaemon(true).build();
+
+  private final StreamParserFactory issuerParserFactory;
+
+  /**
+   * @param issuerParserFactory Creates the issuer side parser of each connection. May return null to refuse the connection.
+   */
+  public StroemPipeTransport(StreamParserFactory issuerParserFactory) {
+    this.issuerParserFactory = issuerParserFactory;
+  }
+
+  @Override
+  public ListenableFuture<?> openConnection(String issuerHost, int port, StreamParser parser, int connectTimeoutMillis) {
+    StreamParser issuerParser = issuerParserFactory.getNewParser(InetAddress.getLoopbackAddress(), port);
+    if (issuerParser == null) {
+      return Futures.immediateFailedFuture(new IOException("Connection to " + issuerHost + " refused"));
+    }
+    try {
+      new PipePair(parser, issuerParser).open();
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    return Futures.immediateFuture(null);
+  }
+
+  private static class PipePair {
+    private final End clientEnd;
+    private final End issuerEnd;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private PipePair(StreamParser clientParser, StreamParser issuerParser) throws IOException {
+      Pipe toIssuer = Pipe.open();
+      Pipe toClient = Pipe.open();
+      clientEnd = new End(clientParser, toClient.source(), toIssuer.sink());
+      issuerEnd = new End(issuerParser, toIssuer.source(), toClient.sink());
+    }
+
+    /*
+     * The client reader thread opens both ends, so that the parsers are not called on the caller's thread.
+     */
+    private void open() {
+      THREAD_FACTORY.newThread(new Runnable() {
+        @Override
+        public void run() {
+          issuerEnd.parser.setWriteTarget(issuerEnd);
+          clientEnd.parser.setWriteTarget(clientEnd);
+          issuerEnd.parser.connectionOpened();
+          clientEnd.parser.connectionOpened();
+          THREAD_FACTORY.newThread(issuerEnd).start();
+          clientEnd.run();
+        }
+      }).start();
+    }
+
+    private void close() {
+      if (!closed.compareAndSet(false, true)) {
+        return;
+      }
+      // The reader threads will wake up and tell their parsers
+      closeQuietly(clientEnd.source);
+      closeQuietly(clientEnd.sink);
+      closeQuietly(issuerEnd.source);
+      closeQuietly(issuerEnd.sink);
+    }
+
+    private static void closeQuietly(Channel channel) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.debug("Unable to close pipe: {}", e.getMessage());
+      }
+    }
+
+    private class End implements MessageWriteTarget, Runnable {
+      private final StreamParser parser;
+      private final Pipe.SourceChannel source;
+      private final Pipe.SinkChannel sink;
+      private final ReentrantLock writeLock = Threading.lock("StroemPipeTransport");
+
+      private End(StreamParser parser, Pipe.SourceChannel source, Pipe.SinkChannel sink) {
+        this.parser = parser;
+        this.source = source;
+        this.sink = sink;
+      }
+
+      @Override
+      public void writeBytes(byte[] message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        writeLock.lock();
+        try {
+          while (buffer.hasRemaining()) {
+            sink.write(buffer);
+          }
+        } finally {
+          writeLock.unlock();
+        }
+      }
+
+      @Override
+      public void closeConnection() {
+        close();
+      }
+
+      /*
+       * Reads until the pipe is closed.
+       */
+      @Override
+      public void run() {
+        StroemStreamFeeder feeder = new StroemStreamFeeder(parser);
+        ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        try {
+          while (source.read(readBuffer) != -1) {
+            readBuffer.flip();
+            feeder.feed(readBuffer);
+            readBuffer.clear();
+          }
+        } catch (ClosedChannelException e) {
+          // Closed by one of the ends
+        } catch (Exception e) {
+          log.warn("Error when reading from the pipe, closing it", e);
+        } finally {
+          close();
+          parser.connectionClosed();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package io.stroem.clientj;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Decides if a new connection sends the payment channel CLIENT_VERSION right after the Stroem client version,
+ * without waiting for the issuer's Stroem version first. This saves one round trip on every connection setup.</p>
+ *
+ * <p>Off by default. When on, an issuer that fails a pipelined setup without answering the early CLIENT_VERSION
+ * (it sends a protocol error, or closes the connection, before any payment channel message) gets the sequential
+ * handshake for a while (see {@link #setSequentialMillis(long)}). Failures on our side (a setup deadline, the read
+ * timeout, or a disconnect) do not count, but a connection dropped by the network in that window can't be told apart
+ * from an issuer closing it. {@link StroemClientTcpConnection#connectAsync} retries such a failed setup once, with the
+ * sequential handshake.</p>
+ */
+public class StroemPipelinedHandshake {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemPipelinedHandshake.class);
+
+  /**
+   * How long a host that failed a pipelined setup gets the sequential handshake
+   */
+  public static final long DEFAULT_SEQUENTIAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private static volatile boolean enabled = false;
+  private static volatile long sequentialMillis = DEFAULT_SEQUENTIAL_MILLIS;
+
+  // Hosts that failed a pipelined setup, and until when (System.nanoTime()) they get the sequential handshake
+  private static final ConcurrentMap<String, Long> sequentialHosts = new ConcurrentHashMap<String, Long>();
+
+  private StroemPipelinedHandshake() {
+  }
+
+  /**
+   * @param enabled True if new connections should pipeline the handshake
+   */
+  public static void setEnabled(boolean enabled) {
+    StroemPipelinedHandshake.enabled = enabled;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param sequentialMillis How long a host that failed a pipelined setup gets the sequential handshake. Applies to
+   *                         the failures from now on.
+   */
+  public static void setSequentialMillis(long sequentialMillis) {
+    checkArgument(sequentialMillis >= 0, "The time must not be negative");
+    StroemPipelinedHandshake.sequentialMillis = sequentialMillis;
+  }
+
+  /**
+   * @param issuerHost The host of the issuer
+   * @return True if a new connection to the host should pipeline the handshake
+   */
+  public static boolean isEnabledFor(String issuerHost) {
+    if (!enabled) {
+      return false;
+    }
+    Long sequentialUntil = sequentialHosts.get(issuerHost);
+    if (sequentialUntil == null) {
+      return true;
+    }
+    if (System.nanoTime() - sequentialUntil < 0) {
+      return false;
+    }
+    if (sequentialHosts.remove(issuerHost, sequentialUntil)) {
+      log.debug("Pipelining the handshake to {} again", issuerHost);
+    }
+    return true;
+  }
+
+  /**
+   * Forgets which hosts have failed a pipelined setup.
+   */
+  public static void clearAll() {
+    sequentialHosts.clear();
+  }
+
+  /**
+   * Call when the issuer failed a pipelined setup without answering the early CLIENT_VERSION.
+   */
+  static void failed(String issuerHost) {
+    long millis = sequentialMillis;
+    if (sequentialHosts.put(issuerHost, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis)) == null) {
+      log.info("Pipelined handshake to {} failed, using the sequential handshake for {} ms", issuerHost, millis);
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package io.stroem.clientj;
+
+import io.stroem.clientj.domain.StroemPromissoryNote;
+
+/**
+ * Told about promissory notes pushed by the issuer (see
+ * {@link StroemClientTcpConnection#addPromissoryNoteListener(StroemPromissoryNoteListener)}).
+ */
+public interface StroemPromissoryNoteListener {
+  void promissoryNoteReceived(StroemClientTcpConnection connection, StroemPromissoryNote note);
+}
@@ -0,0 +1,130 @@
+package io.stroem.clientj;
+
+import io.stroem.clientj.domain.StroemPromissoryNote;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Delivers the promissory notes pushed by the issuer to one listener, on the listener's executor.</p>
+ *
+ * <p>The network thread only adds the note to a lock-free queue and, if no delivery is running, submits one to the
+ * executor. It never waits for the listener. The queue is bounded: when the listener has fallen behind by the
+ * capacity, new notes are dropped (and counted, see {@link #getDroppedCount()}). At most one delivery runs at a
+ * time, so the listener gets the notes one by one, in the order they were received.</p>
+ */
+public class StroemPromissoryNoteQueue {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemPromissoryNoteQueue.class);
+
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private final StroemClientTcpConnection connection;
+  private final StroemPromissoryNoteListener listener;
+  private final Executor executor;
+  private final int capacity;
+
+  private final ConcurrentLinkedQueue<StroemPromissoryNote> notes = new ConcurrentLinkedQueue<StroemPromissoryNote>();
+  private final AtomicInteger size = new AtomicInteger(); // ConcurrentLinkedQueue.size() is not constant time
+  private final AtomicBoolean delivering = new AtomicBoolean(false);
+
+  // Statistics
+  private final AtomicLong deliveredCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  private final Runnable deliverTask = new Runnable() {
+    @Override
+    public void run() {
+      deliver();
+    }
+  };
+
+  StroemPromissoryNoteQueue(StroemClientTcpConnection connection, StroemPromissoryNoteListener listener,
+                            Executor executor, int capacity) {
+    checkArgument(capacity > 0, "The capacity must be positive");
+    this.connection = connection;
+    this.listener = listener;
+    this.executor = executor;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Queues the note for the listener. Never blocks.
+   *
+   * @return false if the queue was full and the note was dropped
+   */
+  boolean offer(StroemPromissoryNote note) {
+    if (size.incrementAndGet() > capacity) {
+      size.decrementAndGet();
+      droppedCount.incrementAndGet();
+      log.warn("Promissory note listener is {} notes behind, dropping note {}", capacity, note.getId());
+      return false;
+    }
+    notes.add(note);
+    scheduleDelivery();
+    return true;
+  }
+
+  private void scheduleDelivery() {
+    if (delivering.compareAndSet(false, true)) {
+      try {
+        executor.execute(deliverTask);
+      } catch (RejectedExecutionException e) {
+        delivering.set(false);
+        log.warn("Unable to deliver promissory notes: {}", e.getMessage());
+      }
+    }
+  }
+
+  /*
+   * Runs on the executor, until the queue is empty.
+   */
+  private void deliver() {
+    StroemPromissoryNote note;
+    while ((note = notes.poll()) != null) {
+      size.decrementAndGet();
+      deliveredCount.incrementAndGet();
+      try {
+        listener.promissoryNoteReceived(connection, note);
+      } catch (RuntimeException e) {
+        log.warn("Promissory note listener failed", e);
+      }
+    }
+    delivering.set(false);
+    // A note may have been added after the last poll, but before the flag was cleared
+    if (!notes.isEmpty()) {
+      scheduleDelivery();
+    }
+  }
+
+  StroemPromissoryNoteListener getListener() {
+    return listener;
+  }
+
+  /**
+   * @return The number of notes waiting for the listener
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * @return The number of notes handed to the listener
+   */
+  public long getDeliveredCount() {
+    return deliveredCount.get();
+  }
+
+  /**
+   * @return The number of notes dropped because the listener was too far behind
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+}
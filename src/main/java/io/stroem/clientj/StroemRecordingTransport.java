@@ -0,0 +1,177 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.StreamParser;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Records the frames of every connection opened through another transport, one {@link StroemTrafficRecording}
+ * file per connection, to reproduce what a connection saw (e.g. a latency issue in production).</p>
+ *
+ * <pre>
+ * StroemTransport transport = new StroemRecordingTransport(new StroemNioTransport(), new File("/var/tmp/stroem"));
+ * </pre>
+ *
+ * <p>The frames are recorded above the wrapped transport, so a {@link StroemTlsTransport} records the plain
+ * StroemMessages. Recording costs a copy of every frame and a buffered file write, on the thread that reads or
+ * writes it. A connection whose file can't be written is not recorded (the connection itself is not affected).</p>
+ */
+public class StroemRecordingTransport implements StroemTransport {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemRecordingTransport.class);
+
+  private final StroemTransport transport;
+  private final File directory;
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * @param transport The transport to record
+   * @param directory Where the recordings are written, it must exist
+   */
+  public StroemRecordingTransport(StroemTransport transport, File directory) {
+    checkArgument(directory.isDirectory(), "Not a directory: " + directory);
+    this.transport = transport;
+    this.directory = directory;
+  }
+
+  @Override
+  public ListenableFuture<?> openConnection(String issuerHost, int port, StreamParser parser, int connectTimeoutMillis) {
+    File file = new File(directory, String.format("stroem-%s-%d-%d-%d.rec", issuerHost.replaceAll("[^A-Za-z0-9.-]", "_"),
+        port, System.currentTimeMillis(), sequence.incrementAndGet()));
+    final StroemTrafficRecording.Writer writer;
+    try {
+      writer = new StroemTrafficRecording.Writer(file, issuerHost, port);
+    } catch (IOException e) {
+      log.warn("Unable to record the connection to {} in {}: {}", issuerHost, file, e.getMessage());
+      return transport.openConnection(issuerHost, port, parser, connectTimeoutMillis);
+    }
+    log.debug("Recording the connection to {} in {}", issuerHost, file);
+
+    final RecordingParser recordingParser = new RecordingParser(parser, writer);
+    ListenableFuture<?> openFuture = transport.openConnection(issuerHost, port, recordingParser, connectTimeoutMillis);
+    Futures.addCallback(openFuture, new FutureCallback<Object>() {
+      @Override
+      public void onSuccess(Object result) {
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        recordingParser.stopRecording();
+      }
+    });
+    return openFuture;
+  }
+
+  @Override
+  public String toString() {
+    return "StroemRecordingTransport{" + transport + " to " + directory + '}';
+  }
+
+  /*
+   * Records the bytes the parser consumes, and the bytes written to its write target.
+   */
+  private static class RecordingParser implements StreamParser {
+    private final StreamParser parser;
+    private volatile StroemTrafficRecording.Writer writer;
+    private int recordedNotConsumed = 0; // Only used by the reading thread
+
+    private RecordingParser(StreamParser parser, StroemTrafficRecording.Writer writer) {
+      this.parser = parser;
+      this.writer = writer;
+    }
+
+    @Override
+    public void setWriteTarget(final MessageWriteTarget writeTarget) {
+      parser.setWriteTarget(new MessageWriteTarget() {
+        @Override
+        public void writeBytes(byte[] message) throws IOException {
+          // Before the write, so that the issuer's answer can't be recorded first
+          record(StroemTrafficRecording.Direction.OUTBOUND, message, 0, message.length);
+          writeTarget.writeBytes(message);
+        }
+
+        @Override
+        public void closeConnection() {
+          writeTarget.closeConnection();
+        }
+      });
+    }
+
+    @Override
+    public void connectionOpened() {
+      parser.connectionOpened();
+    }
+
+    @Override
+    public int receiveBytes(ByteBuffer buff) throws Exception {
+      // Recorded before the parser handles them, so that the answers to them are recorded after them. The bytes
+      // the parser does not consume are given again with the next bytes, they are only recorded once.
+      int start = buff.position();
+      int received = buff.remaining();
+      if (received > recordedNotConsumed && writer != null) {
+        int offset = start + recordedNotConsumed;
+        int length = received - recordedNotConsumed;
+        if (buff.hasArray()) {
+          record(StroemTrafficRecording.Direction.INBOUND, buff.array(), buff.arrayOffset() + offset, length);
+        } else {
+          // A direct buffer
+          byte[] bytes = new byte[length];
+          ByteBuffer newBytes = buff.duplicate();
+          newBytes.position(offset);
+          newBytes.get(bytes);
+          record(StroemTrafficRecording.Direction.INBOUND, bytes, 0, length);
+        }
+      }
+      int consumed = parser.receiveBytes(buff);
+      recordedNotConsumed = received - consumed;
+      return consumed;
+    }
+
+    @Override
+    public void connectionClosed() {
+      // The recording is complete when the connection's listeners hear of the close
+      stopRecording();
+      parser.connectionClosed();
+    }
+
+    @Override
+    public int getMaxMessageSize() {
+      return parser.getMaxMessageSize();
+    }
+
+    private void record(StroemTrafficRecording.Direction direction, byte[] bytes, int offset, int length) {
+      StroemTrafficRecording.Writer current = writer;
+      if (current == null) {
+        return;
+      }
+      try {
+        current.record(direction, bytes, offset, length);
+      } catch (IOException e) {
+        log.warn("Unable to record the connection, recording stopped: {}", e.getMessage());
+        stopRecording();
+      }
+    }
+
+    private void stopRecording() {
+      StroemTrafficRecording.Writer current = writer;
+      if (current == null) {
+        return;
+      }
+      writer = null;
+      try {
+        current.close();
+      } catch (IOException e) {
+        log.warn("Unable to close the recording: {}", e.getMessage());
+      }
+    }
+  }
+}
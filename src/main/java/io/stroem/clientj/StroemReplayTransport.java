@@ -0,0 +1,204 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.StreamParser;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Plays the issuer side of a {@link StroemTrafficRecording}: the connection opened through this transport gets
+ * the recorded inbound frames, e.g. to run a {@link StroemClientTcpConnection} against a production trace.</p>
+ *
+ * <p>The replay is deterministic: an inbound frame is only given to the client when the client has sent as many
+ * frames as had been sent before it in the recording, so the client sees the frames in the same order relative to
+ * its own. With {@link Speed#RECORDED} a frame is also not given before its recorded time (relative to the opening
+ * of the connection), with {@link Speed#MAXIMUM} it is given as soon as the client has sent what it should have.
+ * The connection is closed at the end of the recording.</p>
+ *
+ * <p>The frames the client sends are counted, not checked. The payment channel messages of the issuer are signed
+ * for the keys of the recorded client, so a full replay through the payment channel needs the same wallet and keys.
+ * If the client does not send the frames the recording waits for within the stall timeout (it went another way than
+ * the recorded client), the replay fails with a {@link TimeoutException}, see {@link #getDoneFuture()}.</p>
+ *
+ * <p>A transport replays one connection.</p>
+ */
+public class StroemReplayTransport implements StroemTransport {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemReplayTransport.class);
+
+  private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder()
+      .setNameFormat("Stroem replay %d").setDaemon(true).build();
+
+  public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 10000;
+
+  public enum Speed {
+    /** No frame is given before its recorded time */
+    RECORDED,
+    /** Every frame is given as soon as the client is ready for it */
+    MAXIMUM
+  }
+
+  private final StroemTrafficRecording recording;
+  private final Speed speed;
+  private final long stallTimeoutMillis;
+  private final AtomicBoolean used = new AtomicBoolean(false);
+  private final SettableFuture<Integer> doneFuture = SettableFuture.create();
+
+  /**
+   * @param recording The connection to replay
+   * @param speed How fast to replay
+   */
+  public StroemReplayTransport(StroemTrafficRecording recording, Speed speed) {
+    this(recording, speed, DEFAULT_STALL_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param recording The connection to replay
+   * @param speed How fast to replay
+   * @param stallTimeoutMillis How long to wait for the client to send the frames the next inbound frame waits for
+   */
+  public StroemReplayTransport(StroemTrafficRecording recording, Speed speed, long stallTimeoutMillis) {
+    checkArgument(stallTimeoutMillis > 0, "The stall timeout must be positive");
+    this.recording = recording;
+    this.speed = speed;
+    this.stallTimeoutMillis = stallTimeoutMillis;
+  }
+
+  @Override
+  public ListenableFuture<?> openConnection(String issuerHost, int port, StreamParser parser, int connectTimeoutMillis) {
+    checkState(used.compareAndSet(false, true), "The recording has already been replayed");
+    SettableFuture<Void> openFuture = SettableFuture.create();
+    THREAD_FACTORY.newThread(new Replay(parser, openFuture)).start();
+    return openFuture;
+  }
+
+  /**
+   * @return A future that returns the number of inbound frames given to the client when the replay has ended (the
+   *         end of the recording, or the client closed the connection). It fails if the client stalled.
+   */
+  public ListenableFuture<Integer> getDoneFuture() {
+    return doneFuture;
+  }
+
+  @Override
+  public String toString() {
+    return "StroemReplayTransport{" + recording + ", " + speed + '}';
+  }
+
+  private class Replay implements MessageWriteTarget, Runnable {
+    private final StreamParser parser;
+    private final SettableFuture<Void> openFuture;
+    private final ReentrantLock lock = Threading.lock("StroemReplayTransport");
+    private final Condition changed = lock.newCondition();
+
+    // Guarded by "lock"
+    private final StroemTrafficRecording.FrameSplitter splitter = new StroemTrafficRecording.FrameSplitter();
+    private int outboundFrames = 0;
+    private boolean closed = false;
+
+    private Replay(StreamParser parser, SettableFuture<Void> openFuture) {
+      this.parser = parser;
+      this.openFuture = openFuture;
+    }
+
+    @Override
+    public void writeBytes(byte[] message) throws IOException {
+      lock.lock();
+      try {
+        if (closed) {
+          throw new IOException("The replayed connection is closed");
+        }
+        outboundFrames += splitter.add(message, 0, message.length).size();
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void closeConnection() {
+      lock.lock();
+      try {
+        closed = true;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void run() {
+      parser.setWriteTarget(this);
+      openFuture.set(null);
+      parser.connectionOpened();
+
+      StroemStreamFeeder feeder = new StroemStreamFeeder(parser);
+      long startNanos = System.nanoTime();
+      int expectedOutbound = 0;
+      int delivered = 0;
+      try {
+        for (StroemTrafficRecording.Frame frame : recording.getFrames()) {
+          if (frame.getDirection() == StroemTrafficRecording.Direction.OUTBOUND) {
+            expectedOutbound++;
+            continue;
+          }
+          long dueNanos = speed == Speed.RECORDED ? startNanos + TimeUnit.MICROSECONDS.toNanos(frame.getMicros()) : 0;
+          if (!awaitClient(expectedOutbound, dueNanos)) {
+            break; // Closed by the client
+          }
+          if (frame.getDirection() == StroemTrafficRecording.Direction.CLOSED) {
+            break;
+          }
+          feeder.feed(frame.toWireFrame());
+          delivered++;
+        }
+        doneFuture.set(delivered);
+      } catch (Exception e) {
+        log.warn("Replay of {} stopped after {} frames: {}", recording, delivered, e.getMessage());
+        doneFuture.setException(e);
+      } finally {
+        closeConnection();
+        parser.connectionClosed();
+      }
+    }
+
+    /*
+     * Waits until the client has sent the frames, and the time is due (if not 0).
+     *
+     * @return false if the connection was closed
+     */
+    private boolean awaitClient(int frames, long dueNanos) throws InterruptedException, TimeoutException {
+      lock.lock();
+      try {
+        long stallNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(stallTimeoutMillis);
+        while (!closed && outboundFrames < frames) {
+          long left = stallNanos - System.nanoTime();
+          if (left <= 0) {
+            throw new TimeoutException("The client has sent " + outboundFrames + " frames, the next inbound frame was recorded after " + frames);
+          }
+          changed.awaitNanos(left);
+        }
+        long left;
+        while (!closed && dueNanos != 0 && (left = dueNanos - System.nanoTime()) > 0) {
+          changed.awaitNanos(left);
+        }
+        return !closed;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package io.stroem.clientj;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Estimates the round trip time to an issuer, and derives a read timeout from it.</p>
+ *
+ * <p>Works like the TCP retransmission timer (RFC 6298): a smoothed RTT and an RTT variance are updated for every
+ * sample, and the timeout is the smoothed RTT plus four times the variance, kept between
+ * {@link #MIN_TIMEOUT_MILLIS} and {@link #MAX_TIMEOUT_MILLIS}. A sample is the time from a message sent to the issuer
+ * until the next message from the issuer, so the time the issuer spends on signatures is included.</p>
+ *
+ * <p>The estimates are kept per issuer host (see {@link #forHost(String)}), so a new connection starts out with what
+ * earlier connections to the same issuer have learned.</p>
+ */
+public class StroemRttEstimator {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemRttEstimator.class);
+
+  public static final int MIN_TIMEOUT_MILLIS = 1000;
+  public static final int MAX_TIMEOUT_MILLIS = 120 * 1000;
+
+  private static final double ALPHA = 1.0 / 8; // Gain of the smoothed RTT
+  private static final double BETA = 1.0 / 4;  // Gain of the RTT variance
+  private static final int K = 4;
+
+  private static final ConcurrentMap<String, StroemRttEstimator> estimatorsByHost = new ConcurrentHashMap<String, StroemRttEstimator>();
+
+  // Guarded by "this"
+  private double smoothedRttMillis;
+  private double rttVarianceMillis;
+  private long sampleCount = 0;
+
+  /**
+   * @param issuerHost The host of the issuer
+   * @return The estimator shared by all connections to the host
+   */
+  public static StroemRttEstimator forHost(String issuerHost) {
+    StroemRttEstimator estimator = estimatorsByHost.get(issuerHost);
+    if (estimator == null) {
+      StroemRttEstimator newEstimator = new StroemRttEstimator();
+      estimator = estimatorsByHost.putIfAbsent(issuerHost, newEstimator);
+      if (estimator == null) {
+        estimator = newEstimator;
+      }
+    }
+    return estimator;
+  }
+
+  /**
+   * Forgets what has been learned about all hosts.
+   */
+  public static void clearAll() {
+    estimatorsByHost.clear();
+  }
+
+  /**
+   * @param rttMillis A measured round trip time
+   */
+  public synchronized void addSample(long rttMillis) {
+    checkArgument(rttMillis >= 0, "RTT cannot be negative");
+    if (sampleCount == 0) {
+      smoothedRttMillis = rttMillis;
+      rttVarianceMillis = rttMillis / 2.0;
+    } else {
+      rttVarianceMillis = (1 - BETA) * rttVarianceMillis + BETA * Math.abs(smoothedRttMillis - rttMillis);
+      smoothedRttMillis = (1 - ALPHA) * smoothedRttMillis + ALPHA * rttMillis;
+    }
+    sampleCount++;
+    log.trace("RTT sample {} ms, smoothed RTT {} ms, variance {} ms", rttMillis, smoothedRttMillis, rttVarianceMillis);
+  }
+
+  /**
+   * @param defaultMillis Returned when there are no samples yet
+   * @return The read timeout to use
+   */
+  public synchronized int getTimeoutMillis(int defaultMillis) {
+    if (sampleCount == 0) {
+      return defaultMillis;
+    }
+    double timeout = smoothedRttMillis + Math.max(1, K * rttVarianceMillis);
+    return (int) Math.min(MAX_TIMEOUT_MILLIS, Math.max(MIN_TIMEOUT_MILLIS, Math.ceil(timeout)));
+  }
+
+  public synchronized long getSmoothedRttMillis() {
+    return Math.round(smoothedRttMillis);
+  }
+
+  public synchronized long getRttVarianceMillis() {
+    return Math.round(rttVarianceMillis);
+  }
+
+  public synchronized long getSampleCount() {
+    return sampleCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "StroemRttEstimator{" +
+        "smoothedRttMillis=" + getSmoothedRttMillis() +
+        ", rttVarianceMillis=" + getRttVarianceMillis() +
+        ", sampleCount=" + sampleCount +
+        '}';
+  }
+}
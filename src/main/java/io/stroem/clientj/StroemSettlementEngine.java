@@ -0,0 +1,561 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import io.stroem.clientj.domain.StroemPaymentChannel;
+import io.stroem.clientj.domain.StroemPaymentChannels;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Settles many payment channels at once, e.g. at shutdown or when the keys are rotated.</p>
+ *
+ * <ul>
+ * <li>At most {@link #setMaxConcurrent} channels are settled at the same time, and at most
+ * {@link #setMaxConcurrentPerIssuer} per issuer host, so one issuer is not flooded with connections.</li>
+ * <li>A channel that is not settled within {@link #setChannelTimeoutMillis} is disconnected and reported as timed out.</li>
+ * <li>When the deadline of {@link #setDeadlineMillis} has passed, the channels that were not started are skipped, and
+ * the running ones are disconnected and reported as timed out.</li>
+ * </ul>
+ *
+ * <p>The channels are settled over the connections of a {@link StroemClientConnectionPool}, so a channel that already
+ * has a connection in the pool is settled over it (a second connection would open a new channel). The returned future
+ * never fails, it returns a {@link Report} with the outcome and timing of every channel.</p>
+ *
+ * <p>The settlements complete, time out and are aborted on the executor of {@link #setExecutor} (bitcoinj's user
+ * thread by default), which also starts the next ones. No lock is held while a settlement is started, since that may
+ * connect.</p>
+ */
+public class StroemSettlementEngine {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemSettlementEngine.class);
+
+  public static final int DEFAULT_MAX_CONCURRENT = 16;
+  public static final int DEFAULT_MAX_CONCURRENT_PER_ISSUER = 4;
+  public static final long DEFAULT_CHANNEL_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+  /**
+   * Settles one channel. Cancelling the returned future aborts the settlement.
+   */
+  interface Settler {
+    ListenableFuture<Void> settle(StroemPaymentChannel channel);
+  }
+
+  public enum Outcome {
+    /** The issuer has settled the channel */
+    SETTLED,
+    /** The connection or the settlement failed, see {@link ChannelResult#getFailure()} */
+    FAILED,
+    /** The channel timeout or the deadline passed while settling */
+    TIMED_OUT,
+    /** The deadline passed before the settlement was started */
+    SKIPPED
+  }
+
+  private final Settler settler;
+
+  private volatile int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+  private volatile int maxConcurrentPerIssuer = DEFAULT_MAX_CONCURRENT_PER_ISSUER;
+  private volatile long channelTimeoutMillis = DEFAULT_CHANNEL_TIMEOUT_MILLIS;
+  // 0 for no deadline
+  private volatile long deadlineMillis = 0;
+  private volatile Executor executor = Threading.USER_THREAD;
+
+  /**
+   * @param pool The connections of the channels are taken from this pool
+   */
+  public StroemSettlementEngine(final StroemClientConnectionPool pool) {
+    this(new Settler() {
+      @Override
+      public ListenableFuture<Void> settle(StroemPaymentChannel channel) {
+        return settleOverPool(pool, channel);
+      }
+    });
+  }
+
+  /**
+   * @param connectionFactory Creates the connections of the channels, through a pool of this engine's own
+   */
+  public StroemSettlementEngine(StroemConnectionFactory connectionFactory) {
+    this(new StroemClientConnectionPool(connectionFactory));
+  }
+
+  StroemSettlementEngine(Settler settler) {
+    this.settler = settler;
+  }
+
+  /**
+   * @param maxConcurrent How many channels are settled at the same time
+   */
+  public void setMaxConcurrent(int maxConcurrent) {
+    checkArgument(maxConcurrent > 0, "Must allow at least one settlement at a time");
+    this.maxConcurrent = maxConcurrent;
+  }
+
+  /**
+   * @param maxConcurrentPerIssuer How many channels of one issuer host are settled at the same time
+   */
+  public void setMaxConcurrentPerIssuer(int maxConcurrentPerIssuer) {
+    checkArgument(maxConcurrentPerIssuer > 0, "Must allow at least one settlement per issuer at a time");
+    this.maxConcurrentPerIssuer = maxConcurrentPerIssuer;
+  }
+
+  /**
+   * @param channelTimeoutMillis How long the connect and settlement of one channel may take
+   */
+  public void setChannelTimeoutMillis(long channelTimeoutMillis) {
+    checkArgument(channelTimeoutMillis > 0, "Bad timeout: " + channelTimeoutMillis);
+    this.channelTimeoutMillis = channelTimeoutMillis;
+  }
+
+  /**
+   * @param deadlineMillis How long a call to settle may take in all, 0 for no deadline
+   */
+  public void setDeadlineMillis(long deadlineMillis) {
+    checkArgument(deadlineMillis >= 0, "Bad deadline: " + deadlineMillis);
+    this.deadlineMillis = deadlineMillis;
+  }
+
+  /**
+   * @param executor Runs the completion and the timeouts of the settlements, and starts the next ones. Not a network thread, starting
+   *                 a settlement may connect.
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = checkNotNull(executor);
+  }
+
+  /**
+   * Settles all the channels.
+   */
+  public ListenableFuture<Report> settle(StroemPaymentChannels channels) {
+    return settle(channels.getAllStroemPaymentChannels());
+  }
+
+  /**
+   * Settles the channels, in order (as far as the limits allow).
+   *
+   * @return A future that returns the outcome of every channel when all are done. It does not fail.
+   */
+  public ListenableFuture<Report> settle(Collection<StroemPaymentChannel> channels) {
+    Batch batch = new Batch(channels, maxConcurrent, maxConcurrentPerIssuer, channelTimeoutMillis, executor);
+    batch.start(deadlineMillis);
+    return batch.reportFuture;
+  }
+
+  /*
+   * Gets an open connection for the channel from the pool, and settles the channel. Disconnects when cancelled.
+   */
+  private static ListenableFuture<Void> settleOverPool(StroemClientConnectionPool pool, StroemPaymentChannel channel) {
+    final SettableFuture<Void> result = SettableFuture.create();
+    ListenableFuture<StroemClientTcpConnection> openFuture;
+    try {
+      openFuture = pool.getConnection(channel.getStroemId());
+    } catch (Exception e) {
+      openFuture = Futures.immediateFailedFuture(e);
+    }
+    final ListenableFuture<StroemClientTcpConnection> connectionFuture = openFuture;
+    ListenableFuture<Void> settlement = Futures.transform(connectionFuture, new AsyncFunction<StroemClientTcpConnection, Void>() {
+      @Override
+      public ListenableFuture<Void> apply(StroemClientTcpConnection connection) {
+        return connection.settlePaymentChannel();
+      }
+    });
+    Futures.addCallback(settlement, new FutureCallback<Void>() {
+      @Override
+      public void onSuccess(Void ignored) {
+        result.set(null);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        result.setException(t);
+      }
+    });
+    result.addListener(new Runnable() {
+      @Override
+      public void run() {
+        if (result.isCancelled()) {
+          Futures.addCallback(connectionFuture, new FutureCallback<StroemClientTcpConnection>() {
+            @Override
+            public void onSuccess(StroemClientTcpConnection connection) {
+              connection.disconnectWithoutSettlement();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+          });
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    return result;
+  }
+
+  /**
+   * The outcome of the settlement of one channel.
+   */
+  public static class ChannelResult {
+    private final StroemPaymentChannel channel;
+    private final Outcome outcome;
+    @Nullable private final Throwable failure;
+    private final long queuedMillis;
+    private final long settleMillis;
+
+    private ChannelResult(StroemPaymentChannel channel, Outcome outcome, @Nullable Throwable failure, long queuedMillis,
+                          long settleMillis) {
+      this.channel = channel;
+      this.outcome = outcome;
+      this.failure = failure;
+      this.queuedMillis = queuedMillis;
+      this.settleMillis = settleMillis;
+    }
+
+    public StroemPaymentChannel getChannel() {
+      return channel;
+    }
+
+    public Outcome getOutcome() {
+      return outcome;
+    }
+
+    /**
+     * @return Why the settlement failed, null unless {@link Outcome#FAILED}
+     */
+    @Nullable
+    public Throwable getFailure() {
+      return failure;
+    }
+
+    /**
+     * @return How long the channel waited for its turn
+     */
+    public long getQueuedMillis() {
+      return queuedMillis;
+    }
+
+    /**
+     * @return How long the connect and settlement took (0 if skipped)
+     */
+    public long getSettleMillis() {
+      return settleMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "ChannelResult{" + channel.getIssuerHost() + ' ' + channel.getHash() + ": " + outcome +
+          (failure != null ? " (" + failure.getMessage() + ")" : "") +
+          ", queued " + queuedMillis + " ms, settled in " + settleMillis + " ms}";
+    }
+  }
+
+  /**
+   * The outcomes of a call to settle, in the order of the channels.
+   */
+  public static class Report {
+    private final List<ChannelResult> results;
+    private final long elapsedMillis;
+
+    private Report(List<ChannelResult> results, long elapsedMillis) {
+      this.results = Collections.unmodifiableList(results);
+      this.elapsedMillis = elapsedMillis;
+    }
+
+    public List<ChannelResult> getResults() {
+      return results;
+    }
+
+    /**
+     * @return The number of channels with the given outcome
+     */
+    public int getCount(Outcome outcome) {
+      int count = 0;
+      for (ChannelResult result : results) {
+        if (result.getOutcome() == outcome) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    /**
+     * @return True if every channel was settled
+     */
+    public boolean isComplete() {
+      return getCount(Outcome.SETTLED) == results.size();
+    }
+
+    public long getElapsedMillis() {
+      return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "Report{" + results.size() + " channels in " + elapsedMillis + " ms: " + getCount(Outcome.SETTLED) +
+          " settled, " + getCount(Outcome.FAILED) + " failed, " + getCount(Outcome.TIMED_OUT) + " timed out, " +
+          getCount(Outcome.SKIPPED) + " skipped}";
+    }
+  }
+
+  /*
+   * The channels of one call to settle.
+   */
+  private class Batch {
+    private final int maxConcurrent;
+    private final int maxConcurrentPerIssuer;
+    private final long channelTimeoutMillis;
+    private final Executor executor;
+    private final long startNanos = System.nanoTime();
+    private final SettableFuture<Report> reportFuture = SettableFuture.create();
+
+    // Guarded by "this"
+    private final LinkedList<StroemPaymentChannel> queue;
+    private final Map<StroemPaymentChannel, ChannelResult> results = new LinkedHashMap<StroemPaymentChannel, ChannelResult>();
+    private final Map<StroemPaymentChannel, Running> running = new HashMap<StroemPaymentChannel, Running>();
+    private final Map<String, Integer> runningPerIssuer = new HashMap<String, Integer>();
+    private ScheduledFuture<?> deadline;
+    private boolean expired = false;
+    private boolean complete = false;
+
+    private Batch(Collection<StroemPaymentChannel> channels, int maxConcurrent, int maxConcurrentPerIssuer,
+                  long channelTimeoutMillis, Executor executor) {
+      this.maxConcurrent = maxConcurrent;
+      this.maxConcurrentPerIssuer = maxConcurrentPerIssuer;
+      this.channelTimeoutMillis = channelTimeoutMillis;
+      this.executor = executor;
+      for (StroemPaymentChannel channel : channels) {
+        // Keeps the order of the channels in the report
+        results.put(channel, null);
+      }
+      this.queue = new LinkedList<StroemPaymentChannel>(results.keySet());
+    }
+
+    private void start(long deadlineMillis) {
+      List<Running> toStart;
+      synchronized (this) {
+        log.info("Settling {} payment channels, {} at a time", queue.size(), maxConcurrent);
+        if (deadlineMillis > 0) {
+          deadline = StroemThreading.TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+              executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                  expire();
+                }
+              });
+            }
+          }, deadlineMillis, TimeUnit.MILLISECONDS);
+        }
+        toStart = takeNext();
+      }
+      startAll(toStart);
+      completeIfDone();
+    }
+
+    /*
+     * Takes the channels that may start now from the queue. They are started by the caller, after it has released the
+     * lock.
+     */
+    // Guarded by "this"
+    private List<Running> takeNext() {
+      List<Running> toStart = new ArrayList<Running>();
+      Iterator<StroemPaymentChannel> it = queue.iterator();
+      while (running.size() < maxConcurrent && it.hasNext()) {
+        StroemPaymentChannel channel = it.next();
+        String issuer = channel.getIssuerHost();
+        Integer issuerCount = runningPerIssuer.get(issuer);
+        if (issuerCount != null && issuerCount >= maxConcurrentPerIssuer) {
+          continue;
+        }
+        it.remove();
+        runningPerIssuer.put(issuer, issuerCount == null ? 1 : issuerCount + 1);
+        final Running run = new Running(channel, System.nanoTime());
+        run.timeout = StroemThreading.TIMER.schedule(new Runnable() {
+          @Override
+          public void run() {
+            executor.execute(new Runnable() {
+              @Override
+              public void run() {
+                timedOut(run);
+              }
+            });
+          }
+        }, channelTimeoutMillis, TimeUnit.MILLISECONDS);
+        running.put(channel, run);
+        toStart.add(run);
+      }
+      return toStart;
+    }
+
+    private void startAll(List<Running> toStart) {
+      for (Running run : toStart) {
+        start(run);
+      }
+    }
+
+    private void start(Running run) {
+      final StroemPaymentChannel channel = run.channel;
+      log.debug("Settling the channel {} with {}", channel.getHash(), channel.getIssuerHost());
+      ListenableFuture<Void> settlement;
+      try {
+        settlement = settler.settle(channel);
+      } catch (RuntimeException e) {
+        settlement = Futures.immediateFailedFuture(e);
+      }
+      boolean aborted;
+      synchronized (this) {
+        run.settlement = settlement;
+        aborted = run.aborted;
+      }
+      if (aborted) {
+        // Timed out while it was starting, already reported
+        settlement.cancel(true);
+        return;
+      }
+      Futures.addCallback(settlement, new FutureCallback<Void>() {
+        @Override
+        public void onSuccess(Void ignored) {
+          done(channel, Outcome.SETTLED, null);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          if (!(t instanceof CancellationException)) {
+            log.warn("Unable to settle the channel {} with {}: {}", channel.getHash(), channel.getIssuerHost(), t.getMessage());
+            done(channel, Outcome.FAILED, t);
+          }
+        }
+      }, executor);
+    }
+
+    private void timedOut(Running run) {
+      synchronized (this) {
+        if (running.get(run.channel) != run) {
+          return;
+        }
+      }
+      log.warn("The settlement of the channel {} with {} timed out", run.channel.getHash(), run.channel.getIssuerHost());
+      abort(run);
+    }
+
+    private void expire() {
+      List<Running> toAbort;
+      synchronized (this) {
+        expired = true;
+        log.warn("The settlement deadline has passed, {} channels are skipped and {} are timed out", queue.size(),
+            running.size());
+        for (StroemPaymentChannel channel : queue) {
+          results.put(channel, new ChannelResult(channel, Outcome.SKIPPED, null, millisSince(startNanos), 0));
+        }
+        queue.clear();
+        toAbort = new ArrayList<Running>(running.values());
+      }
+      for (Running run : toAbort) {
+        abort(run);
+      }
+    }
+
+    /*
+     * Cancels the settlement (not holding the lock, it disconnects) before it is reported as timed out.
+     * If the settlement has just completed, its own outcome is kept. A settlement that is still starting is cancelled
+     * by start().
+     */
+    private void abort(Running run) {
+      ListenableFuture<Void> settlement;
+      synchronized (this) {
+        run.aborted = true;
+        settlement = run.settlement;
+      }
+      if (settlement != null) {
+        settlement.cancel(true);
+      }
+      done(run.channel, Outcome.TIMED_OUT, null);
+    }
+
+    private void done(StroemPaymentChannel channel, Outcome outcome, @Nullable Throwable failure) {
+      List<Running> toStart;
+      synchronized (this) {
+        Running run = running.remove(channel);
+        if (run == null) {
+          // Already timed out
+          return;
+        }
+        run.timeout.cancel(false);
+        String issuer = channel.getIssuerHost();
+        int issuerCount = runningPerIssuer.get(issuer) - 1;
+        if (issuerCount == 0) {
+          runningPerIssuer.remove(issuer);
+        } else {
+          runningPerIssuer.put(issuer, issuerCount);
+        }
+        long queuedMillis = TimeUnit.NANOSECONDS.toMillis(run.startNanos - startNanos);
+        results.put(channel, new ChannelResult(channel, outcome, failure, queuedMillis, millisSince(run.startNanos)));
+        toStart = expired ? Collections.<Running>emptyList() : takeNext();
+      }
+      startAll(toStart);
+      completeIfDone();
+    }
+
+    /*
+     * Completes the report when all channels are done, not holding the lock since that runs the listeners.
+     */
+    private void completeIfDone() {
+      Report report;
+      synchronized (this) {
+        if (!queue.isEmpty() || !running.isEmpty() || complete) {
+          return;
+        }
+        complete = true;
+        if (deadline != null) {
+          deadline.cancel(false);
+        }
+        report = new Report(new ArrayList<ChannelResult>(results.values()), millisSince(startNanos));
+      }
+      log.info("Settlement done: {}", report);
+      reportFuture.set(report);
+    }
+  }
+
+  /*
+   * A settlement that has been started.
+   */
+  private static class Running {
+    private final StroemPaymentChannel channel;
+    private final long startNanos;
+
+    // Guarded by the batch
+    private ScheduledFuture<?> timeout;
+    private ListenableFuture<Void> settlement;
+    private boolean aborted = false;
+
+    private Running(StroemPaymentChannel channel, long startNanos) {
+      this.channel = channel;
+      this.startNanos = startNanos;
+    }
+  }
+
+  private static long millisSince(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+}
@@ -0,0 +1,124 @@
+package io.stroem.clientj;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>The {@link StroemStep} of a connection.</p>
+ *
+ * <p>The step is changed with compare-and-set, and only along the transitions in {@link #TRANSITIONS}, so any thread
+ * can read it without a lock, and two threads can't both win a transition from the same step. Listeners are told
+ * about every transition, after it has been made.</p>
+ */
+class StroemStateMachine {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemStateMachine.class);
+
+  // The allowed transitions. Any step can go to CONNECTION_CLOSED.
+  private static final Map<StroemStep, EnumSet<StroemStep>> TRANSITIONS = new EnumMap<StroemStep, EnumSet<StroemStep>>(StroemStep.class);
+  static {
+    TRANSITIONS.put(StroemStep.START, EnumSet.of(StroemStep.WAITING_FOR_SERVER_STROM_VERSION));
+    TRANSITIONS.put(StroemStep.WAITING_FOR_SERVER_STROM_VERSION, EnumSet.of(StroemStep.WAITING_FOR_PAYMENT_CHANNEL_INITIATE));
+    TRANSITIONS.put(StroemStep.WAITING_FOR_PAYMENT_CHANNEL_INITIATE, EnumSet.of(StroemStep.CONNECTION_OPEN));
+    TRANSITIONS.put(StroemStep.CONNECTION_OPEN, EnumSet.of(StroemStep.WAITING_FOR_PAYMENT_ACK));
+    TRANSITIONS.put(StroemStep.WAITING_FOR_PAYMENT_ACK, EnumSet.of(StroemStep.PAYMENT_DONE));
+    TRANSITIONS.put(StroemStep.PAYMENT_DONE, EnumSet.of(StroemStep.WAITING_FOR_PAYMENT_ACK));
+    TRANSITIONS.put(StroemStep.CONNECTION_CLOSED, EnumSet.noneOf(StroemStep.class));
+    for (StroemStep step : StroemStep.values()) {
+      if (step != StroemStep.CONNECTION_CLOSED) {
+        TRANSITIONS.get(step).add(StroemStep.CONNECTION_CLOSED);
+      }
+    }
+  }
+
+  private final StroemClientTcpConnection connection;
+  private final AtomicReference<StroemStep> step = new AtomicReference<StroemStep>(StroemStep.START);
+  private final CopyOnWriteArrayList<StroemStepListener> listeners = new CopyOnWriteArrayList<StroemStepListener>();
+
+  StroemStateMachine(StroemClientTcpConnection connection) {
+    this.connection = connection;
+  }
+
+  static boolean isAllowed(StroemStep from, StroemStep to) {
+    return TRANSITIONS.get(from).contains(to);
+  }
+
+  StroemStep get() {
+    return step.get();
+  }
+
+  /**
+   * Moves from the given step to the new step.
+   *
+   * @return false if the current step is not the given step, or the transition is not allowed
+   */
+  boolean transition(StroemStep from, StroemStep to) {
+    if (!isAllowed(from, to)) {
+      log.warn("Not allowed to go from {} to {}", from, to);
+      return false;
+    }
+    if (!step.compareAndSet(from, to)) {
+      return false;
+    }
+    fire(from, to);
+    return true;
+  }
+
+  /**
+   * Moves from whatever the current step is to the new step.
+   *
+   * @return true if the step is the new step, false if the transition from the current step is not allowed
+   */
+  boolean advance(StroemStep to) {
+    while (true) {
+      StroemStep from = step.get();
+      if (from == to) {
+        return true;
+      }
+      if (from == StroemStep.CONNECTION_CLOSED) {
+        return false; // Nothing happens after the close, no need to warn
+      }
+      if (!isAllowed(from, to)) {
+        log.warn("Not allowed to go from {} to {}", from, to);
+        return false;
+      }
+      if (step.compareAndSet(from, to)) {
+        fire(from, to);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Sets the step without checking the transition. Only for getting out of a step that should not be possible.
+   */
+  void force(StroemStep to) {
+    StroemStep from = step.getAndSet(to);
+    if (from != to) {
+      fire(from, to);
+    }
+  }
+
+  void addListener(StroemStepListener listener) {
+    listeners.add(listener);
+  }
+
+  void removeListener(StroemStepListener listener) {
+    listeners.remove(listener);
+  }
+
+  private void fire(StroemStep from, StroemStep to) {
+    log.debug("Step {} -> {}", from, to);
+    for (StroemStepListener listener : listeners) {
+      try {
+        listener.stepChanged(connection, from, to);
+      } catch (RuntimeException e) {
+        log.warn("Step listener failed", e);
+      }
+    }
+  }
+}
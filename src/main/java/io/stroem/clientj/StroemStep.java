@@ -8,7 +8,7 @@ public enum StroemStep {
   WAITING_FOR_SERVER_STROM_VERSION,
   WAITING_FOR_PAYMENT_CHANNEL_INITIATE,
   CONNECTION_OPEN,                     // The TCP connection is now open. Ready to send payments
-  WAITING_FOR_PAYMENT_ACK,             // Payment in process, do not disturb.
-  PAYMENT_DONE,                        // OK to send payments.
+  WAITING_FOR_PAYMENT_ACK,             // Payments in process, new payments are queued.
+  PAYMENT_DONE,                        // All payments acked, OK to send payments.
   CONNECTION_CLOSED,
 }
@@ -0,0 +1,15 @@
+package io.stroem.clientj;
+
+/**
+ * Told when a connection moves from one {@link StroemStep} to another.
+ */
+public interface StroemStepListener {
+  /**
+   * Called on the thread that made the transition (often the network thread), so it must be quick and must not block.
+   *
+   * @param connection The connection
+   * @param from The step before
+   * @param to The new step
+   */
+  void stepChanged(StroemClientTcpConnection connection, StroemStep from, StroemStep to);
+}
@@ -0,0 +1,56 @@
+package io.stroem.clientj;
+
+import org.bitcoinj.net.StreamParser;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Gives received bytes to a {@link StreamParser}, the way bitcoinj's connection handler does it: the bytes are
+ * added to a buffer, the parser consumes what it can, and the rest is kept until more bytes arrive.</p>
+ *
+ * <p>Not thread safe, the bytes of one connection must be fed by one thread at a time.</p>
+ */
+class StroemStreamFeeder {
+  private final StreamParser parser;
+  private final ByteBuffer buffer;
+
+  /**
+   * @param parser The parser to feed
+   */
+  StroemStreamFeeder(StreamParser parser) {
+    this(parser, Math.max(parser.getMaxMessageSize() + 4, 4096));
+  }
+
+  StroemStreamFeeder(StreamParser parser, int bufferSize) {
+    checkArgument(bufferSize >= 4, "The buffer must fit a length prefix");
+    this.parser = parser;
+    this.buffer = ByteBuffer.allocate(bufferSize);
+  }
+
+  /**
+   * Feeds the remaining bytes of data to the parser.
+   *
+   * @throws Exception if the parser throws, the connection should be closed.
+   */
+  void feed(ByteBuffer data) throws Exception {
+    while (data.hasRemaining()) {
+      int toCopy = Math.min(data.remaining(), buffer.remaining());
+      ByteBuffer slice = data.duplicate();
+      slice.limit(slice.position() + toCopy);
+      buffer.put(slice);
+      data.position(data.position() + toCopy);
+
+      buffer.flip();
+      parser.receiveBytes(buffer);
+      buffer.compact();
+      checkState(buffer.hasRemaining(), "The parser did not consume a full buffer");
+    }
+  }
+
+  void feed(byte[] data) throws Exception {
+    feed(ByteBuffer.wrap(data));
+  }
+}
@@ -0,0 +1,36 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>Threads shared by all Stroem connections (in the same spirit as {@link org.bitcoinj.utils.Threading}).</p>
+ */
+public class StroemThreading {
+
+  /**
+   * A single daemon thread used for deadlines and other timed tasks of the connections.
+   * The tasks must be short, and never block.
+   */
+  public static final ListeningScheduledExecutorService TIMER;
+
+  static {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Stroem timer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // Cancelled deadlines are the normal case, don't keep them in the queue
+    executor.setRemoveOnCancelPolicy(true);
+    TIMER = MoreExecutors.listeningDecorator(executor);
+  }
+
+  private StroemThreading() {
+  }
+}
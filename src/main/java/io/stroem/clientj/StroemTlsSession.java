@@ -0,0 +1,51 @@
+package io.stroem.clientj;
+
+/**
+ * <p>What the TLS handshake of a connection gave (see {@link StroemTlsTransport}).</p>
+ */
+public class StroemTlsSession {
+
+  private final long handshakeMillis;
+  private final boolean resumed;
+  private final String protocol;
+  private final String cipherSuite;
+
+  StroemTlsSession(long handshakeMillis, boolean resumed, String protocol, String cipherSuite) {
+    this.handshakeMillis = handshakeMillis;
+    this.resumed = resumed;
+    this.protocol = protocol;
+    this.cipherSuite = cipherSuite;
+  }
+
+  /**
+   * @return The time from the start of the TLS handshake (TCP open) until it finished
+   */
+  public long getHandshakeMillis() {
+    return handshakeMillis;
+  }
+
+  /**
+   * @return true if a cached session was resumed (an abbreviated handshake)
+   */
+  public boolean isResumed() {
+    return resumed;
+  }
+
+  public String getProtocol() {
+    return protocol;
+  }
+
+  public String getCipherSuite() {
+    return cipherSuite;
+  }
+
+  @Override
+  public String toString() {
+    return "StroemTlsSession{" +
+        "handshakeMillis=" + handshakeMillis +
+        ", resumed=" + resumed +
+        ", protocol='" + protocol + '\'' +
+        ", cipherSuite='" + cipherSuite + '\'' +
+        '}';
+  }
+}
@@ -0,0 +1,239 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.StreamParser;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Runs TLS between a transport and the parser above it, using an {@link SSLEngine}.</p>
+ *
+ * <p>The transport sees this class as its parser. The handshake is started when the transport opens, and the parser
+ * above is opened when the handshake has finished. Received records are decrypted and fed to the parser above, and
+ * its writes are encrypted and written to the transport.</p>
+ *
+ * <p>Locking: the decrypting side is only used by the transport's read thread and is the only side that calls the
+ * parser above. Writes (and the handshake messages) are serialized on a lock of their own, which is never held while
+ * calling the parser above, since the parser above may write from its callbacks while another thread writes. The
+ * write lock is held during the (possibly blocking) transport write.</p>
+ */
+class StroemTlsStreamParser implements StreamParser {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemTlsStreamParser.class);
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  /**
+   * Told when the handshake is done, before the parser above is opened.
+   */
+  interface HandshakeListener {
+    /**
+     * @param session The new session
+     * @param handshakeStartTime When the handshake started (milliseconds since the epoch)
+     * @param handshakeMillis How long the handshake took
+     */
+    StroemTlsSession handshakeFinished(SSLSession session, long handshakeStartTime, long handshakeMillis);
+  }
+
+  private final SSLEngine engine;
+  private final StreamParser upstream;
+  private final StroemStreamFeeder feeder;
+  private final HandshakeListener handshakeListener;
+  private final SettableFuture<StroemTlsSession> handshakeFuture = SettableFuture.create();
+  private final ReentrantLock writeLock = Threading.lock("StroemTlsStreamParser");
+
+  private volatile MessageWriteTarget transport;
+  private volatile boolean upstreamOpen = false;
+  private long handshakeStartTime;
+  private long handshakeStartNanos;
+
+  // Only used by the read thread
+  private ByteBuffer appIn;
+
+  // Guarded by writeLock
+  private ByteBuffer netOut;
+
+  /**
+   * @param engine A new engine, in client or server mode
+   * @param upstream The parser above
+   * @param handshakeListener Decides what to report about the session
+   */
+  StroemTlsStreamParser(SSLEngine engine, StreamParser upstream, HandshakeListener handshakeListener) {
+    this.engine = engine;
+    this.upstream = upstream;
+    this.feeder = new StroemStreamFeeder(upstream);
+    this.handshakeListener = handshakeListener;
+    this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    this.netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+  }
+
+  /**
+   * @return A future that completes when the handshake is done, or fails if the connection is closed before that
+   */
+  SettableFuture<StroemTlsSession> getHandshakeFuture() {
+    return handshakeFuture;
+  }
+
+  @Override
+  public void setWriteTarget(MessageWriteTarget writeTarget) {
+    this.transport = writeTarget;
+  }
+
+  @Override
+  public void connectionOpened() {
+    handshakeStartTime = System.currentTimeMillis();
+    handshakeStartNanos = System.nanoTime();
+    try {
+      engine.beginHandshake();
+      driveHandshake(engine.getHandshakeStatus());
+    } catch (IOException e) {
+      log.warn("Unable to start the TLS handshake: {}", e.getMessage());
+      handshakeFuture.setException(e);
+      transport.closeConnection();
+    }
+  }
+
+  @Override
+  public int receiveBytes(ByteBuffer netIn) throws Exception {
+    int start = netIn.position();
+    while (netIn.hasRemaining()) {
+      SSLEngineResult result = engine.unwrap(netIn, appIn);
+      if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+        break; // Wait for the rest of the record
+      } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+        ByteBuffer larger = ByteBuffer.allocate(appIn.position() + engine.getSession().getApplicationBufferSize());
+        appIn.flip();
+        larger.put(appIn);
+        appIn = larger;
+        continue;
+      }
+      deliverAppData();
+      if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+        log.debug("The peer closed the TLS session");
+        transport.closeConnection();
+        break;
+      }
+      driveHandshake(result.getHandshakeStatus());
+    }
+    return netIn.position() - start;
+  }
+
+  @Override
+  public void connectionClosed() {
+    try {
+      engine.closeInbound();
+    } catch (SSLException e) {
+      // The peer did not send close_notify, nothing to do about that
+    }
+    handshakeFuture.setException(new IOException("Connection closed during the TLS handshake"));
+    upstream.connectionClosed();
+  }
+
+  @Override
+  public int getMaxMessageSize() {
+    // The transport's read buffer must hold a full record
+    return Math.max(upstream.getMaxMessageSize(), engine.getSession().getPacketBufferSize());
+  }
+
+  private void deliverAppData() throws Exception {
+    if (appIn.position() == 0) {
+      return;
+    }
+    appIn.flip();
+    feeder.feed(appIn);
+    appIn.clear();
+  }
+
+  private void driveHandshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+    while (true) {
+      switch (status) {
+        case NEED_TASK:
+          // The tasks are run on this thread, there are few of them and only during the handshake
+          Runnable task;
+          while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+          }
+          status = engine.getHandshakeStatus();
+          break;
+        case NEED_WRAP:
+          status = wrapAndWrite(EMPTY).getHandshakeStatus();
+          break;
+        case FINISHED:
+          handshakeFinished();
+          return;
+        default:
+          return; // Wait for more bytes from the peer, or not handshaking
+      }
+    }
+  }
+
+  private void handshakeFinished() {
+    if (upstreamOpen) {
+      return; // E.g. a session ticket after the handshake
+    }
+    long handshakeMillis = (System.nanoTime() - handshakeStartNanos) / 1000000;
+    StroemTlsSession tlsSession = handshakeListener.handshakeFinished(engine.getSession(), handshakeStartTime, handshakeMillis);
+    log.debug("TLS handshake done: {}", tlsSession);
+    handshakeFuture.set(tlsSession);
+
+    upstreamOpen = true;
+    upstream.setWriteTarget(new MessageWriteTarget() {
+      @Override
+      public void writeBytes(byte[] message) throws IOException {
+        wrapAndWrite(ByteBuffer.wrap(message));
+      }
+
+      @Override
+      public void closeConnection() {
+        closeOutbound();
+      }
+    });
+    upstream.connectionOpened();
+  }
+
+  /*
+   * Encrypts all of appOut and writes the records to the transport.
+   */
+  private SSLEngineResult wrapAndWrite(ByteBuffer appOut) throws IOException {
+    writeLock.lock();
+    try {
+      while (true) {
+        netOut.clear();
+        SSLEngineResult result = engine.wrap(appOut, netOut);
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+          netOut = ByteBuffer.allocate(netOut.capacity() + engine.getSession().getPacketBufferSize());
+          continue;
+        }
+        netOut.flip();
+        if (netOut.hasRemaining()) {
+          byte[] record = new byte[netOut.remaining()];
+          netOut.get(record);
+          transport.writeBytes(record);
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED || !appOut.hasRemaining()) {
+          return result;
+        }
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private void closeOutbound() {
+    engine.closeOutbound();
+    try {
+      wrapAndWrite(EMPTY); // close_notify
+    } catch (IOException e) {
+      log.debug("Unable to send close_notify: {}", e.getMessage());
+    }
+    transport.closeConnection();
+  }
+}
@@ -0,0 +1,104 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.net.StreamParser;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Runs TLS on top of another transport, usually a {@link StroemNioTransport}.</p>
+ *
+ * <p>Sessions are cached per issuer host and port (by the {@link SSLContext}, since every engine is created for the
+ * issuer's host and port), so a reconnect to the same issuer does an abbreviated handshake. Keep one instance of this
+ * class for all connections, a new instance has no sessions to resume unless it shares the {@link SSLContext}.</p>
+ *
+ * <p>The future returned by {@link #openConnection} completes with a {@link StroemTlsSession} when the handshake is
+ * done, which is available from {@link StroemClientTcpConnection#getTlsSession()}. The issuer's certificate must be
+ * valid for the issuer host.</p>
+ */
+public class StroemTlsTransport implements StroemTransport {
+
+  private final StroemTransport transport;
+  private final SSLContext sslContext;
+
+  // The id of the last session per issuer, used to tell if a session was resumed
+  private final ConcurrentMap<String, byte[]> lastSessionIds = new ConcurrentHashMap<String, byte[]>();
+
+  /**
+   * Uses the default SSL context of the JVM (and its trust store).
+   *
+   * @param transport The transport to run TLS on
+   * @throws NoSuchAlgorithmException if there is no default SSL context
+   */
+  public StroemTlsTransport(StroemTransport transport) throws NoSuchAlgorithmException {
+    this(transport, SSLContext.getDefault());
+  }
+
+  /**
+   * @param transport The transport to run TLS on
+   * @param sslContext Creates the engines, and holds the session cache
+   */
+  public StroemTlsTransport(StroemTransport transport, SSLContext sslContext) {
+    this.transport = transport;
+    this.sslContext = sslContext;
+  }
+
+  @Override
+  public ListenableFuture<?> openConnection(final String issuerHost, final int port, StreamParser parser,
+                                            int connectTimeoutMillis) {
+    // The host and port are the key of the session cache
+    SSLEngine engine = sslContext.createSSLEngine(issuerHost, port);
+    engine.setUseClientMode(true);
+    SSLParameters sslParameters = engine.getSSLParameters();
+    sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+    engine.setSSLParameters(sslParameters);
+
+    final StroemTlsStreamParser tlsParser = new StroemTlsStreamParser(engine, parser, new StroemTlsStreamParser.HandshakeListener() {
+      @Override
+      public StroemTlsSession handshakeFinished(SSLSession session, long handshakeStartTime, long handshakeMillis) {
+        return new StroemTlsSession(handshakeMillis, isResumed(issuerHost + ":" + port, session, handshakeStartTime),
+            session.getProtocol(), session.getCipherSuite());
+      }
+    });
+
+    Futures.addCallback(transport.openConnection(issuerHost, port, tlsParser, connectTimeoutMillis), new FutureCallback<Object>() {
+      @Override
+      public void onSuccess(Object result) {
+        // The handshake is started by the parser
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        tlsParser.getHandshakeFuture().setException(t);
+      }
+    });
+    return tlsParser.getHandshakeFuture();
+  }
+
+  /*
+   * SSLSession can't tell if it was resumed. A resumed session is older than the handshake (TLS 1.2 and earlier it also
+   * has the same id as before).
+   */
+  private boolean isResumed(String issuer, SSLSession session, long handshakeStartTime) {
+    byte[] id = session.getId();
+    byte[] previousId = lastSessionIds.put(issuer, id);
+    if (previousId != null && id.length > 0 && Arrays.equals(previousId, id)) {
+      return true;
+    }
+    return session.getCreationTime() < handshakeStartTime;
+  }
+
+  @Override
+  public String toString() {
+    return "StroemTlsTransport{" + transport + '}';
+  }
+}
@@ -0,0 +1,342 @@
+package io.stroem.clientj;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.stroem.proto.StroemProtos.StroemMessage;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The frames a Stroem connection sent and received, as recorded by {@link StroemRecordingTransport}.</p>
+ *
+ * <p>The file starts with a header (magic, version, wall clock time of the start, issuer host and port), followed by
+ * one record per frame: the direction, the microseconds since the previous record, the length and the StroemMessage
+ * bytes (without the length prefix of the wire). The numbers are protobuf varints. Records are only ever appended,
+ * and a record cut short (the process died while recording) ends the recording without failing the read.</p>
+ *
+ * <p>A recording can be replayed through a {@link StroemClientTcpConnection} with {@link StroemReplayTransport}, or
+ * its messages given straight to a {@link StroemMessageReceiver} (see {@link #getMessages(Direction)}).</p>
+ */
+public class StroemTrafficRecording {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemTrafficRecording.class);
+
+  static final int MAGIC = 0x53545252; // "STRR"
+  static final int VERSION = 1;
+
+  // Larger frames mean the bytes are not Stroem frames
+  private static final int MAX_FRAME_SIZE = 1 << 24;
+
+  public enum Direction {
+    /** Received from the issuer */
+    INBOUND,
+    /** Sent to the issuer */
+    OUTBOUND,
+    /** The connection was closed (a record without bytes) */
+    CLOSED
+  }
+
+  /**
+   * One recorded frame.
+   */
+  public static class Frame {
+    private final Direction direction;
+    private final long micros;
+    private final byte[] message;
+
+    Frame(Direction direction, long micros, byte[] message) {
+      this.direction = direction;
+      this.micros = micros;
+      this.message = message;
+    }
+
+    public Direction getDirection() {
+      return direction;
+    }
+
+    /**
+     * @return The time of the frame, in microseconds since the connection was opened
+     */
+    public long getMicros() {
+      return micros;
+    }
+
+    /**
+     * @return The serialized StroemMessage (empty for {@link Direction#CLOSED})
+     */
+    public byte[] getMessage() {
+      return message;
+    }
+
+    /**
+     * @return The frame as it is on the wire, with the length prefix
+     */
+    byte[] toWireFrame() {
+      byte[] frame = new byte[4 + message.length];
+      Utils.uint32ToByteArrayBE(message.length, frame, 0);
+      System.arraycopy(message, 0, frame, 4, message.length);
+      return frame;
+    }
+
+    @Override
+    public String toString() {
+      return "Frame{" + direction + " at " + micros + "us, " + message.length + " bytes}";
+    }
+  }
+
+  private final long startMillis;
+  private final String issuerHost;
+  private final int port;
+  private final List<Frame> frames;
+
+  StroemTrafficRecording(long startMillis, String issuerHost, int port, List<Frame> frames) {
+    this.startMillis = startMillis;
+    this.issuerHost = issuerHost;
+    this.port = port;
+    this.frames = Collections.unmodifiableList(frames);
+  }
+
+  /**
+   * Reads a recording file.
+   *
+   * @throws IOException If the file can't be read, or is not a recording
+   */
+  public static StroemTrafficRecording read(File file) throws IOException {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      return read(in);
+    }
+  }
+
+  static StroemTrafficRecording read(InputStream in) throws IOException {
+    CodedInputStream input = CodedInputStream.newInstance(in);
+    input.setSizeLimit(Integer.MAX_VALUE);
+    if (input.readRawLittleEndian32() != MAGIC) {
+      throw new IOException("Not a Stroem traffic recording");
+    }
+    int version = input.readRawVarint32();
+    if (version != VERSION) {
+      throw new IOException("Unsupported recording version " + version);
+    }
+    long startMillis = input.readRawVarint64();
+    String issuerHost = input.readString();
+    int port = input.readRawVarint32();
+
+    List<Frame> frames = new ArrayList<Frame>();
+    long micros = 0;
+    try {
+      while (!input.isAtEnd()) {
+        int type = input.readRawVarint32();
+        if (type < 0 || type >= Direction.values().length) {
+          throw new IOException("Unknown record type " + type);
+        }
+        micros += input.readRawVarint64();
+        int length = input.readRawVarint32();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+          throw new IOException("Bad record length " + length);
+        }
+        frames.add(new Frame(Direction.values()[type], micros, input.readRawBytes(length)));
+      }
+    } catch (InvalidProtocolBufferException e) {
+      // Thrown on a truncated record
+      log.warn("The recording ends with a partial record, ignored: {}", e.getMessage());
+    }
+    return new StroemTrafficRecording(startMillis, issuerHost, port, frames);
+  }
+
+  /**
+   * @return The wall clock time the connection was opened, in milliseconds since the epoch
+   */
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  public String getIssuerHost() {
+    return issuerHost;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * @return All records, in the order they were recorded
+   */
+  public List<Frame> getFrames() {
+    return frames;
+  }
+
+  /**
+   * @return The messages of one direction, parsed
+   * @throws InvalidProtocolBufferException If a frame is not a StroemMessage
+   */
+  public List<StroemMessage> getMessages(Direction direction) throws InvalidProtocolBufferException {
+    checkArgument(direction != Direction.CLOSED, "The close record has no message");
+    List<StroemMessage> messages = new ArrayList<StroemMessage>();
+    for (Frame frame : frames) {
+      if (frame.getDirection() == direction) {
+        messages.add(StroemMessage.parseFrom(frame.getMessage()));
+      }
+    }
+    return messages;
+  }
+
+  @Override
+  public String toString() {
+    return "StroemTrafficRecording{" + issuerHost + ':' + port + ", " + frames.size() + " frames}";
+  }
+
+  /**
+   * Writes the frames of one connection to a new file (a file holds one recording). Thread safe: the two directions are written from different threads.
+   * The records are buffered, and written to the file in blocks and when the recording is closed.
+   */
+  static class Writer {
+    private final OutputStream out;
+    private final CodedOutputStream output;
+    private final long startNanos = System.nanoTime();
+    private final FrameSplitter inbound = new FrameSplitter();
+    private final FrameSplitter outbound = new FrameSplitter();
+
+    private final ReentrantLock lock = Threading.lock("StroemTrafficRecording");
+    // Guarded by lock
+    private long lastMicros = 0;
+    private boolean closed = false;
+
+    /**
+     * @throws IOException If the file could not be created, or already exists
+     */
+    Writer(File file, String issuerHost, int port) throws IOException {
+      if (!file.createNewFile()) {
+        throw new IOException("The file already exists: " + file);
+      }
+      out = new FileOutputStream(file);
+      output = CodedOutputStream.newInstance(out);
+      try {
+        output.writeRawLittleEndian32(MAGIC);
+        output.writeRawVarint32(VERSION);
+        output.writeRawVarint64(System.currentTimeMillis());
+        output.writeStringNoTag(issuerHost);
+        output.writeRawVarint32(port);
+      } catch (IOException e) {
+        out.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Records the frames completed by the bytes (which may hold any part of any number of frames).
+     */
+    void record(Direction direction, byte[] bytes, int offset, int length) throws IOException {
+      long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+      FrameSplitter splitter = direction == Direction.INBOUND ? inbound : outbound;
+      lock.lock();
+      try {
+        if (closed) {
+          return;
+        }
+        for (byte[] message : splitter.add(bytes, offset, length)) {
+          writeRecord(direction, micros, message);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Records the close, and closes the file.
+     */
+    void close() throws IOException {
+      lock.lock();
+      try {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        try {
+          writeRecord(Direction.CLOSED, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos), new byte[0]);
+          output.flush();
+        } finally {
+          out.close();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /*
+     * Guarded by lock.
+     */
+    private void writeRecord(Direction direction, long micros, byte[] message) throws IOException {
+      // The two directions are recorded by different threads, keep the deltas positive
+      long delta = Math.max(0, micros - lastMicros);
+      lastMicros += delta;
+      output.writeRawVarint32(direction.ordinal());
+      output.writeRawVarint64(delta);
+      output.writeRawVarint32(message.length);
+      output.writeRawBytes(message);
+    }
+  }
+
+  /**
+   * Cuts a byte stream into Stroem frames (a 4 byte big endian length, then the message). Not thread safe.
+   */
+  static class FrameSplitter {
+    private byte[] pending = new byte[256];
+    private int count = 0;
+    private boolean broken = false;
+
+    /**
+     * @return The messages completed by the bytes, without their length prefix
+     * @throws IOException If the stream does not hold Stroem frames
+     */
+    List<byte[]> add(byte[] bytes, int offset, int length) throws IOException {
+      if (broken) {
+        throw new IOException("Not a stream of Stroem frames");
+      }
+      if (count + length > pending.length) {
+        pending = Arrays.copyOf(pending, Math.max(count + length, pending.length * 2));
+      }
+      System.arraycopy(bytes, offset, pending, count, length);
+      count += length;
+
+      List<byte[]> messages = Collections.emptyList();
+      int start = 0;
+      while (count - start >= 4) {
+        long size = Utils.readUint32BE(pending, start);
+        if (size > MAX_FRAME_SIZE) {
+          broken = true;
+          throw new IOException("Frame too large: " + size);
+        }
+        if (count - start < 4 + size) {
+          break;
+        }
+        if (messages.isEmpty()) {
+          messages = new ArrayList<byte[]>(2);
+        }
+        messages.add(Arrays.copyOfRange(pending, start + 4, start + 4 + (int) size));
+        start += 4 + (int) size;
+      }
+      if (start > 0) {
+        System.arraycopy(pending, start, pending, 0, count - start);
+        count -= start;
+      }
+      return messages;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.net.StreamParser;
+
+/**
+ * <p>Carries the bytes of a {@link StroemClientTcpConnection} to and from the issuer.</p>
+ *
+ * <p>The transport owns the connection below the Stroem protocol. When the connection is open it must give the parser
+ * a write target ({@link StreamParser#setWriteTarget}) and then call {@link StreamParser#connectionOpened()}.
+ * Received bytes are given to {@link StreamParser#receiveBytes}, and {@link StreamParser#connectionClosed()} is called
+ * once when the connection is closed from either side.</p>
+ *
+ * <p>Implementations:</p>
+ * <ul>
+ * <li>{@link StroemNioTransport}: TCP, using bitcoinj's NIO classes (the default)</li>
+ * <li>{@link StroemBlockingTransport}: TCP, using blocking sockets and a (possibly virtual) thread per connection</li>
+ * <li>{@link StroemLoopbackTransport}: an in-process pair, bytes are handed over directly</li>
+ * <li>{@link StroemPipeTransport}: an in-process pair, bytes go through OS pipes</li>
+ * <li>{@link StroemRecordingTransport}: records the frames of another transport</li>
+ * <li>{@link StroemReplayTransport}: plays the issuer side of a recorded connection</li>
+ * <li>{@link StroemFaultInjectingTransport}: adds latency, bandwidth limits, stalls and dropped connections to
+ * another transport</li>
+ * <li>{@link StroemEndpointRacingTransport}: connects to several frontends of an issuer in parallel, and keeps the
+ * fastest</li>
+ * </ul>
+ */
+public interface StroemTransport {
+
+  /**
+   * Starts to open a connection to the issuer. Does not block.
+   *
+   * @param issuerHost The host where the issuer server is listening
+   * @param port The port the issuer server is listening on
+   * @param parser Receives the bytes from the issuer, and gets the write target when the connection is open
+   * @param connectTimeoutMillis How long to wait for the connection to open
+   * @return A future that fails if the connection could not be opened. A transport may also report a failed connect
+   *         by calling {@link StreamParser#connectionClosed()} without opening.
+   */
+  ListenableFuture<?> openConnection(String issuerHost, int port, StreamParser parser, int connectTimeoutMillis);
+}
@@ -0,0 +1,242 @@
+package io.stroem.clientj;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import io.stroem.proto.StroemProtos.PaymentChannelMessage;
+import io.stroem.proto.StroemProtos.StroemMessage;
+import org.bitcoin.paymentchannel.Protos;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.ProtobufParser;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>The {@link ProtobufParser} of a Stroem connection, with a cheaper outbound path.</p>
+ *
+ * <p>Every message is written as a single frame (length prefix and message in one array, one write to the socket).
+ * Payment channel messages are written without building the StroemMessage and PaymentChannelMessage envelopes:
+ * the envelope fields are written directly around the serialized payment channel message, which means one
+ * allocation per message (the frame itself).</p>
+ *
+ * <p>Frames go through a {@link StroemWriteQueue}, which tells when the transport is not keeping up.</p>
+ */
+class StroemWireParser extends ProtobufParser<StroemMessage> {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemWireParser.class);
+
+  private static final int LENGTH_PREFIX_SIZE = 4;
+  private static final int TYPE_FIELD_SIZE = CodedOutputStream.computeEnumSize(
+      StroemMessage.TYPE_FIELD_NUMBER, StroemMessage.MessageType.PAYMENTCHANNEL_MESSAGE.getNumber());
+  private static final int ENVELOPE_TAG_SIZE = CodedOutputStream.computeTagSize(StroemMessage.PAYMENT_CHANNEL_MESSAGE_FIELD_NUMBER);
+  private static final int INNER_TAG_SIZE = CodedOutputStream.computeTagSize(PaymentChannelMessage.PAYMENT_CHANNEL_MESSAGE_FIELD_NUMBER);
+
+  private final StroemWriteQueue writeQueue = new StroemWriteQueue();
+  private volatile long lastReceiveNanos = System.nanoTime();
+
+  // Statistics
+  private final AtomicLong messagesWritten = new AtomicLong();
+  private final AtomicLong bytesWritten = new AtomicLong();
+
+  // When the oldest message that the issuer has not answered yet was written, used to measure the RTT
+  private static final long NOTHING_SENT = Long.MIN_VALUE;
+  private final AtomicLong unansweredSinceNanos = new AtomicLong(NOTHING_SENT);
+
+  // A frame the transport has already sent for us, and when (see StroemEndpointRacingTransport)
+  private volatile byte[] alreadySentFrame;
+  private volatile long alreadySentNanos;
+  // True once the read timeout has closed the connection
+  private volatile boolean timedOut = false;
+
+  StroemWireParser(Listener<StroemMessage> handler, int maxMessageSize, int timeoutMillis) {
+    super(handler, StroemMessage.getDefaultInstance(), maxMessageSize, timeoutMillis);
+  }
+
+  @Override
+  public void setWriteTarget(MessageWriteTarget writeTarget) {
+    super.setWriteTarget(writeTarget);
+    writeQueue.setTarget(writeTarget);
+  }
+
+  @Override
+  public void connectionClosed() {
+    writeQueue.close();
+    super.connectionClosed();
+  }
+
+  @Override
+  protected void timeoutOccurred() {
+    timedOut = true;
+    super.timeoutOccurred();
+  }
+
+  @Override
+  public int receiveBytes(ByteBuffer buff) throws Exception {
+    lastReceiveNanos = System.nanoTime();
+    // Frames written by the message handlers may be held and written together (see StroemWriteQueue.FlushPolicy)
+    boolean corked = writeQueue.cork();
+    try {
+      return super.receiveBytes(buff);
+    } finally {
+      if (corked) {
+        try {
+          writeQueue.uncork();
+        } catch (IOException e) {
+          log.warn("Unable to write to the socket: {}", e.getMessage());
+          closeConnection();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the message as one frame.
+   */
+  @Override
+  public void write(StroemMessage msg) throws IllegalStateException {
+    byte[] frame = encode(msg);
+    checkState(frame.length - LENGTH_PREFIX_SIZE <= getMaxMessageSize(), "Message too large: " + frame.length);
+    writeFrame(frame);
+  }
+
+  /**
+   * @return The frame (length prefix + message) of the message
+   */
+  static byte[] encode(StroemMessage msg) {
+    int size = msg.getSerializedSize();
+    byte[] frame = new byte[LENGTH_PREFIX_SIZE + size];
+    Utils.uint32ToByteArrayBE(size, frame, 0);
+    CodedOutputStream output = CodedOutputStream.newInstance(frame, LENGTH_PREFIX_SIZE, size);
+    try {
+      msg.writeTo(output);
+    } catch (IOException e) {
+      throw new IllegalStateException("Serializing to a byte array threw an IOException (should never happen).", e);
+    }
+    return frame;
+  }
+
+  /**
+   * Writes the payment channel message wrapped in a StroemMessage of type PAYMENTCHANNEL_MESSAGE,
+   * without building the wrapping messages.
+   */
+  void writePaymentChannelMessage(Protos.TwoWayChannelMessage paymentMsg) {
+    byte[] frame = encodePaymentChannelMessage(paymentMsg);
+    checkState(frame.length - LENGTH_PREFIX_SIZE <= getMaxMessageSize(), "Message too large: " + frame.length);
+    writeFrame(frame);
+  }
+
+  /**
+   * @return The frame (length prefix + StroemMessage) for the payment channel message. The result is byte for byte
+   *         the same as building the StroemMessage and writing it with {@link ProtobufParser#write}.
+   */
+  @VisibleForTesting
+  static byte[] encodePaymentChannelMessage(Protos.TwoWayChannelMessage paymentMsg) {
+    // PaymentChannelMessage { bytes payment_channel_message }
+    int innerSize = paymentMsg.getSerializedSize();
+    int wrapperSize = INNER_TAG_SIZE + CodedOutputStream.computeRawVarint32Size(innerSize) + innerSize;
+    // StroemMessage { type, PaymentChannelMessage payment_channel_message }
+    int envelopeSize = TYPE_FIELD_SIZE + ENVELOPE_TAG_SIZE + CodedOutputStream.computeRawVarint32Size(wrapperSize) + wrapperSize;
+
+    byte[] frame = new byte[LENGTH_PREFIX_SIZE + envelopeSize];
+    Utils.uint32ToByteArrayBE(envelopeSize, frame, 0);
+    CodedOutputStream output = CodedOutputStream.newInstance(frame, LENGTH_PREFIX_SIZE, envelopeSize);
+    try {
+      output.writeEnum(StroemMessage.TYPE_FIELD_NUMBER, StroemMessage.MessageType.PAYMENTCHANNEL_MESSAGE.getNumber());
+      output.writeTag(StroemMessage.PAYMENT_CHANNEL_MESSAGE_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeRawVarint32(wrapperSize);
+      output.writeTag(PaymentChannelMessage.PAYMENT_CHANNEL_MESSAGE_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeRawVarint32(innerSize);
+      paymentMsg.writeTo(output);
+      output.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new IllegalStateException("Serializing to a byte array threw an IOException (should never happen).", e);
+    }
+    return frame;
+  }
+
+  private void writeFrame(byte[] frame) {
+    byte[] alreadySent = alreadySentFrame;
+    if (alreadySent != null) {
+      alreadySentFrame = null;
+      if (Arrays.equals(alreadySent, frame)) {
+        // Not written or counted again, the RTT is measured from when it was sent
+        unansweredSinceNanos.compareAndSet(NOTHING_SENT, alreadySentNanos);
+        return;
+      }
+      log.warn("The first frame is not the one the transport has sent, sending it as well");
+    }
+    try {
+      writeQueue.write(frame);
+      unansweredSinceNanos.compareAndSet(NOTHING_SENT, System.nanoTime());
+      messagesWritten.incrementAndGet();
+      bytesWritten.addAndGet(frame.length);
+    } catch (IOException e) {
+      log.warn("Unable to write to the socket: {}", e.getMessage());
+      closeConnection();
+    }
+  }
+
+  /**
+   * Tells that the transport has already sent the first frame this parser will write (e.g. the client version of a
+   * handshake done by the transport). Call before {@link #connectionOpened()}.
+   *
+   * @param frame The frame that was sent
+   * @param sentNanos When it was sent, in {@link System#nanoTime()}
+   */
+  void setAlreadySent(byte[] frame, long sentNanos) {
+    alreadySentNanos = sentNanos;
+    alreadySentFrame = frame;
+  }
+
+  StroemWriteQueue getWriteQueue() {
+    return writeQueue;
+  }
+
+  /**
+   * Call when a message is received from the issuer.
+   *
+   * @return The time since the oldest unanswered message was written, or -1 if all messages have been answered.
+   */
+  long takeRttSampleMillis() {
+    long sentNanos = unansweredSinceNanos.getAndSet(NOTHING_SENT);
+    if (sentNanos == NOTHING_SENT) {
+      return -1;
+    }
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentNanos);
+  }
+
+  /**
+   * @return True if the connection was closed because nothing was received within the read timeout
+   */
+  boolean hasTimedOut() {
+    return timedOut;
+  }
+
+  /**
+   * @return The time since bytes were last received (or since this parser was created)
+   */
+  long getMillisSinceLastReceive() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReceiveNanos);
+  }
+
+  /**
+   * @return The number of messages written to the socket
+   */
+  long getMessagesWritten() {
+    return messagesWritten.get();
+  }
+
+  /**
+   * @return The number of bytes written to the socket, including the length prefixes
+   */
+  long getBytesWritten() {
+    return bytesWritten.get();
+  }
+}
@@ -0,0 +1,405 @@
+package io.stroem.clientj;
+
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>The outbound queue of a connection: frames waiting to be written to the transport.</p>
+ *
+ * <p>Frames are written in order by one thread at a time (the thread that finds the queue idle writes until it is
+ * empty). The queue is never full for the protocol itself, frames are always accepted, since a dropped payment
+ * channel message would put the channel out of sync. Instead the queue tells when it is over its limits
+ * (not writable), so new work can be refused before it is started: see
+ * {@link StroemClientTcpConnection#incrementPaymentAsync(byte[], org.bitcoinj.core.ECKey)} and the
+ * {@link OverflowPolicy}. It becomes writable again when it is below half of both limits.</p>
+ *
+ * <p>Note: bitcoinj's NIO transport buffers the bytes itself and never blocks a write, so over NIO the queue only
+ * fills up while a write is in progress. Transports that block when the peer is slow (pipes, TLS) fill it up for real.</p>
+ *
+ * <p>Gathering: the frames that are queued when the writing thread gets to them are written to the transport as one
+ * write (up to {@link #setMaxGatherBytes(int) a max size}), i.e. one syscall and as few packets as possible. With the
+ * {@link FlushPolicy#END_OF_READ} policy, frames written while the network thread handles what it has read (e.g. the
+ * next payment, sent when the previous one is acked) are held until it is done, and then written together.</p>
+ */
+public class StroemWriteQueue {
+  private static final org.slf4j.Logger log = LoggerFactory.getLogger(StroemWriteQueue.class);
+
+  public static final int DEFAULT_MAX_MESSAGES = 1024;
+  public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+  /**
+   * What to do with new payments when the queue is not writable.
+   */
+  public static enum OverflowPolicy {
+    BLOCK,     // Wait until the queue is writable (the async methods never wait, they fail fast)
+    FAIL_FAST, // Fail the payment at once, it is not sent
+  }
+
+  /**
+   * When queued frames are written to the transport.
+   */
+  public static enum FlushPolicy {
+    IMMEDIATE,   // As soon as possible, frames queued meanwhile are gathered
+    END_OF_READ, // Frames written while received bytes are handled wait until they have been handled
+  }
+
+  public static final int DEFAULT_MAX_GATHER_BYTES = 64 * 1024;
+
+  /**
+   * Told when the queue goes over its limits, and when it is back below half of them.
+   */
+  public interface Listener {
+    /**
+     * Called on the thread that wrote (or queued) the frame, must not block.
+     */
+    void writabilityChanged(boolean writable);
+  }
+
+  private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  private final ReentrantLock lock = Threading.lock("StroemWriteQueue");
+  private final Condition writableCondition = lock.newCondition();
+
+  // Guarded by lock
+  private final Deque<byte[]> frames = new ArrayDeque<byte[]>();
+  private MessageWriteTarget target;
+  private long queuedBytes = 0;   // Includes the frame being written
+  private int queuedMessages = 0; // Includes the frame being written
+  private boolean writing = false;
+  private boolean writable = true;
+  private boolean closed = false;
+  private int maxMessages = DEFAULT_MAX_MESSAGES;
+  private long maxBytes = DEFAULT_MAX_BYTES;
+  private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+  private int maxGatherBytes = DEFAULT_MAX_GATHER_BYTES;
+  private int corks = 0; // Nothing is written while > 0, see cork()
+  private long writeCount = 0;
+
+  StroemWriteQueue() {
+  }
+
+  /**
+   * Called when the transport is open.
+   */
+  void setTarget(MessageWriteTarget target) {
+    lock.lock();
+    try {
+      this.target = target;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queues the frame, and writes it (and everything queued after it) unless another thread is writing.
+   *
+   * @throws IOException if the transport could not write, the connection should be closed
+   */
+  void write(byte[] frame) throws IOException {
+    MessageWriteTarget writeTarget;
+    Boolean changed;
+    lock.lock();
+    try {
+      checkState(target != null, "Not connected");
+      checkState(!closed, "Connection closed");
+      frames.add(frame);
+      queuedBytes += frame.length;
+      queuedMessages++;
+      changed = updateWritable();
+      writeTarget = startWriting();
+    } finally {
+      lock.unlock();
+    }
+    fire(changed);
+    if (writeTarget != null) {
+      writeAll(writeTarget);
+    }
+  }
+
+  /*
+   * Guarded by lock.
+   * @return The target if this thread should write, null if another thread is writing or nothing should be written now
+   */
+  private MessageWriteTarget startWriting() {
+    if (writing || corks > 0 || closed || frames.isEmpty()) {
+      return null; // The writing thread (or uncork()) will take the frames
+    }
+    writing = true;
+    return target;
+  }
+
+  /*
+   * Writes until the queue is empty, the queued frames are gathered into one write.
+   */
+  private void writeAll(MessageWriteTarget writeTarget) throws IOException {
+    while (true) {
+      List<byte[]> gathered = new ArrayList<byte[]>();
+      int gatheredBytes = 0;
+      lock.lock();
+      try {
+        if (frames.isEmpty()) {
+          writing = false;
+          return;
+        }
+        do {
+          byte[] frame = frames.poll();
+          gathered.add(frame);
+          gatheredBytes += frame.length;
+        } while (!frames.isEmpty() && gatheredBytes + frames.peek().length <= maxGatherBytes);
+      } finally {
+        lock.unlock();
+      }
+      try {
+        writeTarget.writeBytes(gathered.size() == 1 ? gathered.get(0) : concat(gathered, gatheredBytes));
+      } catch (IOException e) {
+        close();
+        throw e;
+      }
+      Boolean changed;
+      lock.lock();
+      try {
+        if (closed) {
+          return; // The counters were reset
+        }
+        queuedBytes -= gatheredBytes;
+        queuedMessages -= gathered.size();
+        writeCount++;
+        changed = updateWritable();
+      } finally {
+        lock.unlock();
+      }
+      fire(changed);
+    }
+  }
+
+  private static byte[] concat(List<byte[]> frames, int size) {
+    byte[] bytes = new byte[size];
+    int offset = 0;
+    for (byte[] frame : frames) {
+      System.arraycopy(frame, 0, bytes, offset, frame.length);
+      offset += frame.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Holds the frames written from now on, until {@link #uncork()}, if the flush policy is
+   * {@link FlushPolicy#END_OF_READ}. Called when received bytes are about to be handled.
+   *
+   * @return True if corked, then {@link #uncork()} must be called
+   */
+  boolean cork() {
+    lock.lock();
+    try {
+      if (flushPolicy != FlushPolicy.END_OF_READ) {
+        return false;
+      }
+      corks++;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes the frames held since {@link #cork()}.
+   *
+   * @throws IOException if the transport could not write, the connection should be closed
+   */
+  void uncork() throws IOException {
+    MessageWriteTarget writeTarget;
+    lock.lock();
+    try {
+      corks--;
+      writeTarget = startWriting();
+    } finally {
+      lock.unlock();
+    }
+    if (writeTarget != null) {
+      writeAll(writeTarget);
+    }
+  }
+
+  /**
+   * Waits until the queue is writable (or closed).
+   */
+  void awaitWritable() throws InterruptedException {
+    lock.lock();
+    try {
+      while (!writable && !closed) {
+        writableCondition.await();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops what is queued, and wakes up the threads waiting for the queue to be writable.
+   */
+  void close() {
+    Boolean changed;
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (!frames.isEmpty()) {
+        log.debug("Dropping {} queued frames, the connection is closed", frames.size());
+      }
+      frames.clear();
+      queuedBytes = 0;
+      queuedMessages = 0;
+      writing = false;
+      changed = updateWritable();
+      writableCondition.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    fire(changed);
+  }
+
+  /**
+   * @param maxMessages The max number of queued frames before the queue is not writable
+   * @param maxBytes The max number of queued bytes before the queue is not writable
+   */
+  public void setLimits(int maxMessages, long maxBytes) {
+    checkArgument(maxMessages > 0 && maxBytes > 0, "Limits must be positive");
+    Boolean changed;
+    lock.lock();
+    try {
+      this.maxMessages = maxMessages;
+      this.maxBytes = maxBytes;
+      changed = updateWritable();
+    } finally {
+      lock.unlock();
+    }
+    fire(changed);
+  }
+
+  /**
+   * @param flushPolicy When frames are written, default is {@link FlushPolicy#IMMEDIATE}
+   */
+  public void setFlushPolicy(FlushPolicy flushPolicy) {
+    lock.lock();
+    try {
+      this.flushPolicy = checkNotNull(flushPolicy);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param maxGatherBytes The max size of one write to the transport, a larger frame is written alone.
+   *                       Default is {@link #DEFAULT_MAX_GATHER_BYTES}, 0 writes every frame alone.
+   */
+  public void setMaxGatherBytes(int maxGatherBytes) {
+    checkArgument(maxGatherBytes >= 0, "Cannot be negative");
+    lock.lock();
+    try {
+      this.maxGatherBytes = maxGatherBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return The number of writes to the transport (each one with one or more frames)
+   */
+  public long getWriteCount() {
+    lock.lock();
+    try {
+      return writeCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  public boolean isWritable() {
+    lock.lock();
+    try {
+      return writable;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getQueuedBytes() {
+    lock.lock();
+    try {
+      return queuedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getQueuedMessages() {
+    lock.lock();
+    try {
+      return queuedMessages;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Guarded by lock.
+   * @return The new writability if it changed, otherwise null
+   */
+  private Boolean updateWritable() {
+    boolean newWritable;
+    if (closed) {
+      newWritable = true; // Nothing is queued, new payments fail on the closed connection instead
+    } else if (writable) {
+      newWritable = queuedMessages < maxMessages && queuedBytes < maxBytes;
+    } else {
+      newWritable = queuedMessages <= maxMessages / 2 && queuedBytes <= maxBytes / 2;
+    }
+    if (newWritable == writable) {
+      return null;
+    }
+    writable = newWritable;
+    if (writable) {
+      writableCondition.signalAll();
+    } else {
+      log.info("Outbound queue is full: {} frames, {} bytes", queuedMessages, queuedBytes);
+    }
+    return writable;
+  }
+
+  private void fire(Boolean changed) {
+    if (changed == null) {
+      return;
+    }
+    for (Listener listener : listeners) {
+      try {
+        listener.writabilityChanged(changed);
+      } catch (RuntimeException e) {
+        log.warn("Writability listener failed", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package io.stroem.clientj.domain;
+
+import com.google.common.net.HostAndPort;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>StroemEndpoint to provide the following :</p>
+ * <ul>
+ * <li>One host and port where an issuer's Stroem server listens (issuers may run several frontends)</li>
+ * </ul>
+ */
+public class StroemEndpoint {
+
+  /**
+   * The port of the Stroem protocol, used when none is given.
+   */
+  public static final int DEFAULT_PORT = 4399;
+
+  private final String host;
+  private final int port;
+
+  public StroemEndpoint(String host, int port) {
+    checkArgument(!host.isEmpty(), "The host is empty");
+    checkArgument(port > 0 && port <= 65535, "Bad port: " + port);
+    this.host = host;
+    this.port = port;
+  }
+
+  /**
+   * @param hostAndPort "host", "host:port" or "[IPv6 address]:port"
+   */
+  public static StroemEndpoint parse(String hostAndPort) {
+    HostAndPort parsed = HostAndPort.fromString(hostAndPort).withDefaultPort(DEFAULT_PORT);
+    return new StroemEndpoint(parsed.getHostText(), parsed.getPort());
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    StroemEndpoint that = (StroemEndpoint) o;
+
+    return port == that.port && host.equals(that.host);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * host.hashCode() + port;
+  }
+
+  @Override
+  public String toString() {
+    return HostAndPort.fromParts(host, port).toString();
+  }
+}
@@ -7,7 +7,10 @@ import org.bitcoinj.core.Coin;
 import javax.annotation.Nullable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * <p>StroemPaymentChannel to provide the following :</p>
@@ -95,6 +98,13 @@ public class StroemPaymentChannel {
   @Nullable
   private String note;
 
+  /**
+   * The frontends of the issuer's Stroem server. If not present, the host of the issuer uri on the default port.
+   * Not stored with the channel (the channel proto has no field for it), set it when the channel is loaded.
+   */
+  @Nullable
+  private List<StroemEndpoint> endpoints;
+
 
   /**
    * Construct from proto (from disk)
@@ -117,6 +127,17 @@ public class StroemPaymentChannel {
       }
     }
 
+    // The Stroem id is not stored, it is derived from the server id (or the issuer uri if there is no server id)
+    if (serverId != null) {
+      stroemId = new StroemIdComplex(serverId);
+    } else {
+      try {
+        stroemId = new StroemIdSimple(new URI(issuerUri));
+      } catch (URISyntaxException e) {
+        throw new IllegalStateException("URI should be valid by now: " + issuerUri);
+      }
+    }
+
     // Miner fee
     if (proto.hasMinerFee()) {
       long minerFeeLong = proto.getMinerFee();
@@ -189,6 +210,27 @@ public class StroemPaymentChannel {
     }
   }
 
+  /**
+   * @return The endpoints of the issuer's Stroem server, in order of preference (never empty)
+   */
+  public List<StroemEndpoint> getEndpoints() {
+    if (endpoints == null) {
+      return Collections.singletonList(new StroemEndpoint(getIssuerHost(), StroemEndpoint.DEFAULT_PORT));
+    }
+    return endpoints;
+  }
+
+  /**
+   * @param endpoints The frontends of the issuer's Stroem server, in order of preference, or null for the default
+   */
+  public void setEndpoints(@Nullable List<StroemEndpoint> endpoints) {
+    if (endpoints == null || endpoints.isEmpty()) {
+      this.endpoints = null;
+    } else {
+      this.endpoints = Collections.unmodifiableList(new ArrayList<StroemEndpoint>(endpoints));
+    }
+  }
+
   public String getIssuerName() {
     return issuerName;
   }
@@ -262,6 +304,7 @@ public class StroemPaymentChannel {
         ", fiatMaxValue=" + fiatMaxValue +
         ", fiatCurrency='" + fiatCurrency + '\'' +
         ", note='" + note + '\'' +
+        ", endpoints=" + endpoints +
         '}';
   }
 }
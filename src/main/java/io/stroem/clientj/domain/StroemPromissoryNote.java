@@ -1,5 +1,9 @@
 package io.stroem.clientj.domain;
 
+import io.stroem.proto.StroemProtos;
+
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -26,4 +30,60 @@ public class StroemPromissoryNote {
     this.requiredLastNegotiations = requiredLastNegotiations;
     this.negotiations = negotiations;
   }
+
+  public StroemPromissoryNote(StroemProtos.PromissoryNote note) {
+    this(new StroemEntity(note.getIssuer()), new Date(note.getIssued()), note.getId(), note.getAmount(),
+        note.getCurrency(), note.getValidFor(), toEntities(note.getRequiredLastNegotiationsList()),
+        Collections.unmodifiableList(new ArrayList<Long>(note.getNegotiationsList())));
+  }
+
+  private static List<StroemEntity> toEntities(List<StroemProtos.Entity> protoEntities) {
+    List<StroemEntity> entities = new ArrayList<StroemEntity>(protoEntities.size());
+    for (StroemProtos.Entity protoEntity : protoEntities) {
+      entities.add(new StroemEntity(protoEntity));
+    }
+    return Collections.unmodifiableList(entities);
+  }
+
+  public StroemEntity getIssuer() {
+    return issuer;
+  }
+
+  public Date getIssued() {
+    return issued;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public long getAmount() {
+    return amount;
+  }
+
+  public String getCurrency() {
+    return currency;
+  }
+
+  public long getValidFor() {
+    return validFor;
+  }
+
+  public List<StroemEntity> getRequiredLastNegotiations() {
+    return requiredLastNegotiations;
+  }
+
+  public List<Long> getNegotiations() {
+    return negotiations;
+  }
+
+  @Override
+  public String toString() {
+    return "StroemPromissoryNote{" +
+        "id=" + id +
+        ", amount=" + amount +
+        ", currency='" + currency + '\'' +
+        ", issued=" + issued +
+        '}';
+  }
 }
@@ -0,0 +1,47 @@
+package io.stroem.clientj;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemBackoffTest to provide the following :</p>
+ * <ul>
+ * <li>Delays grow exponentially, with jitter, up to the max</li>
+ * </ul>
+ */
+public class StroemBackoffTest {
+
+  @Test
+  public void testDelaysDoubleUpToMax() throws Exception {
+    StroemBackoff backoff = new StroemBackoff(100, 1000, new Random(42));
+
+    long[] maxDelays = {100, 200, 400, 800, 1000, 1000};
+    for (long max : maxDelays) {
+      long delay = backoff.nextDelayMillis();
+      assertTrue("Delay " + delay + " should be at most " + max, delay <= max);
+      assertTrue("Delay " + delay + " should be at least " + max / 2, delay >= max / 2);
+    }
+    assertEquals(maxDelays.length, backoff.getAttempts());
+  }
+
+  @Test
+  public void testReset() throws Exception {
+    StroemBackoff backoff = new StroemBackoff(100, 1000, new Random(42));
+    backoff.nextDelayMillis();
+    backoff.nextDelayMillis();
+    backoff.nextDelayMillis();
+
+    backoff.reset();
+
+    assertEquals(0, backoff.getAttempts());
+    assertTrue(backoff.nextDelayMillis() <= 100);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxLessThanInitial() throws Exception {
+    new StroemBackoff(1000, 100);
+  }
+}
@@ -0,0 +1,144 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.stroem.clientj.domain.StroemId;
+import io.stroem.clientj.domain.StroemIdComplex;
+import org.bitcoinj.protocols.channels.ValueOutOfRangeException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemClientConnectionPoolTest to provide the following :</p>
+ * <ul>
+ * <li>A slow factory does not hold up the connections to other channels</li>
+ * <li>A caller for a channel whose connection is being created shares it, without a second create</li>
+ * <li>A failed create fails the callers that share it, and leaves no entry in the pool</li>
+ * </ul>
+ */
+public class StroemClientConnectionPoolTest {
+
+  private static final StroemId SLOW = new StroemIdComplex("slow");
+  private static final StroemId FAST = new StroemIdComplex("fast");
+
+  @Test
+  public void testCreateOutsideLock() throws Exception {
+    BlockingFactory factory = new BlockingFactory();
+    final StroemClientConnectionPool pool = new StroemClientConnectionPool(factory);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<ListenableFuture<StroemClientTcpConnection>> slow = executor.submit(getConnection(pool, SLOW));
+      assertTrue(factory.entered.await(5, TimeUnit.SECONDS));
+
+      // Neither blocks on the slow create
+      ListenableFuture<StroemClientTcpConnection> fast = pool.getConnection(FAST);
+      ListenableFuture<StroemClientTcpConnection> shared = pool.getConnection(SLOW);
+      assertFalse(shared.isDone());
+      assertEquals(2, pool.size());
+      assertEquals(2, factory.creates.get());
+      assertEquals(1, pool.getHitCount());
+
+      factory.release.countDown();
+      ListenableFuture<StroemClientTcpConnection> created = slow.get(5, TimeUnit.SECONDS);
+      assertSame(created, shared);
+      StroemClientTcpConnection connection = factory.slowConnection;
+      StroemTestConnections.open(connection);
+      assertSame(connection, shared.get(5, TimeUnit.SECONDS));
+      assertSame(connection, pool.getConnection(SLOW).get());
+      assertEquals(2, factory.creates.get());
+
+      StroemTestConnections.open(factory.fastConnection);
+      assertSame(factory.fastConnection, fast.get(5, TimeUnit.SECONDS));
+    } finally {
+      factory.release.countDown();
+      executor.shutdownNow();
+      pool.closeAll();
+    }
+  }
+
+  @Test
+  public void testCreateFailed() throws Exception {
+    BlockingFactory factory = new BlockingFactory();
+    factory.fail = true;
+    final StroemClientConnectionPool pool = new StroemClientConnectionPool(factory);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<ListenableFuture<StroemClientTcpConnection>> slow = executor.submit(getConnection(pool, SLOW));
+      assertTrue(factory.entered.await(5, TimeUnit.SECONDS));
+      ListenableFuture<StroemClientTcpConnection> shared = pool.getConnection(SLOW);
+
+      factory.release.countDown();
+      try {
+        slow.get(5, TimeUnit.SECONDS);
+        fail("The factory failed");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+      try {
+        shared.get(5, TimeUnit.SECONDS);
+        fail("The factory failed");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+      assertEquals(0, pool.size());
+      assertEquals(1, pool.getEvictionCount());
+    } finally {
+      factory.release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  private static Callable<ListenableFuture<StroemClientTcpConnection>> getConnection(
+      final StroemClientConnectionPool pool, final StroemId stroemId) {
+    return new Callable<ListenableFuture<StroemClientTcpConnection>>() {
+      @Override
+      public ListenableFuture<StroemClientTcpConnection> call() throws Exception {
+        return pool.getConnection(stroemId);
+      }
+    };
+  }
+
+  /*
+   * Creates connections to an issuer that never answers, and blocks in the create for the slow channel until released.
+   */
+  private static class BlockingFactory implements StroemConnectionFactory {
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger creates = new AtomicInteger();
+    private volatile boolean fail = false;
+    private volatile StroemClientTcpConnection slowConnection;
+    private volatile StroemClientTcpConnection fastConnection;
+
+    @Override
+    public StroemClientTcpConnection create(StroemId stroemId) throws IOException, ValueOutOfRangeException {
+      creates.incrementAndGet();
+      try {
+        if (SLOW.equals(stroemId)) {
+          entered.countDown();
+          release.await();
+          if (fail) {
+            throw new IOException("Could not connect");
+          }
+          slowConnection = StroemTestConnections.newConnection(stroemId);
+          return slowConnection;
+        }
+        fastConnection = StroemTestConnections.newConnection(stroemId);
+        return fastConnection;
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import io.stroem.clientj.domain.StroemIdComplex;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemClientTcpConnectionTest to provide the following :</p>
+ * <ul>
+ * <li>The RTT learned from the version handshake does not shorten the read timeout, neither during the setup nor for
+ * the payment acks</li>
+ * <li>A phase that passes its deadline fails the setup with a StroemConnectException that names the phase and has the
+ * timings of the phases before it</li>
+ * <li>A TCP connect that completes after the connect deadline is closed at once</li>
+ * <li>A payment on a connection that is not open, or is closed, fails its future instead of throwing</li>
+ * <li>A merchant that names another issuer, or an old issuer key, is refused</li>
+ * </ul>
+ */
+public class StroemClientTcpConnectionTest {
+
+  @After
+  public void tearDown() {
+    StroemRttEstimator.clearAll();
+  }
+
+  @Test
+  public void testAckTimeoutNotShorterThanConfigured() throws Exception {
+    StroemClientTcpConnection connection = StroemTestConnections.newConnection("fast-issuer",
+        new StroemConnectionTimeouts(1000, 0, 0, 5000), new StroemIdComplex("test"));
+    // Cheap round trips, the learned timeout is the minimum
+    for (int i = 0; i < 20; i++) {
+      connection.getRttEstimator().addSample(5);
+    }
+    assertEquals(StroemRttEstimator.MIN_TIMEOUT_MILLIS, connection.getRttEstimator().getTimeoutMillis(5000));
+    assertEquals(5000, connection.getAdaptiveReadTimeoutMillis());
+
+    StroemTestConnections.open(connection);
+    assertEquals(5000, connection.getAdaptiveReadTimeoutMillis());
+
+    // A slow issuer makes it longer
+    for (int i = 0; i < 20; i++) {
+      connection.getRttEstimator().addSample(8000);
+    }
+    assertTrue(connection.getAdaptiveReadTimeoutMillis() > 8000);
+    connection.disconnectWithoutSettlement();
+  }
+
+  @Test
+  public void testPaymentNotOpen() throws Exception {
+    StroemClientTcpConnection connection = StroemTestConnections.newConnection(new StroemIdComplex("test"));
+    try {
+      assertFailed(IllegalStateException.class, connection.incrementPaymentAsync(new byte[0], new ECKey()));
+      assertFailed(IllegalStateException.class, connection.incrementPaymentValueAsync(Coin.CENT, ByteString.EMPTY));
+    } finally {
+      connection.disconnectWithoutSettlement();
+    }
+  }
+
+  @Test
+  public void testPaymentClosed() throws Exception {
+    StroemClientTcpConnection connection = StroemTestConnections.newConnection(new StroemIdComplex("test"));
+    StroemTestConnections.open(connection);
+    connection.disconnectWithoutSettlement();
+    connection.getConnectionClosedFuture().get(5, TimeUnit.SECONDS);
+    assertFailed(IllegalStateException.class, connection.incrementPaymentAsync(new byte[0], new ECKey()));
+    assertFailed(IllegalStateException.class, connection.incrementPaymentValueAsync(Coin.CENT, ByteString.EMPTY));
+  }
+
+  @Test
+  public void testVerifyIssuerEntity() throws Exception {
+    byte[] issuerKey = new ECKey().getPubKey();
+    StroemClientTcpConnection.verifyIssuerEntity("issuer", issuerKey, "issuer", issuerKey.clone());
+    try {
+      StroemClientTcpConnection.verifyIssuerEntity("issuer", issuerKey, "issuer", new ECKey().getPubKey());
+      fail("The merchant has an old issuer key");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    try {
+      StroemClientTcpConnection.verifyIssuerEntity("issuer", issuerKey, "other-issuer", issuerKey);
+      fail("The merchant names another issuer");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testHandshakeDeadline() throws Exception {
+    ListenableFuture<StroemClientTcpConnection> future = StroemClientTcpConnection.connectAsync("silent-issuer",
+        new StroemConnectionTimeouts(1000, 100, 0, 0), 3600, new Wallet(UnitTestParams.get()), new ECKey(), null,
+        Coin.COIN, new StroemIdComplex("test"), new StroemLoopbackTransport(new StroemTestConnections.SilentIssuer()));
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("The issuer never answers the handshake");
+    } catch (ExecutionException e) {
+      StroemConnectException connectException = (StroemConnectException) e.getCause();
+      assertEquals(StroemConnectTimings.Phase.HANDSHAKE, connectException.getPhase());
+      assertEquals(StroemProtocolException.Code.TIMEOUT,
+          ((StroemProtocolException) connectException.getCause()).getCode());
+      StroemConnectTimings timings = connectException.getTimings();
+      assertTrue(timings.getConnectMillis() >= 0);
+      assertEquals(-1, timings.getHandshakeMillis());
+      assertEquals(-1, timings.getInitiateMillis());
+      assertTrue(timings.getTotalMillis() >= 100);
+    }
+  }
+
+  @Test
+  public void testConnectDeadline() throws Exception {
+    // The TCP connect completes after 300 ms
+    StroemFaultInjectingTransport slowTransport =
+        new StroemFaultInjectingTransport(new StroemLoopbackTransport(new StroemTestConnections.SilentIssuer()), 1);
+    slowTransport.setLatency(StroemFaultInjectingTransport.fixedLatency(300));
+    StroemClientTcpConnection connection = new StroemClientTcpConnection("slow-issuer",
+        new StroemConnectionTimeouts(50, 0, 0, 0), 3600, new Wallet(UnitTestParams.get()), new ECKey(), null, Coin.COIN,
+        new StroemIdComplex("test"), slowTransport);
+    try {
+      connection.getChannelOpenFuture().get(5, TimeUnit.SECONDS);
+      fail("The connect deadline has passed");
+    } catch (ExecutionException e) {
+      assertEquals(StroemProtocolException.Code.TIMEOUT, ((StroemProtocolException) e.getCause()).getCode());
+    }
+    assertEquals(StroemConnectTimings.Phase.CONNECT, connection.getConnectTimings().getCurrentPhase());
+
+    // Closed when the connect completes, without starting the handshake
+    assertSame(connection, connection.getConnectionClosedFuture().get(5, TimeUnit.SECONDS));
+    assertEquals(StroemConnectTimings.Phase.CONNECT, connection.getConnectTimings().getCurrentPhase());
+  }
+
+  private static void assertFailed(Class<? extends Exception> expected, ListenableFuture<?> future) throws Exception {
+    assertTrue(future.isDone());
+    try {
+      future.get();
+      fail("The payment should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().toString(), expected.isInstance(e.getCause()));
+    }
+  }
+}
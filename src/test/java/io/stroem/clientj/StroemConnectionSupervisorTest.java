@@ -0,0 +1,192 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import io.stroem.clientj.domain.StroemId;
+import io.stroem.clientj.domain.StroemIdComplex;
+import io.stroem.clientj.domain.StroemNegotiator;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.protocols.channels.ValueOutOfRangeException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemConnectionSupervisorTest to provide the following :</p>
+ * <ul>
+ * <li>A dead connection is replaced, and the new connection is created off the timer thread</li>
+ * <li>RESUBMIT: a payment that was not sent waits for the reconnect, and is made on the new connection</li>
+ * <li>FAIL_FAST: payments fail at once while reconnecting</li>
+ * <li>An issuer that is not worth a retry stops the supervisor, and its connection is closed</li>
+ * </ul>
+ */
+public class StroemConnectionSupervisorTest {
+
+  private static final StroemId STROEM_ID = new StroemIdComplex("test");
+
+  @Test
+  public void testReconnectAndResubmit() throws Exception {
+    TestFactory factory = new TestFactory();
+    StroemConnectionSupervisor supervisor = newSupervisor(factory, StroemConnectionSupervisor.PendingPaymentPolicy.RESUBMIT);
+    try {
+      ListenableFuture<StroemClientTcpConnection> started = supervisor.start();
+      TestConnection first = factory.created.poll(5, TimeUnit.SECONDS);
+      StroemTestConnections.open(first);
+      assertSame(first, started.get(5, TimeUnit.SECONDS));
+
+      ListenableFuture<StroemNegotiator> payment = supervisor.incrementPaymentAsync(new byte[0], new ECKey());
+      SettableFuture<StroemNegotiator> firstAttempt = first.payments.poll(5, TimeUnit.SECONDS);
+      assertNotNull(firstAttempt);
+
+      first.disconnectWithoutSettlement();
+      TestConnection second = factory.created.poll(5, TimeUnit.SECONDS);
+      assertNotNull("No reconnect", second);
+      assertFalse(factory.createdOnTimer);
+      assertEquals(1, supervisor.getReconnectCount());
+
+      // The payment never got to the issuer, it waits for the new connection
+      firstAttempt.setException(new StroemPaymentNotSentException(new IOException("The TCP socket died")));
+      assertFalse(supervisor.getConnection().isDone());
+      assertFalse(payment.isDone());
+
+      StroemTestConnections.open(second);
+      assertSame(second, supervisor.getConnection().get(5, TimeUnit.SECONDS));
+      SettableFuture<StroemNegotiator> secondAttempt = second.payments.poll(5, TimeUnit.SECONDS);
+      assertNotNull("The payment was not resubmitted", secondAttempt);
+      secondAttempt.set(null);
+      assertNull(payment.get(5, TimeUnit.SECONDS));
+    } finally {
+      supervisor.stop();
+    }
+  }
+
+  @Test
+  public void testFailFast() throws Exception {
+    TestFactory factory = new TestFactory();
+    StroemConnectionSupervisor supervisor = newSupervisor(factory, StroemConnectionSupervisor.PendingPaymentPolicy.FAIL_FAST);
+    try {
+      supervisor.start();
+      TestConnection first = factory.created.poll(5, TimeUnit.SECONDS);
+      StroemTestConnections.open(first);
+      ListenableFuture<StroemNegotiator> payment = supervisor.incrementPaymentAsync(new byte[0], new ECKey());
+      SettableFuture<StroemNegotiator> firstAttempt = first.payments.poll(5, TimeUnit.SECONDS);
+
+      first.disconnectWithoutSettlement();
+      TestConnection second = factory.created.poll(5, TimeUnit.SECONDS);
+      assertNotNull("No reconnect", second);
+      firstAttempt.setException(new StroemPaymentNotSentException(new IOException("The TCP socket died")));
+      assertNotSent(payment);
+
+      // New payments fail at once until the new connection is open
+      assertNotSent(supervisor.incrementPaymentAsync(new byte[0], new ECKey()));
+      assertTrue(second.payments.isEmpty());
+
+      StroemTestConnections.open(second);
+      // Fails fast until the supervisor has seen the channel open
+      for (int i = 0; i < 500 && !isOpen(supervisor.getConnection()); i++) {
+        Thread.sleep(10);
+      }
+      assertSame(second, supervisor.getConnection().get());
+    } finally {
+      supervisor.stop();
+    }
+  }
+
+  @Test
+  public void testNotRetryable() throws Exception {
+    TestFactory factory = new TestFactory();
+    factory.rejected = true;
+    StroemConnectionSupervisor supervisor = newSupervisor(factory, StroemConnectionSupervisor.PendingPaymentPolicy.RESUBMIT);
+    try {
+      supervisor.start().get(5, TimeUnit.SECONDS);
+      fail("The issuer rejected the connection");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof WrongStroemServerVersionException);
+    }
+    TestConnection rejected = factory.created.poll(5, TimeUnit.SECONDS);
+    // Closed, and not replaced
+    assertSame(rejected, rejected.getConnectionClosedFuture().get(5, TimeUnit.SECONDS));
+    assertNull(factory.created.poll(200, TimeUnit.MILLISECONDS));
+    assertEquals(0, supervisor.getReconnectCount());
+    assertTrue(supervisor.getConnection().isDone());
+  }
+
+  private static StroemConnectionSupervisor newSupervisor(TestFactory factory,
+                                                          StroemConnectionSupervisor.PendingPaymentPolicy policy) {
+    return new StroemConnectionSupervisor(STROEM_ID, factory, policy, new StroemBackoff(10, 50));
+  }
+
+  private static boolean isOpen(ListenableFuture<StroemClientTcpConnection> connection) throws InterruptedException {
+    try {
+      return connection.isDone() && connection.get() != null;
+    } catch (ExecutionException e) {
+      return false;
+    }
+  }
+
+  private static void assertNotSent(ListenableFuture<StroemNegotiator> payment) throws Exception {
+    assertTrue(payment.isDone());
+    try {
+      payment.get();
+      fail("The payment should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof StroemPaymentNotSentException);
+    }
+  }
+
+  private static class TestFactory implements StroemConnectionFactory {
+    private final BlockingQueue<TestConnection> created = new LinkedBlockingQueue<TestConnection>();
+    private volatile boolean rejected = false;
+    private volatile boolean createdOnTimer = false;
+
+    @Override
+    public StroemClientTcpConnection create(StroemId stroemId) throws IOException, ValueOutOfRangeException {
+      if (Thread.currentThread().getName().equals("Stroem timer")) {
+        createdOnTimer = true;
+      }
+      TestConnection connection = new TestConnection(stroemId, rejected);
+      created.add(connection);
+      return connection;
+    }
+  }
+
+  /*
+   * A connection to an issuer that never answers. Keeps the payments made on it, and can fail its setup as an issuer
+   * with the wrong Stroem version would.
+   */
+  private static class TestConnection extends StroemClientTcpConnection {
+    private final BlockingQueue<SettableFuture<StroemNegotiator>> payments =
+        new LinkedBlockingQueue<SettableFuture<StroemNegotiator>>();
+    private final ListenableFuture<StroemClientTcpConnection> rejectedFuture;
+
+    private TestConnection(StroemId stroemId, boolean rejected) throws IOException, ValueOutOfRangeException {
+      super("issuer", new StroemConnectionTimeouts(1000, 0, 0, 0), 3600, new Wallet(UnitTestParams.get()), new ECKey(),
+          null, Coin.COIN, stroemId, new StroemLoopbackTransport(new StroemTestConnections.SilentIssuer()));
+      rejectedFuture = rejected
+          ? Futures.<StroemClientTcpConnection>immediateFailedFuture(new WrongStroemServerVersionException("Wrong version"))
+          : null;
+    }
+
+    @Override
+    public ListenableFuture<StroemClientTcpConnection> getChannelOpenFuture() {
+      return rejectedFuture != null ? rejectedFuture : super.getChannelOpenFuture();
+    }
+
+    @Override
+    public ListenableFuture<StroemNegotiator> incrementPaymentAsync(byte[] merchantPaymentDetailsBytes, ECKey myTransactionKey) {
+      SettableFuture<StroemNegotiator> payment = SettableFuture.create();
+      payments.add(payment);
+      return payment;
+    }
+  }
+}
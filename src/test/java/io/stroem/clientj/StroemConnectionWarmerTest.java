@@ -0,0 +1,129 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.stroem.clientj.domain.StroemId;
+import io.stroem.clientj.domain.StroemIdComplex;
+import io.stroem.clientj.domain.StroemPaymentChannel;
+import io.stroem.clientj.domain.StroemPaymentChannels;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.protocols.channels.ValueOutOfRangeException;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemConnectionWarmerTest to provide the following :</p>
+ * <ul>
+ * <li>No more connects run at the same time than allowed, and the next one starts when one is done</li>
+ * <li>Channels without a contract in the wallet are not warmed</li>
+ * <li>Failed connects are not counted, and the connects are not started under the warmer's lock</li>
+ * </ul>
+ */
+public class StroemConnectionWarmerTest {
+
+  private Wallet wallet;
+  private StroemPaymentChannels channels;
+
+  @Before
+  public void setUp() {
+    wallet = new Wallet(UnitTestParams.get());
+    channels = new StroemPaymentChannels();
+    for (int i = 0; i < 3; i++) {
+      channels.addStroemPaymentChannel(channel("channel" + i, contract(i)));
+    }
+    // Can't be resumed
+    channels.addStroemPaymentChannel(channel("lost", Sha256Hash.ZERO_HASH.toString()));
+  }
+
+  @Test
+  public void testConcurrentConnects() throws Exception {
+    TestFactory factory = new TestFactory();
+    StroemConnectionWarmer warmer = new StroemConnectionWarmer(new StroemClientConnectionPool(factory), 2);
+    factory.warmer = warmer;
+
+    ListenableFuture<Integer> warm = warmer.warmUp(channels, wallet, 10);
+    StroemClientTcpConnection first = factory.created.poll(5, TimeUnit.SECONDS);
+    StroemClientTcpConnection second = factory.created.poll(5, TimeUnit.SECONDS);
+    assertNotNull(second);
+    assertNull("Only two connects at a time", factory.created.poll(200, TimeUnit.MILLISECONDS));
+
+    StroemTestConnections.open(first);
+    StroemClientTcpConnection third = factory.created.poll(5, TimeUnit.SECONDS);
+    assertNotNull("The next connect did not start", third);
+    StroemTestConnections.open(second);
+    StroemTestConnections.open(third);
+    assertEquals(3, (int) warm.get(5, TimeUnit.SECONDS));
+    assertTrue(warmer.isWarm());
+    assertNull(factory.created.poll(100, TimeUnit.MILLISECONDS));
+    assertFalse(factory.createdUnderLock);
+  }
+
+  @Test
+  public void testFailedConnects() throws Exception {
+    TestFactory factory = new TestFactory();
+    factory.failing = true;
+    StroemConnectionWarmer warmer = new StroemConnectionWarmer(new StroemClientConnectionPool(factory), 1);
+    factory.warmer = warmer;
+
+    assertEquals(0, (int) warmer.warmUp(channels, wallet, 10).get(5, TimeUnit.SECONDS));
+    assertEquals(3, factory.attempts.get());
+    assertFalse(factory.createdUnderLock);
+  }
+
+  /*
+   * A contract transaction in the wallet, updated now.
+   */
+  private String contract(int i) {
+    Transaction contract = new Transaction(UnitTestParams.get());
+    contract.addOutput(Coin.valueOf(i + 1), new ECKey());
+    contract.setUpdateTime(new Date());
+    wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, contract));
+    return contract.getHashAsString();
+  }
+
+  private static StroemPaymentChannel channel(String serverId, String hash) {
+    return new StroemPaymentChannel(new StroemIdComplex(serverId), hash, "stroem://issuer/", "issuer", Coin.COIN, 3600,
+        new byte[33], null, null, null, null, null);
+  }
+
+  private static class TestFactory implements StroemConnectionFactory {
+    private final BlockingQueue<StroemClientTcpConnection> created = new LinkedBlockingQueue<StroemClientTcpConnection>();
+    private volatile StroemConnectionWarmer warmer;
+    private volatile boolean failing = false;
+    private volatile boolean createdUnderLock = false;
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    @Override
+    public StroemClientTcpConnection create(StroemId stroemId) throws IOException, ValueOutOfRangeException {
+      if (Thread.holdsLock(warmer)) {
+        createdUnderLock = true;
+      }
+      attempts.incrementAndGet();
+      if (failing) {
+        throw new IOException("Could not connect");
+      }
+      StroemClientTcpConnection connection;
+      try {
+        connection = StroemTestConnections.newConnection(stroemId);
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+      created.add(connection);
+      return connection;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.stroem.clientj.domain.StroemEndpoint;
+import org.bitcoin.paymentchannel.Protos;
+import org.bitcoinj.net.StreamParser;
+import org.bitcoinj.net.StreamParserFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemEndpointRacingTransportTest to provide the following :</p>
+ * <ul>
+ * <li>The first endpoint to answer the handshake is kept, the others are closed</li>
+ * <li>The connection is handed over without sending the client hello twice</li>
+ * <li>A failed endpoint starts the next one without waiting for the stagger delay</li>
+ * <li>The connect fails when all endpoints fail</li>
+ * <li>Without a connect timeout the race waits for an endpoint that answers after the last start</li>
+ * </ul>
+ */
+public class StroemEndpointRacingTransportTest {
+
+  private static final Protos.TwoWayChannelMessage HELLO =
+      StroemTestConnections.message(Protos.TwoWayChannelMessage.MessageType.CLIENT_VERSION);
+
+  private static final StroemEndpointRacingTransport.Handshake HANDSHAKE = new StroemEndpointRacingTransport.Handshake() {
+    @Override
+    public byte[] hello() {
+      return frame(HELLO);
+    }
+
+    @Override
+    public boolean isAccepted(byte[] message) {
+      try {
+        return Protos.TwoWayChannelMessage.parseFrom(message).getType() == Protos.TwoWayChannelMessage.MessageType.SERVER_VERSION;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+  };
+
+  @Test
+  public void testFastestWins() throws Exception {
+    StroemTestConnections.EchoIssuer slowIssuer = new StroemTestConnections.EchoIssuer();
+    StroemTestConnections.EchoIssuer fastIssuer = new StroemTestConnections.EchoIssuer();
+    StroemFaultInjectingTransport slowTransport = new StroemFaultInjectingTransport(new StroemLoopbackTransport(slowIssuer), 1);
+    slowTransport.setLatency(StroemFaultInjectingTransport.fixedLatency(300));
+    StroemEndpointRacingTransport transport = new StroemEndpointRacingTransport(
+        new HostTransport(slowTransport, new StroemLoopbackTransport(fastIssuer)), 50, HANDSHAKE);
+    transport.setEndpoints("issuer", Arrays.asList(new StroemEndpoint("slow", 4399), new StroemEndpoint("fast", 4399)));
+
+    StroemTestConnections.Client client = new StroemTestConnections.Client(HELLO);
+    long start = System.nanoTime();
+    ListenableFuture<?> open = transport.openConnection("issuer", StroemClientTcpConnection.STROEM_PORT, client.parser, 5000);
+    open.get(5, TimeUnit.SECONDS);
+    assertTrue(client.opened.get(5, TimeUnit.SECONDS));
+    Protos.TwoWayChannelMessage serverVersion = client.received.poll(5, TimeUnit.SECONDS);
+    assertEquals(Protos.TwoWayChannelMessage.MessageType.SERVER_VERSION, serverVersion.getType());
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 300);
+
+    // The connection carries the messages of the client
+    client.parser.write(StroemTestConnections.message(Protos.TwoWayChannelMessage.MessageType.ERROR));
+    assertEquals(Protos.TwoWayChannelMessage.MessageType.ERROR, client.received.poll(5, TimeUnit.SECONDS).getType());
+    assertEquals(1, fastIssuer.hellos.get());
+
+    // The slow endpoint is closed, and the fast one is tried first next time
+    for (int i = 0; i < 200 && slowIssuer.closed.get() < 1; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, slowIssuer.closed.get());
+    assertEquals("fast", transport.getEndpoints("issuer", StroemClientTcpConnection.STROEM_PORT).get(0).getHost());
+
+    client.parser.closeConnection();
+    assertTrue(client.closed.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testFailoverWithoutStagger() throws Exception {
+    StroemTestConnections.EchoIssuer issuer = new StroemTestConnections.EchoIssuer();
+    StroemEndpointRacingTransport transport = new StroemEndpointRacingTransport(
+        new HostTransport(new StroemLoopbackTransport(new Refusing()), new StroemLoopbackTransport(issuer)), 60000, HANDSHAKE);
+    transport.setEndpoints("issuer", Arrays.asList(new StroemEndpoint("slow", 4399), new StroemEndpoint("fast", 4399)));
+
+    StroemTestConnections.Client client = new StroemTestConnections.Client(HELLO);
+    transport.openConnection("issuer", StroemClientTcpConnection.STROEM_PORT, client.parser, 5000).get(5, TimeUnit.SECONDS);
+    assertTrue(client.opened.get(5, TimeUnit.SECONDS));
+    assertEquals(Protos.TwoWayChannelMessage.MessageType.SERVER_VERSION, client.received.poll(5, TimeUnit.SECONDS).getType());
+  }
+
+  @Test
+  public void testAllFail() throws Exception {
+    StroemLoopbackTransport refusing = new StroemLoopbackTransport(new Refusing());
+    StroemEndpointRacingTransport transport = new StroemEndpointRacingTransport(new HostTransport(refusing, refusing), 50, HANDSHAKE);
+    transport.setEndpoints("issuer", Arrays.asList(new StroemEndpoint("slow", 4399), new StroemEndpoint("fast", 4399)));
+
+    StroemTestConnections.Client client = new StroemTestConnections.Client(HELLO);
+    try {
+      transport.openConnection("issuer", StroemClientTcpConnection.STROEM_PORT, client.parser, 5000).get(5, TimeUnit.SECONDS);
+      fail("The connect should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    assertFalse(client.opened.isDone());
+  }
+
+  @Test
+  public void testNoConnectTimeout() throws Exception {
+    StroemTestConnections.EchoIssuer issuer = new StroemTestConnections.EchoIssuer();
+    StroemFaultInjectingTransport slowTransport = new StroemFaultInjectingTransport(new StroemLoopbackTransport(issuer), 1);
+    slowTransport.setLatency(StroemFaultInjectingTransport.fixedLatency(200));
+    StroemEndpointRacingTransport transport = new StroemEndpointRacingTransport(
+        new HostTransport(slowTransport, slowTransport), 50, HANDSHAKE);
+    transport.setEndpoints("issuer", Arrays.asList(new StroemEndpoint("slow", 4399), new StroemEndpoint("fast", 4399)));
+
+    // Both endpoints answer well after the last one has started
+    StroemTestConnections.Client client = new StroemTestConnections.Client(HELLO);
+    transport.openConnection("issuer", StroemClientTcpConnection.STROEM_PORT, client.parser, 0).get(5, TimeUnit.SECONDS);
+    assertTrue(client.opened.get(5, TimeUnit.SECONDS));
+    assertEquals(Protos.TwoWayChannelMessage.MessageType.SERVER_VERSION, client.received.poll(5, TimeUnit.SECONDS).getType());
+    client.parser.closeConnection();
+    assertTrue(client.closed.get(5, TimeUnit.SECONDS));
+  }
+
+  private static byte[] frame(Protos.TwoWayChannelMessage msg) {
+    byte[] body = msg.toByteArray();
+    byte[] frame = new byte[4 + body.length];
+    org.bitcoinj.core.Utils.uint32ToByteArrayBE(body.length, frame, 0);
+    System.arraycopy(body, 0, frame, 4, body.length);
+    return frame;
+  }
+
+  /*
+   * Connects the host "slow" with one transport, and the others with another.
+   */
+  private static class HostTransport implements StroemTransport {
+    private final StroemTransport slow;
+    private final StroemTransport fast;
+
+    private HostTransport(StroemTransport slow, StroemTransport fast) {
+      this.slow = slow;
+      this.fast = fast;
+    }
+
+    @Override
+    public ListenableFuture<?> openConnection(String issuerHost, int port, StreamParser parser, int connectTimeoutMillis) {
+      return (issuerHost.equals("slow") ? slow : fast).openConnection(issuerHost, port, parser, connectTimeoutMillis);
+    }
+  }
+
+  private static class Refusing implements StreamParserFactory {
+    @Override
+    public StreamParser getNewParser(InetAddress inetAddress, int port) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package io.stroem.clientj;
+
+import org.bitcoin.paymentchannel.Protos;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemFaultInjectingTransportTest to provide the following :</p>
+ * <ul>
+ * <li>Latency and jitter delay the opening and the messages, without reordering them</li>
+ * <li>A bandwidth limit delays large messages by their transmission time</li>
+ * <li>Stalled chunks are delayed and counted</li>
+ * <li>Dropped connections are closed on the client side</li>
+ * </ul>
+ */
+public class StroemFaultInjectingTransportTest {
+
+  @Test
+  public void testLatencyKeepsOrder() throws Exception {
+    StroemFaultInjectingTransport transport = new StroemFaultInjectingTransport(new StroemLoopbackTransport(new StroemTestConnections.EchoIssuer()), 1);
+    transport.setLatency(StroemFaultInjectingTransport.uniformLatency(5, 30));
+    StroemTestConnections.Client client = new StroemTestConnections.Client();
+    long start = System.nanoTime();
+    transport.openConnection("issuer", StroemClientTcpConnection.STROEM_PORT, client.parser, 1000);
+    assertTrue(client.opened.get(5, TimeUnit.SECONDS));
+    assertTrue(millisSince(start) >= 10);
+
+    start = System.nanoTime();
+    for (int i = 0; i < 50; i++) {
+      client.parser.write(StroemTestConnections.message(i));
+    }
+    for (int i = 0; i < 50; i++) {
+      Protos.TwoWayChannelMessage echo = client.received.poll(5, TimeUnit.SECONDS);
+      assertNotNull("Missing echo " + i, echo);
+      assertEquals(i, echo.getError().getExplanation().length());
+      if (i == 0) {
+        assertTrue(millisSince(start) >= 10);
+      }
+    }
+    client.parser.closeConnection();
+    assertTrue(client.closed.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testBandwidth() throws Exception {
+    StroemFaultInjectingTransport transport = new StroemFaultInjectingTransport(new StroemLoopbackTransport(new StroemTestConnections.EchoIssuer()), 1);
+    transport.setBandwidth(100000);
+    StroemTestConnections.Client client = new StroemTestConnections.Client();
+    transport.openConnection("issuer", StroemClientTcpConnection.STROEM_PORT, client.parser, 1000);
+    assertTrue(client.opened.get(5, TimeUnit.SECONDS));
+
+    // 10 kB take 100 ms each way
+    long start = System.nanoTime();
+    client.parser.write(StroemTestConnections.message(10000));
+    assertNotNull(client.received.poll(5, TimeUnit.SECONDS));
+    assertTrue(millisSince(start) >= 190);
+  }
+
+  @Test
+  public void testStalls() throws Exception {
+    StroemFaultInjectingTransport transport = new StroemFaultInjectingTransport(new StroemLoopbackTransport(new StroemTestConnections.EchoIssuer()), 1);
+    StroemTestConnections.Client client = new StroemTestConnections.Client();
+    transport.openConnection("issuer", StroemClientTcpConnection.STROEM_PORT, client.parser, 1000);
+    assertTrue(client.opened.get(5, TimeUnit.SECONDS));
+
+    transport.setStalls(1, 100);
+    long start = System.nanoTime();
+    client.parser.write(StroemTestConnections.message(1));
+    assertNotNull(client.received.poll(5, TimeUnit.SECONDS));
+    assertTrue(millisSince(start) >= 190);
+    assertTrue(transport.getStalledChunks() >= 2);
+  }
+
+  @Test
+  public void testDropConnections() throws Exception {
+    StroemFaultInjectingTransport transport = new StroemFaultInjectingTransport(new StroemLoopbackTransport(new StroemTestConnections.EchoIssuer()), 1);
+    transport.setLatency(StroemFaultInjectingTransport.fixedLatency(50));
+    StroemTestConnections.Client client = new StroemTestConnections.Client();
+    transport.openConnection("issuer", StroemClientTcpConnection.STROEM_PORT, client.parser, 1000);
+    assertTrue(client.opened.get(5, TimeUnit.SECONDS));
+
+    // The echo is still in flight when the connection is dropped
+    client.parser.write(StroemTestConnections.message(1));
+    transport.dropConnections();
+    assertTrue(client.closed.get(5, TimeUnit.SECONDS));
+    assertNull(client.received.poll(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, transport.getDroppedConnections());
+  }
+
+  private static long millisSince(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+}
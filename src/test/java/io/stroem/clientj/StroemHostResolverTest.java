@@ -0,0 +1,118 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemHostResolverTest to provide the following :</p>
+ * <ul>
+ * <li>Addresses are looked up once, then answered from the cache</li>
+ * <li>Failed lookups are cached for the negative TTL</li>
+ * <li>An expired address is returned at once, and looked up again in the background</li>
+ * <li>IP addresses are not looked up</li>
+ * </ul>
+ */
+public class StroemHostResolverTest {
+
+  @Test
+  public void testCached() throws Exception {
+    CountingLookup lookup = new CountingLookup();
+    StroemHostResolver resolver = new StroemHostResolver(lookup, 60000, 60000);
+    assertEquals(lookup.address, resolver.resolve("issuer").get(5, TimeUnit.SECONDS));
+    assertEquals(lookup.address, resolver.resolve("issuer").get(5, TimeUnit.SECONDS));
+    assertEquals(1, lookup.count.get());
+    assertEquals(1, resolver.getHitCount());
+  }
+
+  @Test
+  public void testConcurrentLookupsAreShared() throws Exception {
+    CountingLookup lookup = new CountingLookup();
+    lookup.release = new CountDownLatch(1);
+    StroemHostResolver resolver = new StroemHostResolver(lookup, 60000, 60000);
+    ListenableFuture<InetAddress> first = resolver.resolve("issuer");
+    ListenableFuture<InetAddress> second = resolver.resolve("issuer");
+    lookup.release.countDown();
+    assertEquals(lookup.address, first.get(5, TimeUnit.SECONDS));
+    assertEquals(lookup.address, second.get(5, TimeUnit.SECONDS));
+    assertEquals(1, lookup.count.get());
+  }
+
+  @Test
+  public void testNegativeCache() throws Exception {
+    CountingLookup lookup = new CountingLookup();
+    lookup.fail = true;
+    StroemHostResolver resolver = new StroemHostResolver(lookup, 60000, 60000);
+    for (int i = 0; i < 2; i++) {
+      try {
+        resolver.resolve("issuer").get(5, TimeUnit.SECONDS);
+        fail("The lookup should fail");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof UnknownHostException);
+      }
+    }
+    assertEquals(1, lookup.count.get());
+  }
+
+  @Test
+  public void testStaleWhileRefreshing() throws Exception {
+    CountingLookup lookup = new CountingLookup();
+    StroemHostResolver resolver = new StroemHostResolver(lookup, 50, 50);
+    assertEquals(lookup.address, resolver.resolve("issuer").get(5, TimeUnit.SECONDS));
+    Thread.sleep(100);
+
+    // The next lookup fails, the old address is kept
+    lookup.fail = true;
+    ListenableFuture<InetAddress> stale = resolver.resolve("issuer");
+    assertTrue(stale.isDone());
+    assertEquals(lookup.address, stale.get());
+    for (int i = 0; i < 100 && lookup.count.get() < 2; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, lookup.count.get());
+    assertEquals(lookup.address, resolver.getCached("issuer"));
+  }
+
+  @Test
+  public void testIpAddress() throws Exception {
+    CountingLookup lookup = new CountingLookup();
+    StroemHostResolver resolver = new StroemHostResolver(lookup, 60000, 60000);
+    assertEquals(InetAddress.getByName("10.1.2.3"), resolver.resolve("10.1.2.3").get());
+    assertEquals(0, lookup.count.get());
+  }
+
+  private static class CountingLookup implements StroemHostResolver.Lookup {
+    private final InetAddress address;
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile boolean fail = false;
+    private volatile CountDownLatch release;
+
+    private CountingLookup() throws UnknownHostException {
+      address = InetAddress.getByAddress("issuer", new byte[] {10, 0, 0, 1});
+    }
+
+    @Override
+    public InetAddress lookup(String host) throws UnknownHostException {
+      count.incrementAndGet();
+      if (release != null) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new UnknownHostException(host);
+        }
+      }
+      if (fail) {
+        throw new UnknownHostException(host);
+      }
+      return address;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package io.stroem.clientj;
+
+import io.stroem.clientj.domain.StroemIdComplex;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemKeepaliveTest to provide the following :</p>
+ * <ul>
+ * <li>Connections idle longer than the TTL are closed, the others are left open</li>
+ * <li>A quiet connection is pinged once per keepalive interval</li>
+ * <li>A connection where nothing has been received for two keepalive intervals is closed</li>
+ * </ul>
+ */
+public class StroemKeepaliveTest {
+
+  @Test
+  public void testReapIdle() throws Exception {
+    StroemKeepalive keepalive = new StroemKeepalive(300);
+    StroemClientTcpConnection idle = openConnection();
+    keepalive.watch(idle);
+    keepalive.sweep();
+    assertTrue(idle.isOpen());
+
+    Thread.sleep(150);
+    StroemClientTcpConnection used = openConnection();
+    keepalive.watch(used);
+    Thread.sleep(200);
+    keepalive.sweep();
+    assertSame(idle, idle.getConnectionClosedFuture().get(5, TimeUnit.SECONDS));
+    assertTrue(used.isOpen());
+    assertEquals(1, keepalive.getReapCount());
+    assertEquals(1, keepalive.size());
+  }
+
+  @Test
+  public void testPingPacing() throws Exception {
+    CountingProbe probe = new CountingProbe();
+    StroemKeepalive keepalive = new StroemKeepalive(0, 100, probe);
+    StroemClientTcpConnection connection = openConnection();
+    keepalive.watch(connection);
+    keepalive.sweep();
+    assertEquals(0, probe.pings.get());
+
+    Thread.sleep(120);
+    keepalive.sweep();
+    keepalive.sweep();
+    // Once per interval, however often the sweep runs
+    assertEquals(1, probe.pings.get());
+    assertEquals(1, keepalive.getPingCount());
+    assertTrue(connection.isOpen());
+    assertEquals(0, keepalive.getReapCount());
+  }
+
+  @Test
+  public void testCloseAfterTwoSilentIntervals() throws Exception {
+    CountingProbe probe = new CountingProbe();
+    StroemKeepalive keepalive = new StroemKeepalive(0, 100, probe);
+    StroemClientTcpConnection connection = openConnection();
+    keepalive.watch(connection);
+
+    Thread.sleep(120);
+    keepalive.sweep();
+    assertEquals(1, probe.pings.get());
+    assertTrue(connection.isOpen());
+
+    // The issuer does not answer the ping
+    Thread.sleep(100);
+    keepalive.sweep();
+    assertSame(connection, connection.getConnectionClosedFuture().get(5, TimeUnit.SECONDS));
+    assertEquals(1, probe.pings.get());
+    assertEquals(1, keepalive.getReapCount());
+    assertEquals(0, keepalive.size());
+  }
+
+  private static StroemClientTcpConnection openConnection() throws Exception {
+    StroemClientTcpConnection connection = StroemTestConnections.newConnection(new StroemIdComplex("test"));
+    StroemTestConnections.open(connection);
+    return connection;
+  }
+
+  private static class CountingProbe implements StroemKeepalive.Probe {
+    private final AtomicInteger pings = new AtomicInteger();
+
+    @Override
+    public void ping(StroemClientTcpConnection connection) {
+      pings.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package io.stroem.clientj;
+
+import io.stroem.clientj.domain.StroemIdComplex;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemNioClientManagersTest to provide the following :</p>
+ * <ul>
+ * <li>Stopped managers are not handed out</li>
+ * <li>Stopping the shared instance starts a new one on the next use</li>
+ * </ul>
+ */
+public class StroemNioClientManagersTest {
+
+  private static final Sha256Hash SERVER_ID = new StroemIdComplex("test").getRealPaymentChannelServerId();
+
+  @BeforeClass
+  public static void setUpContext() {
+    // The selector threads need one
+    new Context(UnitTestParams.get());
+  }
+
+  @Test
+  public void testStop() throws Exception {
+    StroemNioClientManagers managers = new StroemNioClientManagers(2);
+    assertNotNull(managers.getManager(SERVER_ID));
+    managers.stop();
+    try {
+      managers.getManager(SERVER_ID);
+      fail("The managers are stopped");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+    // Stopping twice does nothing
+    managers.stop();
+  }
+
+  @Test
+  public void testStopShared() throws Exception {
+    StroemNioClientManagers shared = StroemNioClientManagers.getShared();
+    assertSame(shared, StroemNioClientManagers.getShared());
+    shared.stop();
+
+    StroemNioClientManagers restarted = StroemNioClientManagers.getShared();
+    try {
+      assertNotSame(shared, restarted);
+      assertNotNull(restarted.getManager(SERVER_ID));
+    } finally {
+      restarted.stop();
+    }
+  }
+}
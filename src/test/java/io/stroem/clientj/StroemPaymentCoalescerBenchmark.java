@@ -0,0 +1,116 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.protocols.channels.PaymentIncrementAck;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures {@link StroemPaymentCoalescer} at different window sizes (run the main method, it is not a test).</p>
+ *
+ * <p>The channel is simulated: one increment in flight at a time, each one acked after a fixed time (the signature and
+ * the round trip to the issuer). Increments are offered at a fixed rate, and the throughput (acked increments per
+ * second) and the latency (from increment to ack) are reported per window.</p>
+ */
+public class StroemPaymentCoalescerBenchmark {
+
+  private static final long CHANNEL_MILLIS = 20;  // Signature + round trip per channel increment
+  private static final int RATE_PER_SECOND = 500; // Offered increments
+  private static final int INCREMENTS = 2000;
+  private static final long[] WINDOWS_MILLIS = {0, 2, 5, 10, 20, 50};
+
+  public static void main(String[] args) throws Exception {
+    System.out.printf("Channel increment %d ms, %d increments offered at %d/s%n", CHANNEL_MILLIS, INCREMENTS, RATE_PER_SECOND);
+    System.out.printf("%10s %10s %14s %12s %12s %12s%n", "window ms", "batches", "acked/s", "mean ms", "p50 ms", "p99 ms");
+    for (long windowMillis : WINDOWS_MILLIS) {
+      run(windowMillis);
+    }
+    StroemThreading.TIMER.shutdown();
+  }
+
+  private static void run(long windowMillis) throws Exception {
+    final ScheduledExecutorService channelThread = Executors.newSingleThreadScheduledExecutor();
+    final SimulatedChannel channel = new SimulatedChannel(channelThread);
+    StroemPaymentCoalescer coalescer = new StroemPaymentCoalescer(channel, windowMillis, Coin.COIN);
+
+    final long[] latencyNanos = new long[INCREMENTS];
+    final CountDownLatch done = new CountDownLatch(INCREMENTS);
+    long intervalNanos = TimeUnit.SECONDS.toNanos(1) / RATE_PER_SECOND;
+    long start = System.nanoTime();
+    for (int i = 0; i < INCREMENTS; i++) {
+      long due = start + i * intervalNanos;
+      while (System.nanoTime() < due) {
+        Thread.sleep(0, 100000);
+      }
+      final int index = i;
+      final long submitted = System.nanoTime();
+      coalescer.increment(Coin.SATOSHI).addListener(new Runnable() {
+        @Override
+        public void run() {
+          latencyNanos[index] = System.nanoTime() - submitted;
+          done.countDown();
+        }
+      }, channelThread);
+    }
+    done.await();
+    long elapsedNanos = System.nanoTime() - start;
+    channelThread.shutdown();
+
+    Arrays.sort(latencyNanos);
+    long sum = 0;
+    for (long latency : latencyNanos) {
+      sum += latency;
+    }
+    System.out.printf("%10d %10d %14.0f %12.1f %12.1f %12.1f%n", windowMillis, coalescer.getBatchCount(),
+        INCREMENTS / (elapsedNanos / 1e9), sum / (double) INCREMENTS / 1e6,
+        latencyNanos[INCREMENTS / 2] / 1e6, latencyNanos[INCREMENTS * 99 / 100] / 1e6);
+  }
+
+  /*
+   * Like the payment channel: increments are acked one at a time, in order.
+   */
+  private static class SimulatedChannel implements StroemPaymentCoalescer.IncrementSink {
+    private final ScheduledExecutorService channelThread;
+    private final Deque<SettableFuture<PaymentIncrementAck>> queued = new ArrayDeque<SettableFuture<PaymentIncrementAck>>();
+    private boolean inFlight = false;
+
+    private SimulatedChannel(ScheduledExecutorService channelThread) {
+      this.channelThread = channelThread;
+    }
+
+    @Override
+    public synchronized ListenableFuture<PaymentIncrementAck> increment(Coin total) {
+      SettableFuture<PaymentIncrementAck> ack = SettableFuture.create();
+      queued.add(ack);
+      sendNext();
+      return ack;
+    }
+
+    private synchronized void sendNext() {
+      if (inFlight || queued.isEmpty()) {
+        return;
+      }
+      inFlight = true;
+      final SettableFuture<PaymentIncrementAck> ack = queued.poll();
+      channelThread.schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (SimulatedChannel.this) {
+            inFlight = false;
+          }
+          ack.set(new PaymentIncrementAck(Coin.SATOSHI, ByteString.EMPTY));
+          sendNext();
+        }
+      }, CHANNEL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+}
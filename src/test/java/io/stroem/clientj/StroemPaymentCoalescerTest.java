@@ -0,0 +1,136 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.protocols.channels.PaymentIncrementAck;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemPaymentCoalescerTest to provide the following :</p>
+ * <ul>
+ * <li>Increments within the window are sent as one, and every caller gets the ack</li>
+ * <li>A batch that reaches the max value is sent at once</li>
+ * <li>A failed batch fails every caller</li>
+ * <li>A closed window is sent on the executor, and a timer that fired for a batch already sent does not send the
+ * next one</li>
+ * </ul>
+ */
+public class StroemPaymentCoalescerTest {
+
+  private final List<Coin> sent = new ArrayList<Coin>();
+  private final List<SettableFuture<PaymentIncrementAck>> acks = new ArrayList<SettableFuture<PaymentIncrementAck>>();
+
+  private final StroemPaymentCoalescer.IncrementSink sink = new StroemPaymentCoalescer.IncrementSink() {
+    @Override
+    public synchronized ListenableFuture<PaymentIncrementAck> increment(Coin total) {
+      sent.add(total);
+      SettableFuture<PaymentIncrementAck> ack = SettableFuture.create();
+      acks.add(ack);
+      return ack;
+    }
+  };
+
+  @Test
+  public void testWindow() throws Exception {
+    StroemPaymentCoalescer coalescer = new StroemPaymentCoalescer(sink, 50, Coin.COIN);
+    ListenableFuture<PaymentIncrementAck> first = coalescer.increment(Coin.valueOf(10));
+    ListenableFuture<PaymentIncrementAck> second = coalescer.increment(Coin.valueOf(20));
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (sizeOfSent() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    synchronized (sink) {
+      assertEquals(1, sent.size());
+      assertEquals(Coin.valueOf(30), sent.get(0));
+      acks.get(0).set(new PaymentIncrementAck(Coin.valueOf(30), ByteString.EMPTY));
+    }
+    assertEquals(Coin.valueOf(30), first.get(1, TimeUnit.SECONDS).getValue());
+    assertEquals(Coin.valueOf(30), second.get(1, TimeUnit.SECONDS).getValue());
+    assertEquals(2, coalescer.getIncrementCount());
+    assertEquals(1, coalescer.getBatchCount());
+  }
+
+  @Test
+  public void testMaxValue() throws Exception {
+    StroemPaymentCoalescer coalescer = new StroemPaymentCoalescer(sink, 60000, Coin.valueOf(100));
+    coalescer.increment(Coin.valueOf(60));
+    coalescer.increment(Coin.valueOf(40)); // Reaches the max
+    coalescer.increment(Coin.valueOf(70));
+    coalescer.increment(Coin.valueOf(50)); // Does not fit with the 70
+    coalescer.increment(Coin.valueOf(500)); // Larger than the max, the 50 is sent, then the 500 alone
+    coalescer.flush(); // Nothing left
+    synchronized (sink) {
+      assertEquals(4, sent.size());
+      assertEquals(Coin.valueOf(100), sent.get(0));
+      assertEquals(Coin.valueOf(70), sent.get(1));
+      assertEquals(Coin.valueOf(50), sent.get(2));
+      assertEquals(Coin.valueOf(500), sent.get(3));
+    }
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    StroemPaymentCoalescer coalescer = new StroemPaymentCoalescer(sink, 60000, Coin.COIN);
+    ListenableFuture<PaymentIncrementAck> first = coalescer.increment(Coin.valueOf(10));
+    ListenableFuture<PaymentIncrementAck> second = coalescer.increment(Coin.valueOf(20));
+    coalescer.flush();
+    synchronized (sink) {
+      acks.get(0).setException(new IllegalStateException("Channel closed"));
+    }
+    assertTrue(first.isDone() && second.isDone());
+    try {
+      second.get();
+      fail("The batch failed");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void testStaleWindowTimer() throws Exception {
+    final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+    StroemPaymentCoalescer coalescer = new StroemPaymentCoalescer(sink, 10, Coin.COIN);
+    coalescer.setExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        tasks.add(command);
+      }
+    });
+    coalescer.increment(Coin.valueOf(10));
+    // The window closed, but the send waits for the executor
+    Runnable closed = tasks.poll(5, TimeUnit.SECONDS);
+    assertNotNull(closed);
+    assertEquals(0, sizeOfSent());
+
+    coalescer.flush();
+    ListenableFuture<PaymentIncrementAck> next = coalescer.increment(Coin.valueOf(20));
+    closed.run();
+    assertEquals("The next batch was sent early", 1, sizeOfSent());
+    assertFalse(next.isDone());
+
+    tasks.poll(5, TimeUnit.SECONDS).run();
+    synchronized (sink) {
+      assertEquals(2, sent.size());
+      assertEquals(Coin.valueOf(20), sent.get(1));
+    }
+  }
+
+  private int sizeOfSent() {
+    synchronized (sink) {
+      return sent.size();
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
+import org.bitcoin.paymentchannel.Protos;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.protocols.channels.IPaymentChannelClient;
+import org.bitcoinj.protocols.channels.PaymentIncrementAck;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemPaymentQueueTest to provide the following :</p>
+ * <ul>
+ * <li>Only one increment is sent at a time, and the acks are matched to the callers in order</li>
+ * <li>A full window blocks the caller, or fails the payment at once</li>
+ * <li>failAll fails the sent and the queued payments, and later payments</li>
+ * </ul>
+ */
+public class StroemPaymentQueueTest {
+
+  @Test
+  public void testAcksInOrder() throws Exception {
+    FakeChannelClient client = new FakeChannelClient();
+    StroemPaymentQueue queue = new StroemPaymentQueue(client, null, 10);
+    List<ListenableFuture<PaymentIncrementAck>> futures = new ArrayList<ListenableFuture<PaymentIncrementAck>>();
+    for (int i = 1; i <= 5; i++) {
+      futures.add(queue.submit(Coin.valueOf(i), ByteString.EMPTY, false));
+    }
+    assertEquals(5, queue.size());
+
+    for (int i = 1; i <= 5; i++) {
+      Increment increment = client.sent.poll(5, TimeUnit.SECONDS);
+      assertEquals(Coin.valueOf(i), increment.amount);
+      // The next increment is only sent after this one is acked
+      assertTrue(client.sent.isEmpty());
+      increment.ack.set(new PaymentIncrementAck(increment.amount, ByteString.EMPTY));
+    }
+    for (int i = 1; i <= 5; i++) {
+      assertEquals(Coin.valueOf(i), futures.get(i - 1).get(5, TimeUnit.SECONDS).getValue());
+    }
+    assertTrue(queue.isIdle());
+  }
+
+  @Test
+  public void testWindow() throws Exception {
+    FakeChannelClient client = new FakeChannelClient();
+    final StroemPaymentQueue queue = new StroemPaymentQueue(client, null, 2);
+    queue.submit(Coin.valueOf(1), ByteString.EMPTY, false);
+    queue.submit(Coin.valueOf(2), ByteString.EMPTY, false);
+
+    // Not waiting for room
+    try {
+      queue.submit(Coin.valueOf(3), ByteString.EMPTY, false).get();
+      fail("The window is full");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+
+    // Waiting for room
+    final CountDownLatch submitted = new CountDownLatch(1);
+    Thread caller = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          queue.submit(Coin.valueOf(3), ByteString.EMPTY, true);
+          submitted.countDown();
+        } catch (InterruptedException e) {
+          // The test fails on the latch
+        }
+      }
+    });
+    caller.start();
+    assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+
+    Increment first = client.sent.poll(5, TimeUnit.SECONDS);
+    first.ack.set(new PaymentIncrementAck(first.amount, ByteString.EMPTY));
+    assertTrue(submitted.await(5, TimeUnit.SECONDS));
+    assertEquals(2, queue.size());
+  }
+
+  @Test
+  public void testFailAll() throws Exception {
+    FakeChannelClient client = new FakeChannelClient();
+    StroemPaymentQueue queue = new StroemPaymentQueue(client, null, 10);
+    ListenableFuture<PaymentIncrementAck> sent = queue.submit(Coin.valueOf(1), ByteString.EMPTY, false);
+    ListenableFuture<PaymentIncrementAck> queued = queue.submit(Coin.valueOf(2), ByteString.EMPTY, false);
+    assertNotNull(client.sent.poll(5, TimeUnit.SECONDS));
+
+    IOException cause = new IOException("The TCP socket died");
+    queue.failAll(cause);
+    assertFailure(sent, IOException.class);
+    assertFailure(queued, StroemPaymentNotSentException.class);
+    assertFailure(queue.submit(Coin.valueOf(3), ByteString.EMPTY, true), StroemPaymentNotSentException.class);
+    assertTrue(queue.isIdle());
+    assertTrue(client.sent.isEmpty());
+  }
+
+  private static void assertFailure(ListenableFuture<?> future, Class<? extends Throwable> expected) throws Exception {
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("The payment should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause().toString(), expected.isInstance(e.getCause()));
+    }
+  }
+
+  private static class Increment {
+    private final Coin amount;
+    private final SettableFuture<PaymentIncrementAck> ack = SettableFuture.create();
+
+    private Increment(Coin amount) {
+      this.amount = amount;
+    }
+  }
+
+  /*
+   * Records the increments, the test acks them.
+   */
+  private static class FakeChannelClient implements IPaymentChannelClient {
+    private final BlockingQueue<Increment> sent = new LinkedBlockingQueue<Increment>();
+
+    @Override
+    public ListenableFuture<PaymentIncrementAck> incrementPayment(Coin size, ByteString info, KeyParameter userKey) {
+      Increment increment = new Increment(size);
+      sent.add(increment);
+      return increment.ack;
+    }
+
+    @Override
+    public void receiveMessage(Protos.TwoWayChannelMessage msg) {
+    }
+
+    @Override
+    public void connectionClosed() {
+    }
+
+    @Override
+    public void settle() {
+    }
+
+    @Override
+    public void connectionOpen() {
+    }
+  }
+}
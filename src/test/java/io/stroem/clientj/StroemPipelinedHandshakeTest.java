@@ -0,0 +1,172 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.stroem.clientj.domain.StroemIdComplex;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.StreamParser;
+import org.bitcoinj.net.StreamParserFactory;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemPipelinedHandshakeTest to provide the following :</p>
+ * <ul>
+ * <li>A host that failed a pipelined setup gets the sequential handshake until the entry expires</li>
+ * <li>An issuer that closes after the early CLIENT_VERSION, without answering it, gets a sequential retry</li>
+ * <li>A setup deadline on our side does not stop the pipelining to the host</li>
+ * </ul>
+ */
+public class StroemPipelinedHandshakeTest {
+
+  private static final String ISSUER = "issuer";
+
+  @Before
+  public void setUp() {
+    StroemPipelinedHandshake.setEnabled(true);
+  }
+
+  @After
+  public void tearDown() {
+    StroemPipelinedHandshake.setEnabled(false);
+    StroemPipelinedHandshake.setSequentialMillis(StroemPipelinedHandshake.DEFAULT_SEQUENTIAL_MILLIS);
+    StroemPipelinedHandshake.clearAll();
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    StroemPipelinedHandshake.setSequentialMillis(50);
+    StroemPipelinedHandshake.failed(ISSUER);
+    assertFalse(StroemPipelinedHandshake.isEnabledFor(ISSUER));
+    assertTrue(StroemPipelinedHandshake.isEnabledFor("other"));
+    Thread.sleep(100);
+    assertTrue(StroemPipelinedHandshake.isEnabledFor(ISSUER));
+
+    StroemPipelinedHandshake.setEnabled(false);
+    assertFalse(StroemPipelinedHandshake.isEnabledFor(ISSUER));
+  }
+
+  @Test
+  public void testRejectedThenSequential() throws Exception {
+    // Closes when it gets the early CLIENT_VERSION, and a sequential setup when nothing more comes
+    SilentIssuer issuer = new SilentIssuer(2, 200);
+    try {
+      connect(issuer, new StroemConnectionTimeouts(1000, 5000, 5000, 5000)).get(5, TimeUnit.SECONDS);
+      fail("The issuer never answers");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof StroemConnectException);
+    }
+    assertEquals(2, (int) issuer.framesPerConnection.poll(5, TimeUnit.SECONDS));
+    // The retry only sent the Stroem version
+    assertEquals(1, (int) issuer.framesPerConnection.poll(5, TimeUnit.SECONDS));
+    assertNull(issuer.framesPerConnection.poll(200, TimeUnit.MILLISECONDS));
+    assertFalse(StroemPipelinedHandshake.isEnabledFor(ISSUER));
+  }
+
+  @Test
+  public void testDeadlineNotCounted() throws Exception {
+    SilentIssuer issuer = new SilentIssuer(Integer.MAX_VALUE, 60000);
+    try {
+      connect(issuer, new StroemConnectionTimeouts(1000, 100, 5000, 5000)).get(5, TimeUnit.SECONDS);
+      fail("The handshake deadline should pass");
+    } catch (ExecutionException e) {
+      assertEquals(StroemConnectTimings.Phase.HANDSHAKE, ((StroemConnectException) e.getCause()).getPhase());
+    }
+    assertEquals(2, (int) issuer.framesPerConnection.poll(5, TimeUnit.SECONDS));
+    assertNull(issuer.framesPerConnection.poll(200, TimeUnit.MILLISECONDS));
+    assertTrue(StroemPipelinedHandshake.isEnabledFor(ISSUER));
+  }
+
+  private static ListenableFuture<StroemClientTcpConnection> connect(SilentIssuer issuer, StroemConnectionTimeouts timeouts) {
+    Wallet wallet = new Wallet(UnitTestParams.get());
+    return StroemClientTcpConnection.connectAsync(ISSUER, timeouts, 3600, wallet, new ECKey(), null, Coin.COIN,
+        new StroemIdComplex("test"), new StroemLoopbackTransport(issuer));
+  }
+
+  /*
+   * Stand-in issuer that never answers. It closes the connection after a number of frames, or when nothing has come
+   * for a while, and keeps how many frames each connection got.
+   */
+  private static class SilentIssuer implements StreamParserFactory {
+    private final int closeAfterFrames;
+    private final long quietMillis;
+    private final BlockingQueue<Integer> framesPerConnection = new LinkedBlockingQueue<Integer>();
+
+    private SilentIssuer(int closeAfterFrames, long quietMillis) {
+      this.closeAfterFrames = closeAfterFrames;
+      this.quietMillis = quietMillis;
+    }
+
+    @Override
+    public StreamParser getNewParser(InetAddress inetAddress, int port) {
+      return new StreamParser() {
+        private MessageWriteTarget target;
+        private int frames = 0;
+        private volatile long lastFrameNanos = System.nanoTime();
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+          target = writeTarget;
+        }
+
+        @Override
+        public void connectionOpened() {
+          closeWhenQuiet();
+        }
+
+        private void closeWhenQuiet() {
+          StroemThreading.TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+              if (System.nanoTime() - lastFrameNanos >= TimeUnit.MILLISECONDS.toNanos(quietMillis)) {
+                target.closeConnection();
+              } else {
+                closeWhenQuiet();
+              }
+            }
+          }, quietMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+          int start = buff.position();
+          while (buff.remaining() >= 4) {
+            int length = buff.getInt(buff.position());
+            if (buff.remaining() < 4 + length) {
+              break;
+            }
+            buff.position(buff.position() + 4 + length);
+            lastFrameNanos = System.nanoTime();
+            if (++frames >= closeAfterFrames) {
+              target.closeConnection();
+            }
+          }
+          return buff.position() - start;
+        }
+
+        @Override
+        public void connectionClosed() {
+          framesPerConnection.add(frames);
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+          return Short.MAX_VALUE;
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package io.stroem.clientj;
+
+import io.stroem.clientj.domain.StroemEntity;
+import io.stroem.clientj.domain.StroemPromissoryNote;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemPromissoryNoteQueueTest to provide the following :</p>
+ * <ul>
+ * <li>Notes are delivered on the executor, in order</li>
+ * <li>A stalled listener never blocks the caller, notes over the capacity are dropped</li>
+ * </ul>
+ */
+public class StroemPromissoryNoteQueueTest {
+
+  @Test
+  public void testInOrder() throws Exception {
+    final List<Long> received = Collections.synchronizedList(new ArrayList<Long>());
+    final CountDownLatch done = new CountDownLatch(100);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      StroemPromissoryNoteQueue queue = new StroemPromissoryNoteQueue(null, new StroemPromissoryNoteListener() {
+        @Override
+        public void promissoryNoteReceived(StroemClientTcpConnection connection, StroemPromissoryNote note) {
+          received.add(note.getId());
+          done.countDown();
+        }
+      }, executor, 1000);
+      for (int i = 0; i < 100; i++) {
+        assertTrue(queue.offer(note(i)));
+      }
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+      for (int i = 0; i < 100; i++) {
+        assertEquals(i, (long) received.get(i));
+      }
+      assertEquals(100, queue.getDeliveredCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testStalledListener() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      StroemPromissoryNoteQueue queue = new StroemPromissoryNoteQueue(null, new StroemPromissoryNoteListener() {
+        @Override
+        public void promissoryNoteReceived(StroemClientTcpConnection connection, StroemPromissoryNote note) {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }, executor, 10);
+      assertTrue(queue.offer(note(0)));
+      assertTrue(started.await(5, TimeUnit.SECONDS));
+      // The listener holds note 0, 10 more fit in the queue
+      for (int i = 1; i <= 10; i++) {
+        assertTrue(queue.offer(note(i)));
+      }
+      assertFalse(queue.offer(note(11)));
+      assertEquals(1, queue.getDroppedCount());
+      assertEquals(10, queue.size());
+      release.countDown();
+    } finally {
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+  }
+
+  private static StroemPromissoryNote note(long id) {
+    return new StroemPromissoryNote(null, new Date(), id, 100, "SEK", 60000,
+        Collections.<StroemEntity>emptyList(), Collections.<Long>emptyList());
+  }
+}
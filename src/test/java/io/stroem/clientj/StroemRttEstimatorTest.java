@@ -0,0 +1,55 @@
+package io.stroem.clientj;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemRttEstimatorTest to provide the following :</p>
+ * <ul>
+ * <li>The default timeout is used until there are samples</li>
+ * <li>The timeout follows the smoothed RTT plus variance, within the limits</li>
+ * <li>Estimators are shared per host</li>
+ * </ul>
+ */
+public class StroemRttEstimatorTest {
+
+  @Test
+  public void testDefaultWithoutSamples() throws Exception {
+    StroemRttEstimator estimator = new StroemRttEstimator();
+    assertEquals(15000, estimator.getTimeoutMillis(15000));
+  }
+
+  @Test
+  public void testTimeoutFromSamples() throws Exception {
+    StroemRttEstimator estimator = new StroemRttEstimator();
+    estimator.addSample(2000);
+    // 2000 + 4 * 1000
+    assertEquals(6000, estimator.getTimeoutMillis(15000));
+
+    for (int i = 0; i < 100; i++) {
+      estimator.addSample(2000);
+    }
+    // The variance goes towards 0
+    assertEquals(2000, estimator.getSmoothedRttMillis());
+    assertTrue(estimator.getTimeoutMillis(15000) < 2100);
+  }
+
+  @Test
+  public void testLimits() throws Exception {
+    StroemRttEstimator fast = new StroemRttEstimator();
+    fast.addSample(3);
+    assertEquals(StroemRttEstimator.MIN_TIMEOUT_MILLIS, fast.getTimeoutMillis(15000));
+
+    StroemRttEstimator slow = new StroemRttEstimator();
+    slow.addSample(10 * 60 * 1000);
+    assertEquals(StroemRttEstimator.MAX_TIMEOUT_MILLIS, slow.getTimeoutMillis(15000));
+  }
+
+  @Test
+  public void testSharedPerHost() throws Exception {
+    StroemRttEstimator.clearAll();
+    assertSame(StroemRttEstimator.forHost("issuer.example.com"), StroemRttEstimator.forHost("issuer.example.com"));
+    assertNotSame(StroemRttEstimator.forHost("issuer.example.com"), StroemRttEstimator.forHost("other.example.com"));
+  }
+}
@@ -0,0 +1,215 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import io.stroem.clientj.domain.StroemPaymentChannel;
+import org.bitcoinj.core.Coin;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemSettlementEngineTest to provide the following :</p>
+ * <ul>
+ * <li>No more channels are settled at the same time than allowed, in all and per issuer</li>
+ * <li>Every channel gets an outcome, failures included</li>
+ * <li>Channels that take too long are timed out and aborted, and the next ones started, off the timer thread</li>
+ * <li>Channels not started by the deadline are skipped</li>
+ * <li>A settlement that is slow to start does not hold up the completion of the others, which run on the executor</li>
+ * </ul>
+ */
+public class StroemSettlementEngineTest {
+
+  @Test
+  public void testConcurrencyLimits() throws Exception {
+    SlowSettler settler = new SlowSettler(20);
+    StroemSettlementEngine engine = new StroemSettlementEngine(settler);
+    engine.setMaxConcurrent(4);
+    engine.setMaxConcurrentPerIssuer(2);
+
+    List<StroemPaymentChannel> channels = new ArrayList<StroemPaymentChannel>();
+    for (int i = 0; i < 30; i++) {
+      channels.add(channel(i, "issuer" + (i % 3)));
+    }
+    StroemSettlementEngine.Report report = engine.settle(channels).get(10, TimeUnit.SECONDS);
+    assertTrue(report.toString(), report.isComplete());
+    assertEquals(30, report.getResults().size());
+    assertEquals(channels.get(0), report.getResults().get(0).getChannel());
+    assertTrue(settler.maxRunning.get() <= 4);
+    assertTrue(settler.maxRunning.get() >= 2);
+    for (AtomicInteger issuerMax : settler.maxRunningPerIssuer.values()) {
+      assertTrue(issuerMax.get() <= 2);
+    }
+  }
+
+  @Test
+  public void testFailures() throws Exception {
+    SlowSettler settler = new SlowSettler(0);
+    settler.failing = "issuer1";
+    StroemSettlementEngine engine = new StroemSettlementEngine(settler);
+
+    List<StroemPaymentChannel> channels = new ArrayList<StroemPaymentChannel>();
+    for (int i = 0; i < 4; i++) {
+      channels.add(channel(i, "issuer" + (i % 2)));
+    }
+    StroemSettlementEngine.Report report = engine.settle(channels).get(10, TimeUnit.SECONDS);
+    assertEquals(2, report.getCount(StroemSettlementEngine.Outcome.SETTLED));
+    assertEquals(2, report.getCount(StroemSettlementEngine.Outcome.FAILED));
+    assertTrue(report.getResults().get(1).getFailure() instanceof IOException);
+  }
+
+  @Test
+  public void testTimeoutAndDeadline() throws Exception {
+    SlowSettler settler = new SlowSettler(60000);
+    StroemSettlementEngine engine = new StroemSettlementEngine(settler);
+    engine.setMaxConcurrent(2);
+    engine.setChannelTimeoutMillis(50);
+    engine.setDeadlineMillis(180);
+
+    List<StroemPaymentChannel> channels = new ArrayList<StroemPaymentChannel>();
+    for (int i = 0; i < 20; i++) {
+      channels.add(channel(i, "issuer" + i));
+    }
+    StroemSettlementEngine.Report report = engine.settle(channels).get(10, TimeUnit.SECONDS);
+    assertEquals(0, report.getCount(StroemSettlementEngine.Outcome.SETTLED));
+    int timedOut = report.getCount(StroemSettlementEngine.Outcome.TIMED_OUT);
+    assertTrue("Timed out: " + timedOut, timedOut >= 4 && timedOut < 20);
+    assertEquals(20 - timedOut, report.getCount(StroemSettlementEngine.Outcome.SKIPPED));
+    assertEquals(timedOut, settler.cancelled.get());
+    assertFalse(settler.onTimer);
+  }
+
+  @Test
+  public void testSlowStart() throws Exception {
+    // The second settlement starts only once the first one is done and has started the third
+    final CountDownLatch thirdStarted = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    StroemSettlementEngine engine = new StroemSettlementEngine(new StroemSettlementEngine.Settler() {
+      @Override
+      public ListenableFuture<Void> settle(StroemPaymentChannel channel) {
+        switch (calls.incrementAndGet()) {
+          case 1:
+            final SettableFuture<Void> future = SettableFuture.create();
+            StroemThreading.TIMER.schedule(new Runnable() {
+              @Override
+              public void run() {
+                future.set(null);
+              }
+            }, 10, TimeUnit.MILLISECONDS);
+            return future;
+          case 2:
+            try {
+              if (!thirdStarted.await(5, TimeUnit.SECONDS)) {
+                return Futures.immediateFailedFuture(new IOException("Held up"));
+              }
+            } catch (InterruptedException e) {
+              return Futures.immediateFailedFuture(e);
+            }
+            return Futures.immediateFuture(null);
+          default:
+            thirdStarted.countDown();
+            return Futures.immediateFuture(null);
+        }
+      }
+    });
+    final AtomicInteger executed = new AtomicInteger();
+    engine.setExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        executed.incrementAndGet();
+        command.run();
+      }
+    });
+    engine.setMaxConcurrent(2);
+
+    List<StroemPaymentChannel> channels = new ArrayList<StroemPaymentChannel>();
+    for (int i = 0; i < 3; i++) {
+      channels.add(channel(i, "issuer" + i));
+    }
+    StroemSettlementEngine.Report report = engine.settle(channels).get(10, TimeUnit.SECONDS);
+    assertTrue(report.toString(), report.isComplete());
+    assertEquals(3, executed.get());
+  }
+
+  private static StroemPaymentChannel channel(int i, String issuer) {
+    return new StroemPaymentChannel(null, "hash" + i, "stroem://" + issuer + "/", issuer, Coin.COIN, 3600,
+        new byte[33], null, null, null, null, null);
+  }
+
+  /*
+   * Settles after a delay, and keeps track of how many settlements run at the same time.
+   */
+  private static class SlowSettler implements StroemSettlementEngine.Settler {
+    private final long delayMillis;
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final Map<String, AtomicInteger> runningPerIssuer = new HashMap<String, AtomicInteger>();
+    private final Map<String, AtomicInteger> maxRunningPerIssuer = new HashMap<String, AtomicInteger>();
+    private final AtomicInteger cancelled = new AtomicInteger();
+    private volatile String failing;
+    // Set if a settlement was started or cancelled on the timer thread
+    private volatile boolean onTimer = false;
+
+    private SlowSettler(long delayMillis) {
+      this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public ListenableFuture<Void> settle(StroemPaymentChannel channel) {
+      checkThread();
+      final String issuer = channel.getIssuerHost();
+      if (issuer.equals(failing)) {
+        return Futures.immediateFailedFuture(new IOException("Refused"));
+      }
+      final AtomicInteger issuerRunning;
+      synchronized (this) {
+        if (!runningPerIssuer.containsKey(issuer)) {
+          runningPerIssuer.put(issuer, new AtomicInteger());
+          maxRunningPerIssuer.put(issuer, new AtomicInteger());
+        }
+        issuerRunning = runningPerIssuer.get(issuer);
+        maxRunningPerIssuer.get(issuer).set(Math.max(maxRunningPerIssuer.get(issuer).get(), issuerRunning.incrementAndGet()));
+        maxRunning.set(Math.max(maxRunning.get(), running.incrementAndGet()));
+      }
+      final SettableFuture<Void> future = SettableFuture.create();
+      StroemThreading.TIMER.schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (SlowSettler.this) {
+            issuerRunning.decrementAndGet();
+            running.decrementAndGet();
+          }
+          future.set(null);
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+      future.addListener(new Runnable() {
+        @Override
+        public void run() {
+          if (future.isCancelled()) {
+            checkThread();
+            cancelled.incrementAndGet();
+          }
+        }
+      }, MoreExecutors.sameThreadExecutor());
+      return future;
+    }
+
+    private void checkThread() {
+      if (Thread.currentThread().getName().equals("Stroem timer")) {
+        onTimer = true;
+      }
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package io.stroem.clientj;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemStateMachineTest to provide the following :</p>
+ * <ul>
+ * <li>Only the allowed transitions are made</li>
+ * <li>A transition from a step that is no longer current fails</li>
+ * <li>Listeners are told about every transition</li>
+ * </ul>
+ */
+public class StroemStateMachineTest {
+
+  @Test
+  public void testTransitions() throws Exception {
+    StroemStateMachine stateMachine = new StroemStateMachine(null);
+    assertEquals(StroemStep.START, stateMachine.get());
+
+    assertFalse(stateMachine.transition(StroemStep.START, StroemStep.CONNECTION_OPEN));
+    assertTrue(stateMachine.transition(StroemStep.START, StroemStep.WAITING_FOR_SERVER_STROM_VERSION));
+    // Lost the race, the step is no longer START
+    assertFalse(stateMachine.transition(StroemStep.START, StroemStep.WAITING_FOR_SERVER_STROM_VERSION));
+
+    assertTrue(stateMachine.advance(StroemStep.WAITING_FOR_PAYMENT_CHANNEL_INITIATE));
+    assertTrue(stateMachine.advance(StroemStep.CONNECTION_OPEN));
+    assertTrue(stateMachine.advance(StroemStep.WAITING_FOR_PAYMENT_ACK));
+    assertTrue(stateMachine.advance(StroemStep.WAITING_FOR_PAYMENT_ACK));
+    assertTrue(stateMachine.advance(StroemStep.PAYMENT_DONE));
+    assertFalse(stateMachine.advance(StroemStep.START));
+    assertEquals(StroemStep.PAYMENT_DONE, stateMachine.get());
+
+    assertTrue(stateMachine.advance(StroemStep.CONNECTION_CLOSED));
+    assertFalse(stateMachine.advance(StroemStep.WAITING_FOR_PAYMENT_ACK));
+    assertEquals(StroemStep.CONNECTION_CLOSED, stateMachine.get());
+  }
+
+  @Test
+  public void testListener() throws Exception {
+    StroemStateMachine stateMachine = new StroemStateMachine(null);
+    final List<String> changes = new ArrayList<String>();
+    stateMachine.addListener(new StroemStepListener() {
+      @Override
+      public void stepChanged(StroemClientTcpConnection connection, StroemStep from, StroemStep to) {
+        changes.add(from + "->" + to);
+      }
+    });
+    stateMachine.advance(StroemStep.WAITING_FOR_SERVER_STROM_VERSION);
+    stateMachine.advance(StroemStep.WAITING_FOR_SERVER_STROM_VERSION);
+    stateMachine.transition(StroemStep.START, StroemStep.WAITING_FOR_SERVER_STROM_VERSION);
+    stateMachine.advance(StroemStep.CONNECTION_CLOSED);
+
+    assertEquals(2, changes.size());
+    assertEquals("START->WAITING_FOR_SERVER_STROM_VERSION", changes.get(0));
+    assertEquals("WAITING_FOR_SERVER_STROM_VERSION->CONNECTION_CLOSED", changes.get(1));
+  }
+}
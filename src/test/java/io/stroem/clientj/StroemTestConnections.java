@@ -0,0 +1,186 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.SettableFuture;
+import io.stroem.clientj.domain.StroemId;
+import org.bitcoin.paymentchannel.Protos;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.ProtobufParser;
+import org.bitcoinj.net.StreamParser;
+import org.bitcoinj.net.StreamParserFactory;
+import org.bitcoinj.params.UnitTestParams;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Test fixture shared by the transport and connection tests: a client end, stand-in issuers, and Stroem connections
+ * that are open without a payment channel server.</p>
+ */
+class StroemTestConnections {
+
+  private static final StroemConnectionTimeouts NO_DEADLINES = new StroemConnectionTimeouts(1000, 0, 0, 0);
+
+  private StroemTestConnections() {
+  }
+
+  /**
+   * @param size The length of the explanation, so that the size can be checked on the other end
+   *
+   * @return An error message
+   */
+  static Protos.TwoWayChannelMessage message(int size) {
+    char[] explanation = new char[size];
+    Arrays.fill(explanation, 'x');
+    return Protos.TwoWayChannelMessage.newBuilder()
+        .setType(Protos.TwoWayChannelMessage.MessageType.ERROR)
+        .setError(Protos.Error.newBuilder().setExplanation(new String(explanation)))
+        .build();
+  }
+
+  static Protos.TwoWayChannelMessage message(Protos.TwoWayChannelMessage.MessageType type) {
+    return Protos.TwoWayChannelMessage.newBuilder().setType(type).build();
+  }
+
+  /**
+   * <p>The client end of a connection, which queues what it receives.</p>
+   */
+  static class Client {
+    final SettableFuture<Boolean> opened = SettableFuture.create();
+    final SettableFuture<Boolean> closed = SettableFuture.create();
+    final BlockingQueue<Protos.TwoWayChannelMessage> received = new LinkedBlockingQueue<Protos.TwoWayChannelMessage>();
+    final ProtobufParser<Protos.TwoWayChannelMessage> parser;
+
+    Client(Protos.TwoWayChannelMessage... sendOnOpen) {
+      this(Arrays.asList(sendOnOpen));
+    }
+
+    /**
+     * @param sendOnOpen The messages to send as soon as the connection opens, like the Stroem connection sends its hello
+     */
+    Client(final List<Protos.TwoWayChannelMessage> sendOnOpen) {
+      parser = new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+        @Override
+        public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+          received.add(msg);
+        }
+
+        @Override
+        public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+          for (Protos.TwoWayChannelMessage msg : sendOnOpen) {
+            handler.write(msg);
+          }
+          opened.set(true);
+        }
+
+        @Override
+        public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+          closed.set(true);
+        }
+      }, Protos.TwoWayChannelMessage.getDefaultInstance(), Short.MAX_VALUE, 0);
+    }
+  }
+
+  /**
+   * <p>Stand-in issuer that answers the client hello, and sends every other message back.</p>
+   */
+  static class EchoIssuer implements StreamParserFactory {
+    final AtomicInteger hellos = new AtomicInteger();
+    final AtomicInteger closed = new AtomicInteger();
+
+    @Override
+    public StreamParser getNewParser(InetAddress inetAddress, int port) {
+      return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+        @Override
+        public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+          if (msg.getType() == Protos.TwoWayChannelMessage.MessageType.CLIENT_VERSION) {
+            hellos.incrementAndGet();
+            handler.write(message(Protos.TwoWayChannelMessage.MessageType.SERVER_VERSION));
+          } else {
+            handler.write(msg);
+          }
+        }
+
+        @Override
+        public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+        }
+
+        @Override
+        public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+          closed.incrementAndGet();
+        }
+      }, Protos.TwoWayChannelMessage.getDefaultInstance(), Short.MAX_VALUE, 0);
+    }
+  }
+
+  /**
+   * @return A connection to an issuer that never answers, still opening the channel
+   */
+  static StroemClientTcpConnection newConnection(StroemId stroemId) throws Exception {
+    return newConnection("issuer", NO_DEADLINES, stroemId);
+  }
+
+  /**
+   * @return A connection to an issuer that never answers, still opening the channel
+   */
+  static StroemClientTcpConnection newConnection(String issuerHost, StroemConnectionTimeouts timeouts, StroemId stroemId)
+      throws Exception {
+    return new StroemClientTcpConnection(issuerHost, timeouts, 3600, new Wallet(UnitTestParams.get()), new ECKey(),
+        null, Coin.COIN, stroemId, new StroemLoopbackTransport(new SilentIssuer()));
+  }
+
+  /**
+   * Opens the channel of a new connection, as if the issuer had opened it.
+   */
+  static void open(StroemClientTcpConnection connection) throws Exception {
+    for (int i = 0; i < 500 && connection.getStroemStep() == StroemStep.START; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(StroemStep.WAITING_FOR_SERVER_STROM_VERSION, connection.getStroemStep());
+    connection.channelOpenedForTesting();
+    assertTrue(connection.isOpen());
+  }
+
+  /**
+   * <p>Stand-in issuer that reads everything and never answers.</p>
+   */
+  static class SilentIssuer implements StreamParserFactory {
+    @Override
+    public StreamParser getNewParser(InetAddress inetAddress, int port) {
+      return new StreamParser() {
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+          int count = buff.remaining();
+          buff.position(buff.limit());
+          return count;
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+          return Short.MAX_VALUE;
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package io.stroem.clientj;
+
+import org.bitcoin.paymentchannel.Protos;
+import org.bitcoinj.net.StreamParser;
+import org.bitcoinj.net.StreamParserFactory;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemTlsTransportTest to provide the following :</p>
+ * <ul>
+ * <li>The handshake completes with a self-signed issuer on TLS 1.2 and 1.3, before the parser above is opened</li>
+ * <li>Messages larger than a TLS record round-trip, in order</li>
+ * <li>A reconnect to the same issuer resumes the session</li>
+ * <li>An issuer whose certificate is not for the issuer host is refused</li>
+ * </ul>
+ */
+public class StroemTlsTransportTest {
+
+  // Self-signed, for localhost
+  private static final String KEY_STORE = "issuer.jks";
+  private static final char[] KEY_STORE_PASSWORD = "stroem".toCharArray();
+
+  private static final int MESSAGE_COUNT = 20;
+
+  private static KeyStore keyStore;
+
+  @BeforeClass
+  public static void loadKeyStore() throws Exception {
+    keyStore = KeyStore.getInstance("JKS");
+    try (InputStream in = StroemTlsTransportTest.class.getResourceAsStream(KEY_STORE)) {
+      assertNotNull("Missing " + KEY_STORE, in);
+      keyStore.load(in, KEY_STORE_PASSWORD);
+    }
+  }
+
+  @Test
+  public void testTls12() throws Exception {
+    runEchoAndResume("TLSv1.2");
+  }
+
+  @Test
+  public void testTls13() throws Exception {
+    runEchoAndResume("TLSv1.3");
+  }
+
+  @Test
+  public void testWrongHost() throws Exception {
+    StroemTlsTransport transport = new StroemTlsTransport(new StroemPipeTransport(new TlsEchoIssuer()), clientContext("TLS"));
+    StroemTestConnections.Client client = new StroemTestConnections.Client();
+    try {
+      transport.openConnection("issuer.example.com", StroemClientTcpConnection.STROEM_PORT, client.parser, 1000)
+          .get(5, TimeUnit.SECONDS);
+      fail("The certificate is only valid for localhost");
+    } catch (ExecutionException e) {
+      // Expected
+    }
+    assertFalse(client.opened.isDone());
+  }
+
+  private void runEchoAndResume(String protocol) throws Exception {
+    SSLContext clientContext;
+    try {
+      clientContext = clientContext(protocol);
+    } catch (NoSuchAlgorithmException e) {
+      Assume.assumeNoException(e);
+      return;
+    }
+    // One transport, so the second connection can resume the session of the first
+    StroemTlsTransport transport = new StroemTlsTransport(new StroemPipeTransport(new TlsEchoIssuer()), clientContext);
+
+    StroemTestConnections.Client client = new StroemTestConnections.Client();
+    StroemTlsSession session = connect(transport, client);
+    assertEquals(protocol, session.getProtocol());
+    assertFalse(session.isResumed());
+
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      // Up to 30 kB, more than a TLS record holds
+      client.parser.write(StroemTestConnections.message(i * 1500));
+    }
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      Protos.TwoWayChannelMessage echo = client.received.poll(5, TimeUnit.SECONDS);
+      assertNotNull("Missing echo " + i, echo);
+      assertEquals(i * 1500, echo.getError().getExplanation().length());
+    }
+    client.parser.closeConnection();
+    assertTrue(client.closed.get(5, TimeUnit.SECONDS));
+
+    StroemTestConnections.Client reconnected = new StroemTestConnections.Client();
+    StroemTlsSession resumed = connect(transport, reconnected);
+    assertTrue(resumed.toString(), resumed.isResumed());
+    reconnected.parser.write(StroemTestConnections.message(10));
+    assertNotNull(reconnected.received.poll(5, TimeUnit.SECONDS));
+    reconnected.parser.closeConnection();
+    assertTrue(reconnected.closed.get(5, TimeUnit.SECONDS));
+  }
+
+  private static StroemTlsSession connect(StroemTlsTransport transport, StroemTestConnections.Client client) throws Exception {
+    Object session = transport.openConnection("localhost", StroemClientTcpConnection.STROEM_PORT, client.parser, 1000)
+        .get(5, TimeUnit.SECONDS);
+    assertTrue(client.opened.get(5, TimeUnit.SECONDS));
+    return (StroemTlsSession) session;
+  }
+
+  private static SSLContext clientContext(String protocol) throws Exception {
+    TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagerFactory.init(keyStore);
+    SSLContext context = SSLContext.getInstance(protocol);
+    context.init(null, trustManagerFactory.getTrustManagers(), null);
+    if (!Arrays.asList(context.getSupportedSSLParameters().getProtocols()).contains(protocol) && !"TLS".equals(protocol)) {
+      throw new NoSuchAlgorithmException(protocol + " is not supported");
+    }
+    return context;
+  }
+
+  /*
+   * The echo issuer behind TLS, with one server context so its session cache is kept between connections.
+   */
+  private static class TlsEchoIssuer implements StreamParserFactory {
+    private final StroemTestConnections.EchoIssuer echoIssuer = new StroemTestConnections.EchoIssuer();
+    private final SSLContext serverContext;
+
+    private TlsEchoIssuer() throws Exception {
+      KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      keyManagerFactory.init(keyStore, KEY_STORE_PASSWORD);
+      serverContext = SSLContext.getInstance("TLS");
+      serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+    }
+
+    @Override
+    public StreamParser getNewParser(InetAddress inetAddress, int port) {
+      SSLEngine engine = serverContext.createSSLEngine();
+      engine.setUseClientMode(false);
+      return new StroemTlsStreamParser(engine, echoIssuer.getNewParser(inetAddress, port), new StroemTlsStreamParser.HandshakeListener() {
+        @Override
+        public StroemTlsSession handshakeFinished(SSLSession session, long handshakeStartTime, long handshakeMillis) {
+          return new StroemTlsSession(handshakeMillis, false, session.getProtocol(), session.getCipherSuite());
+        }
+      });
+    }
+  }
+}
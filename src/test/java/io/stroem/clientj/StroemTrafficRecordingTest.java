@@ -0,0 +1,156 @@
+package io.stroem.clientj;
+
+import org.bitcoin.paymentchannel.Protos;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemTrafficRecordingTest to provide the following :</p>
+ * <ul>
+ * <li>A recorded connection has every frame of both directions, in order, and the close</li>
+ * <li>A replay gives the client the recorded frames, after the client has sent what it sent in the recording</li>
+ * <li>A replay fails when the client does not send what the recording waits for</li>
+ * <li>A recording cut short is read up to its last full record</li>
+ * <li>A recording is not written into an existing file</li>
+ * </ul>
+ */
+public class StroemTrafficRecordingTest {
+
+  private static final int MESSAGE_COUNT = 20;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRecordAndReplay() throws Exception {
+    File directory = folder.newFolder();
+    StroemTransport transport = new StroemRecordingTransport(new StroemLoopbackTransport(new StroemTestConnections.EchoIssuer()), directory);
+    StroemTestConnections.Client client = new StroemTestConnections.Client();
+    transport.openConnection("issuer", StroemClientTcpConnection.STROEM_PORT, client.parser, 1000);
+    assertTrue(client.opened.get(5, TimeUnit.SECONDS));
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      client.parser.write(message(i));
+    }
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      assertNotNull("Missing echo " + i, client.received.poll(5, TimeUnit.SECONDS));
+    }
+    client.parser.closeConnection();
+    assertTrue(client.closed.get(5, TimeUnit.SECONDS));
+
+    File[] files = directory.listFiles();
+    assertEquals(1, files.length);
+    StroemTrafficRecording recording = StroemTrafficRecording.read(files[0]);
+    assertEquals("issuer", recording.getIssuerHost());
+    List<StroemTrafficRecording.Frame> frames = recording.getFrames();
+    assertEquals(2 * MESSAGE_COUNT + 1, frames.size());
+    int outbound = 0;
+    int inbound = 0;
+    long micros = 0;
+    for (StroemTrafficRecording.Frame frame : frames) {
+      assertTrue(frame.getMicros() >= micros);
+      micros = frame.getMicros();
+      if (frame.getDirection() == StroemTrafficRecording.Direction.OUTBOUND) {
+        assertArrayEquals(message(outbound++).toByteArray(), frame.getMessage());
+      } else if (frame.getDirection() == StroemTrafficRecording.Direction.INBOUND) {
+        // An echo is never recorded before its message
+        assertTrue(inbound < outbound);
+        assertArrayEquals(message(inbound++).toByteArray(), frame.getMessage());
+      }
+    }
+    assertEquals(StroemTrafficRecording.Direction.CLOSED, frames.get(frames.size() - 1).getDirection());
+
+    // The replaying client sends its messages when the connection opens
+    StroemReplayTransport replay = new StroemReplayTransport(recording, StroemReplayTransport.Speed.MAXIMUM);
+    List<Protos.TwoWayChannelMessage> messages = new ArrayList<Protos.TwoWayChannelMessage>();
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      messages.add(message(i));
+    }
+    StroemTestConnections.Client replayed = new StroemTestConnections.Client(messages);
+    replay.openConnection("issuer", StroemClientTcpConnection.STROEM_PORT, replayed.parser, 1000);
+    assertEquals(MESSAGE_COUNT, (int) replay.getDoneFuture().get(5, TimeUnit.SECONDS));
+    assertTrue(replayed.closed.get(5, TimeUnit.SECONDS));
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      assertEquals(message(i), replayed.received.poll());
+    }
+  }
+
+  @Test
+  public void testReplayStalls() throws Exception {
+    List<StroemTrafficRecording.Frame> frames = new ArrayList<StroemTrafficRecording.Frame>();
+    frames.add(new StroemTrafficRecording.Frame(StroemTrafficRecording.Direction.OUTBOUND, 0, message(0).toByteArray()));
+    frames.add(new StroemTrafficRecording.Frame(StroemTrafficRecording.Direction.INBOUND, 10, message(0).toByteArray()));
+    StroemReplayTransport replay = new StroemReplayTransport(
+        new StroemTrafficRecording(0, "issuer", StroemClientTcpConnection.STROEM_PORT, frames),
+        StroemReplayTransport.Speed.RECORDED, 100);
+
+    // Sends nothing
+    StroemTestConnections.Client client = new StroemTestConnections.Client();
+    replay.openConnection("issuer", StroemClientTcpConnection.STROEM_PORT, client.parser, 1000);
+    try {
+      replay.getDoneFuture().get(5, TimeUnit.SECONDS);
+      fail("The replay should stall");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+    assertTrue(client.closed.get(5, TimeUnit.SECONDS));
+    assertTrue(client.received.isEmpty());
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    File file = new File(folder.getRoot(), "truncated.rec");
+    StroemTrafficRecording.Writer writer = new StroemTrafficRecording.Writer(file, "issuer", 1);
+    for (int i = 0; i < 3; i++) {
+      byte[] frame = new StroemTrafficRecording.Frame(null, 0, message(i).toByteArray()).toWireFrame();
+      // In two parts, as a read may return them
+      writer.record(StroemTrafficRecording.Direction.INBOUND, frame, 0, 3);
+      writer.record(StroemTrafficRecording.Direction.INBOUND, frame, 3, frame.length - 3);
+    }
+    writer.close();
+    assertEquals(4, StroemTrafficRecording.read(file).getFrames().size());
+
+    // Cut into the close record
+    RandomAccessFile cut = new RandomAccessFile(file, "rw");
+    cut.setLength(cut.length() - 2);
+    cut.close();
+    List<StroemTrafficRecording.Frame> frames = StroemTrafficRecording.read(file).getFrames();
+    assertEquals(3, frames.size());
+    assertTrue(Arrays.equals(message(2).toByteArray(), frames.get(2).getMessage()));
+  }
+
+  @Test
+  public void testExistingFile() throws Exception {
+    File file = new File(folder.getRoot(), "existing.rec");
+    StroemTrafficRecording.Writer writer = new StroemTrafficRecording.Writer(file, "issuer", 1);
+    byte[] frame = new StroemTrafficRecording.Frame(null, 0, message(1).toByteArray()).toWireFrame();
+    writer.record(StroemTrafficRecording.Direction.OUTBOUND, frame, 0, frame.length);
+    writer.close();
+    long length = file.length();
+
+    try {
+      new StroemTrafficRecording.Writer(file, "issuer", 1);
+      fail("The file already exists");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertEquals(length, file.length());
+    assertEquals(2, StroemTrafficRecording.read(file).getFrames().size());
+  }
+
+  private static Protos.TwoWayChannelMessage message(int i) {
+    return StroemTestConnections.message(i * 37);
+  }
+}
@@ -0,0 +1,120 @@
+package io.stroem.clientj;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoin.paymentchannel.Protos;
+import org.bitcoinj.net.StreamParser;
+import org.bitcoinj.net.StreamParserFactory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemTransportTest to provide the following :</p>
+ * <ul>
+ * <li>The in-process transports open, carry messages both ways (in order) and close both ends</li>
+ * <li>The blocking transport does the same over TCP, with a read buffer smaller than the messages</li>
+ * </ul>
+ */
+public class StroemTransportTest {
+
+  private static final int MESSAGE_COUNT = 200;
+
+  @Test
+  public void testLoopback() throws Exception {
+    runEcho(new StroemLoopbackTransport(new StroemTestConnections.EchoIssuer()));
+  }
+
+  @Test
+  public void testPipe() throws Exception {
+    runEcho(new StroemPipeTransport(new StroemTestConnections.EchoIssuer()));
+  }
+
+  @Test
+  public void testBlocking() throws Exception {
+    final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    Thread echoThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        // Sends every byte back, so the client gets its own messages back
+        try (Socket socket = serverSocket.accept()) {
+          InputStream in = socket.getInputStream();
+          OutputStream out = socket.getOutputStream();
+          byte[] buffer = new byte[1000];
+          int count;
+          while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+          }
+        } catch (IOException e) {
+          // The test fails on the missing echo
+        }
+      }
+    });
+    echoThread.setDaemon(true);
+    echoThread.start();
+    try {
+      runEcho(new StroemBlockingTransport(new ThreadFactoryBuilder().setDaemon(true).build(), 512),
+          "localhost", serverSocket.getLocalPort());
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  @Test
+  public void testRefused() throws Exception {
+    StroemTransport transport = new StroemLoopbackTransport(new StreamParserFactory() {
+      @Override
+      public StreamParser getNewParser(InetAddress inetAddress, int port) {
+        return null;
+      }
+    });
+    try {
+      transport.openConnection("issuer", StroemClientTcpConnection.STROEM_PORT, new StroemTestConnections.Client().parser, 1000).get();
+      fail("Connection should be refused");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  private void runEcho(StroemTransport transport) throws Exception {
+    runEcho(transport, "issuer", StroemClientTcpConnection.STROEM_PORT);
+  }
+
+  private void runEcho(StroemTransport transport, String host, int port) throws Exception {
+    StroemTestConnections.Client client = new StroemTestConnections.Client();
+    transport.openConnection(host, port, client.parser, 1000);
+    assertTrue(client.opened.get(5, TimeUnit.SECONDS));
+
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      // Vary the size so that messages are split and joined in the pipe
+      client.parser.write(Protos.TwoWayChannelMessage.newBuilder()
+          .setType(Protos.TwoWayChannelMessage.MessageType.ERROR)
+          .setError(Protos.Error.newBuilder().setExplanation(repeat('x', i * 37)))
+          .build());
+    }
+    for (int i = 0; i < MESSAGE_COUNT; i++) {
+      Protos.TwoWayChannelMessage echo = client.received.poll(5, TimeUnit.SECONDS);
+      assertNotNull("Missing echo " + i, echo);
+      assertEquals(i * 37, echo.getError().getExplanation().length());
+    }
+
+    client.parser.closeConnection();
+    assertTrue(client.closed.get(5, TimeUnit.SECONDS));
+  }
+
+  private static String repeat(char c, int count) {
+    StringBuilder builder = new StringBuilder(count);
+    for (int i = 0; i < count; i++) {
+      builder.append(c);
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,126 @@
+package io.stroem.clientj;
+
+import com.google.protobuf.ByteString;
+import io.stroem.proto.StroemProtos;
+import io.stroem.proto.StroemProtos.StroemMessage;
+import org.bitcoin.paymentchannel.Protos;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.ProtobufParser;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemWireParserTest to provide the following :</p>
+ * <ul>
+ * <li>A payment channel message is encoded byte for byte as the built StroemMessage would be, also when the lengths
+ * need multi byte varints</li>
+ * <li>An encoded payment channel message decodes to the same message</li>
+ * <li>The frame the transport has already sent is not written again, and its RTT is measured from when it was
+ * sent</li>
+ * </ul>
+ */
+public class StroemWireParserTest {
+
+  @Test
+  public void testEncodeSameAsBuilder() throws Exception {
+    Protos.TwoWayChannelMessage paymentMsg = Protos.TwoWayChannelMessage.newBuilder()
+        .setType(Protos.TwoWayChannelMessage.MessageType.CLIENT_VERSION)
+        .setClientVersion(Protos.ClientVersion.newBuilder().setMajor(1).setMinor(42))
+        .build();
+    assertArrayEquals(encodeWithBuilder(paymentMsg), StroemWireParser.encodePaymentChannelMessage(paymentMsg));
+  }
+
+  @Test
+  public void testEncodeLargeMessage() throws Exception {
+    // Big enough to need multi byte length varints in both envelopes
+    byte[] tx = new byte[20000];
+    Arrays.fill(tx, (byte) 7);
+    Protos.TwoWayChannelMessage paymentMsg = Protos.TwoWayChannelMessage.newBuilder()
+        .setType(Protos.TwoWayChannelMessage.MessageType.PROVIDE_CONTRACT)
+        .setProvideContract(Protos.ProvideContract.newBuilder()
+            .setTx(ByteString.copyFrom(tx))
+            .setInitialPayment(Protos.UpdatePayment.newBuilder()
+                .setClientChangeValue(1000)
+                .setSignature(ByteString.copyFrom(new byte[72]))))
+        .build();
+    assertArrayEquals(encodeWithBuilder(paymentMsg), StroemWireParser.encodePaymentChannelMessage(paymentMsg));
+  }
+
+  @Test
+  public void testDecodeEncoded() throws Exception {
+    Protos.TwoWayChannelMessage paymentMsg = Protos.TwoWayChannelMessage.newBuilder()
+        .setType(Protos.TwoWayChannelMessage.MessageType.CLIENT_VERSION)
+        .setClientVersion(Protos.ClientVersion.newBuilder().setMajor(1).setMinor(42))
+        .build();
+    byte[] frame = StroemWireParser.encodePaymentChannelMessage(paymentMsg);
+    StroemMessage msg = StroemMessage.PARSER.parseFrom(ByteString.copyFrom(frame, 4, frame.length - 4));
+    assertEquals(StroemMessage.MessageType.PAYMENTCHANNEL_MESSAGE, msg.getType());
+    assertEquals(paymentMsg,
+        StroemMessageReceiver.decodePaymentChannelMessage(msg.getPaymentChannelMessage().getPaymentChannelMessage()));
+  }
+
+  @Test
+  public void testAlreadySentFrame() throws Exception {
+    Protos.TwoWayChannelMessage paymentMsg = Protos.TwoWayChannelMessage.newBuilder()
+        .setType(Protos.TwoWayChannelMessage.MessageType.CLIENT_VERSION)
+        .setClientVersion(Protos.ClientVersion.newBuilder().setMajor(1).setMinor(42))
+        .build();
+    byte[] frame = StroemWireParser.encodePaymentChannelMessage(paymentMsg);
+    final List<byte[]> written = new ArrayList<byte[]>();
+    StroemWireParser parser = new StroemWireParser(new ProtobufParser.Listener<StroemMessage>() {
+      @Override
+      public void messageReceived(ProtobufParser<StroemMessage> handler, StroemMessage msg) {
+      }
+
+      @Override
+      public void connectionOpen(ProtobufParser<StroemMessage> handler) {
+      }
+
+      @Override
+      public void connectionClosed(ProtobufParser<StroemMessage> handler) {
+      }
+    }, Short.MAX_VALUE, 0);
+    parser.setAlreadySent(frame, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(50));
+    parser.setWriteTarget(new MessageWriteTarget() {
+      @Override
+      public void writeBytes(byte[] message) {
+        written.add(message);
+      }
+
+      @Override
+      public void closeConnection() {
+      }
+    });
+    parser.connectionOpened();
+
+    // The frame the transport has sent is neither written nor counted, its RTT is measured from when it was sent
+    parser.writePaymentChannelMessage(paymentMsg);
+    assertTrue(written.isEmpty());
+    assertEquals(0, parser.getMessagesWritten());
+    assertTrue(parser.takeRttSampleMillis() >= 50);
+
+    parser.writePaymentChannelMessage(paymentMsg);
+    assertEquals(1, written.size());
+    assertEquals(1, parser.getMessagesWritten());
+  }
+
+  private static byte[] encodeWithBuilder(Protos.TwoWayChannelMessage paymentMsg) {
+    byte[] msgBytes = StroemMessage.newBuilder()
+        .setType(StroemMessage.MessageType.PAYMENTCHANNEL_MESSAGE)
+        .setPaymentChannelMessage(StroemProtos.PaymentChannelMessage.newBuilder()
+            .setPaymentChannelMessage(paymentMsg.toByteString()).build())
+        .build()
+        .toByteArray();
+    byte[] frame = new byte[4 + msgBytes.length];
+    Utils.uint32ToByteArrayBE(msgBytes.length, frame, 0);
+    System.arraycopy(msgBytes, 0, frame, 4, msgBytes.length);
+    return frame;
+  }
+}
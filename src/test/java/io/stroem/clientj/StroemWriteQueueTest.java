@@ -0,0 +1,206 @@
+package io.stroem.clientj;
+
+import org.bitcoinj.net.MessageWriteTarget;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>StroemWriteQueueTest to provide the following :</p>
+ * <ul>
+ * <li>Frames are written in order</li>
+ * <li>The queue is not writable over its limits, and writable again below half of them</li>
+ * <li>Closing the queue wakes up waiting threads</li>
+ * <li>Queued frames are gathered into one write, and held while corked</li>
+ * </ul>
+ */
+public class StroemWriteQueueTest {
+
+  @Test
+  public void testWritesInOrder() throws Exception {
+    final List<Integer> written = new ArrayList<Integer>();
+    StroemWriteQueue queue = new StroemWriteQueue();
+    queue.setTarget(new MessageWriteTarget() {
+      @Override
+      public void writeBytes(byte[] message) throws IOException {
+        written.add((int) message[0]);
+      }
+
+      @Override
+      public void closeConnection() {
+      }
+    });
+    for (int i = 0; i < 10; i++) {
+      queue.write(new byte[] {(byte) i});
+    }
+    assertEquals(10, written.size());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, (int) written.get(i));
+    }
+    assertEquals(0, queue.getQueuedMessages());
+    assertTrue(queue.isWritable());
+  }
+
+  @Test
+  public void testWritability() throws Exception {
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final StroemWriteQueue queue = new StroemWriteQueue();
+    queue.setLimits(4, 1000);
+    queue.setTarget(new MessageWriteTarget() {
+      @Override
+      public void writeBytes(byte[] message) throws IOException {
+        // A slow peer: the first write blocks until released
+        writing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+
+      @Override
+      public void closeConnection() {
+      }
+    });
+    final List<Boolean> changes = new ArrayList<Boolean>();
+    queue.addListener(new StroemWriteQueue.Listener() {
+      @Override
+      public void writabilityChanged(boolean writable) {
+        synchronized (changes) {
+          changes.add(writable);
+        }
+      }
+    });
+
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          queue.write(new byte[10]);
+        } catch (IOException e) {
+          fail(e.getMessage());
+        }
+      }
+    });
+    writer.start();
+    assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+    // Queued behind the blocked write
+    for (int i = 0; i < 3; i++) {
+      queue.write(new byte[10]);
+    }
+    assertFalse(queue.isWritable());
+    assertEquals(4, queue.getQueuedMessages());
+    assertEquals(40, queue.getQueuedBytes());
+
+    release.countDown();
+    writer.join(5000);
+    queue.awaitWritable();
+    assertTrue(queue.isWritable());
+    assertEquals(0, queue.getQueuedMessages());
+    synchronized (changes) {
+      assertEquals(2, changes.size());
+      assertFalse(changes.get(0));
+      assertTrue(changes.get(1));
+    }
+  }
+
+  @Test
+  public void testCloseWakesWaiters() throws Exception {
+    final StroemWriteQueue queue = new StroemWriteQueue();
+    queue.setLimits(1, 1000);
+    final CountDownLatch release = new CountDownLatch(1);
+    queue.setTarget(new MessageWriteTarget() {
+      @Override
+      public void writeBytes(byte[] message) throws IOException {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+
+      @Override
+      public void closeConnection() {
+      }
+    });
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          queue.write(new byte[10]);
+        } catch (IOException e) {
+          // Expected when closed
+        }
+      }
+    });
+    writer.start();
+    while (queue.isWritable()) {
+      Thread.sleep(10);
+    }
+
+    final CountDownLatch woken = new CountDownLatch(1);
+    Thread waiter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          queue.awaitWritable();
+          woken.countDown();
+        } catch (InterruptedException e) {
+          // Ends the test thread
+        }
+      }
+    });
+    waiter.start();
+    queue.close();
+    assertTrue(woken.await(5, TimeUnit.SECONDS));
+    release.countDown();
+    writer.join(5000);
+  }
+
+  @Test
+  public void testGathering() throws Exception {
+    final List<Integer> writeSizes = new ArrayList<Integer>();
+    StroemWriteQueue queue = new StroemWriteQueue();
+    queue.setTarget(new MessageWriteTarget() {
+      @Override
+      public void writeBytes(byte[] message) throws IOException {
+        writeSizes.add(message.length);
+      }
+
+      @Override
+      public void closeConnection() {
+      }
+    });
+    queue.setFlushPolicy(StroemWriteQueue.FlushPolicy.END_OF_READ);
+    queue.setMaxGatherBytes(100);
+
+    assertTrue(queue.cork());
+    for (int i = 0; i < 5; i++) {
+      queue.write(new byte[30]);
+    }
+    assertTrue(writeSizes.isEmpty());
+    assertEquals(5, queue.getQueuedMessages());
+    queue.uncork();
+
+    // 3 frames fit in 100 bytes, then the other 2
+    assertEquals(2, writeSizes.size());
+    assertEquals(90, (int) writeSizes.get(0));
+    assertEquals(60, (int) writeSizes.get(1));
+    assertEquals(2, queue.getWriteCount());
+    assertEquals(0, queue.getQueuedMessages());
+
+    // Not corked with the default policy
+    queue.setFlushPolicy(StroemWriteQueue.FlushPolicy.IMMEDIATE);
+    assertFalse(queue.cork());
+    queue.write(new byte[30]);
+    assertEquals(3, writeSizes.size());
+  }
+}